@@ -0,0 +1,116 @@
+package extension.cache.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lucee.commons.io.cache.CacheEntry;
+import lucee.commons.io.cache.CacheKeyFilter;
+import lucee.runtime.type.Struct;
+
+/**
+ * Reading, writing and removing the keys of a page worth of fragments, one by one and as a batch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchBenchmark {
+
+    @Param({ Server.EMBEDDED })
+    public String server;
+
+    @Param({ "20", "200" })
+    public int keys;
+
+    @Param({ Payloads.SMALL_STRING })
+    public String payload;
+
+    private Server redis;
+    private RedisCache cache;
+    private List<String> names;
+    private Struct values;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        redis = new Server(server);
+        cache = Caches.create(redis.host, redis.port, "namespace", "jmh-batch");
+        Object value = Payloads.create(payload);
+        names = new ArrayList<String>(keys);
+        values = Payloads.engine().getCreationUtil().createStruct();
+        for (int i = 0; i < keys; i++) {
+            names.add("fragment" + i);
+            values.setEL("fragment" + i, value);
+            cache.put("fragment" + i, value, null, null);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        cache.remove((CacheKeyFilter) null);
+        cache.shutdown();
+        redis.close();
+    }
+
+    @Benchmark
+    public int getEach() {
+        int count = 0;
+        for (String name: names) {
+            CacheEntry entry = cache.getCacheEntry(name, null);
+            if (entry != null) count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public Struct getAll() throws Exception {
+        return cache.getAll(names);
+    }
+
+    @Benchmark
+    public void putEach() {
+        for (String name: names) {
+            cache.put(name, values.get(name, null), null, null);
+        }
+    }
+
+    @Benchmark
+    public void putAll() throws Exception {
+        cache.putAll(values, null);
+    }
+
+    @Benchmark
+    public int removeEach() throws Exception {
+        int count = 0;
+        for (String name: names) {
+            if (cache.remove("missing-" + name)) count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public long removeAll() throws Exception {
+        List<String> missing = new ArrayList<String>(names.size());
+        for (String name: names) {
+            missing.add("missing-" + name);
+        }
+        return cache.removeAll(missing);
+    }
+
+}
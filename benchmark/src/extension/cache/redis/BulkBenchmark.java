@@ -0,0 +1,118 @@
+package extension.cache.redis;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lucee.commons.io.cache.CacheEntry;
+import lucee.commons.io.cache.CacheEntryFilter;
+import lucee.commons.io.cache.CacheKeyFilter;
+
+/**
+ * Operations over all keys of a cache, which SCAN the namespace and fetch values in batches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BulkBenchmark {
+
+    @Param({ Server.EMBEDDED })
+    public String server;
+
+    @Param({ "1000", "10000" })
+    public int size;
+
+    @Param({ Payloads.STRUCT })
+    public String payload;
+
+    @Param({ "1", "4" })
+    public String bulkParallelism;
+
+    private Server redis;
+    private RedisCache cache;
+    private CacheKeyFilter wildcard;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        redis = new Server(server);
+        cache = Caches.create(redis.host, redis.port, "namespace", "jmh-bulk", "bulkParallelism", bulkParallelism);
+        // what cacheGetAllIds("key1*") passes
+        ClassLoader cl = Payloads.engine().getCreationUtil().createStruct().getClass().getClassLoader();
+        wildcard = (CacheKeyFilter) Class.forName("lucee.runtime.cache.util.WildCardFilter", true, cl).getConstructor(String.class, boolean.class)
+                .newInstance("key1*", true);
+        Object value = Payloads.create(payload);
+        for (int i = 0; i < size; i++) {
+            cache.put("key" + i, value, null, null);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        cache.remove((CacheKeyFilter) null);
+        cache.shutdown();
+        redis.close();
+    }
+
+    @Benchmark
+    public List<String> keys() throws Exception {
+        return cache.keys();
+    }
+
+    @Benchmark
+    public List<String> keysWildcard() throws Exception {
+        return cache.keys(wildcard);
+    }
+
+    @Benchmark
+    public List values() throws Exception {
+        return cache.values();
+    }
+
+    @Benchmark
+    public List<CacheEntry> entries() throws Exception {
+        return cache.entries();
+    }
+
+    @Benchmark
+    public int entryIterator() throws Exception {
+        int count = 0;
+        Iterator<CacheEntry> it = cache.entryIterator((CacheKeyFilter) null);
+        while (it.hasNext()) {
+            if (it.next().getValue() != null) count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public List<CacheEntry> entriesFiltered() throws Exception {
+        return cache.entries(new CacheEntryFilter() {
+            @Override
+            public boolean accept(CacheEntry entry) {
+                return entry.getKey().endsWith("7");
+            }
+
+            @Override
+            public String toPattern() {
+                return "*7";
+            }
+        });
+    }
+
+}
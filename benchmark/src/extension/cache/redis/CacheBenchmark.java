@@ -0,0 +1,93 @@
+package extension.cache.redis;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lucee.commons.io.cache.CacheEntry;
+import lucee.commons.io.cache.CacheKeyFilter;
+
+/**
+ * Single key operations through the public cache API, over the network. Run with <code>-t</code> to see how they
+ * scale with concurrent requests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheBenchmark {
+
+    @Param({ Server.EMBEDDED })
+    public String server;
+
+    @Param({ Payloads.SMALL_STRING, Payloads.STRUCT })
+    public String payload;
+
+    @Param({ Multiplexer.POOL, Multiplexer.MULTIPLEXED })
+    public String connectionMode;
+
+    private Server redis;
+    private RedisCache cache;
+    private Object value;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        redis = new Server(server);
+        cache = Caches.create(redis.host, redis.port, "namespace", "jmh-cache", "connectionMode", connectionMode);
+        value = Payloads.create(payload);
+        cache.put("hit", value, null, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        cache.remove((CacheKeyFilter) null);
+        cache.shutdown();
+        redis.close();
+    }
+
+    @Benchmark
+    public CacheEntry getHit() throws Exception {
+        return cache.getCacheEntry("hit");
+    }
+
+    @Benchmark
+    public Object getOrComputeHit() throws Exception {
+        return cache.getOrCompute("hit", (Callable<Object>) () -> value);
+    }
+
+    @Benchmark
+    public CacheEntry getMiss() {
+        return cache.getCacheEntry("miss", null);
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return cache.contains("hit");
+    }
+
+    @Benchmark
+    public void put() {
+        cache.put("put", value, null, null);
+    }
+
+    @Benchmark
+    public boolean remove() throws Exception {
+        return cache.remove("remove");
+    }
+
+}
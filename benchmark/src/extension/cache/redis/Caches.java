@@ -0,0 +1,35 @@
+package extension.cache.redis;
+
+import lucee.runtime.type.Struct;
+
+/**
+ * Creates caches the way the admin does, from a struct of driver settings.
+ */
+public class Caches {
+
+    private static int count;
+
+    /**
+     * @param settings pairs of setting name and value, e.g. <code>"namespace", "app"</code>
+     */
+    public static RedisCache create(String host, int port, String... settings) throws Exception {
+        Struct args = Payloads.engine().getCreationUtil().createStruct();
+        args.set("host", host);
+        args.set("port", Double.valueOf(port));
+        for (int i = 0; i + 1 < settings.length; i += 2) {
+            args.set(settings[i], settings[i + 1]);
+        }
+
+        RedisCache cache = new RedisCache();
+        cache.init(null, "benchmark" + (++count), args);
+        return cache;
+    }
+
+    /**
+     * A cache that never connects, for benchmarks of the client side alone.
+     */
+    public static RedisCache offline(String... settings) throws Exception {
+        return create("localhost", 6379, settings);
+    }
+
+}
@@ -0,0 +1,58 @@
+package extension.cache.redis;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning values into the bytes stored in Redis and back, without any network in between.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({ Payloads.SMALL_STRING, Payloads.LARGE_STRING, Payloads.STRUCT, Payloads.ARRAY, Payloads.QUERY })
+    public String payload;
+
+    @Param({ Compression.NONE, Compression.LZ4 })
+    public String compression;
+
+    @Param({ "false", "true" })
+    public String javaSerialization;
+
+    private RedisCache cache;
+    private Object value;
+    private byte[] data;
+
+    @Setup
+    public void setup() throws Exception {
+        cache = Caches.offline("compression", compression, "javaSerialization", javaSerialization);
+        value = Payloads.create(payload);
+        data = cache.serialize(value);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws Exception {
+        return cache.serialize(value);
+    }
+
+    @Benchmark
+    public Object evaluate() {
+        return cache.evaluate(null, data);
+    }
+
+}
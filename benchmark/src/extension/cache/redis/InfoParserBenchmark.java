@@ -0,0 +1,78 @@
+package extension.cache.redis;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lucee.runtime.type.Struct;
+
+/**
+ * Parsing the output of INFO into the struct returned by getCustomInfo, which the admin polls.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InfoParserBenchmark {
+
+    private String info;
+
+    @Setup
+    public void setup() {
+        Payloads.engine();
+        StringBuilder sb = new StringBuilder();
+        section(sb, "Server", "redis_version:7.2.4", "redis_git_sha1:00000000", "redis_mode:standalone", "os:Linux 6.1.0 x86_64",
+                "arch_bits:64", "multiplexing_api:epoll", "gcc_version:12.2.0", "process_id:1", "tcp_port:6379",
+                "uptime_in_seconds:864000", "uptime_in_days:10", "hz:10", "configured_hz:10", "lru_clock:8812345",
+                "executable:/usr/local/bin/redis-server", "config_file:/etc/redis/redis.conf", "io_threads_active:0");
+        section(sb, "Clients", "connected_clients:42", "cluster_connections:0", "maxclients:10000", "client_recent_max_input_buffer:20480",
+                "client_recent_max_output_buffer:0", "blocked_clients:0", "tracking_clients:0", "clients_in_timeout_table:0");
+        section(sb, "Memory", "used_memory:1073741824", "used_memory_human:1.00G", "used_memory_rss:1181116006",
+                "used_memory_rss_human:1.10G", "used_memory_peak:1288490188", "used_memory_peak_human:1.20G",
+                "used_memory_peak_perc:83.33%", "used_memory_overhead:52428800", "used_memory_startup:865432",
+                "used_memory_dataset:1021313024", "used_memory_dataset_perc:95.19%", "maxmemory:2147483648",
+                "maxmemory_human:2.00G", "maxmemory_policy:allkeys-lru", "mem_fragmentation_ratio:1.10",
+                "mem_allocator:jemalloc-5.3.0", "lazyfree_pending_objects:0");
+        section(sb, "Persistence", "loading:0", "rdb_changes_since_last_save:1234", "rdb_bgsave_in_progress:0",
+                "rdb_last_save_time:1700000000", "rdb_last_bgsave_status:ok", "aof_enabled:0", "aof_rewrite_in_progress:0");
+        section(sb, "Stats", "total_connections_received:123456", "total_commands_processed:987654321",
+                "instantaneous_ops_per_sec:25000", "total_net_input_bytes:123456789012", "total_net_output_bytes:234567890123",
+                "instantaneous_input_kbps:1234.56", "instantaneous_output_kbps:2345.67", "rejected_connections:0",
+                "expired_keys:456789", "evicted_keys:1234", "keyspace_hits:876543210", "keyspace_misses:12345678",
+                "pubsub_channels:1", "pubsub_patterns:0", "latest_fork_usec:1234", "total_reads_processed:987654321",
+                "total_writes_processed:876543210");
+        section(sb, "Replication", "role:master", "connected_slaves:2",
+                "slave0:ip=10.0.0.2,port=6379,state=online,offset=123456789,lag=0",
+                "slave1:ip=10.0.0.3,port=6379,state=online,offset=123456789,lag=1", "master_repl_offset:123456789",
+                "repl_backlog_active:1", "repl_backlog_size:1048576");
+        section(sb, "CPU", "used_cpu_sys:1234.567890", "used_cpu_user:2345.678901", "used_cpu_sys_children:0.123456",
+                "used_cpu_user_children:0.234567");
+        section(sb, "Keyspace", "db0:keys=1234567,expires=1200000,avg_ttl=3600000");
+        info = sb.toString();
+    }
+
+    private static void section(StringBuilder sb, String name, String... lines) {
+        sb.append("# ").append(name).append("\r\n");
+        for (String line: lines) {
+            sb.append(line).append("\r\n");
+        }
+        sb.append("\r\n");
+    }
+
+    @Benchmark
+    public Struct parse() {
+        return InfoParser.parse(Payloads.engine().getCreationUtil().createStruct(), info);
+    }
+
+}
@@ -0,0 +1,52 @@
+package extension.cache.redis;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mapping cache keys to Redis keys and back, which happens for every key of every operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyBenchmark {
+
+    @Param({ "", "myapp" })
+    public String namespace;
+
+    private RedisCache cache;
+    private String key;
+    private byte[] jedisKey;
+
+    @Setup
+    public void setup() throws Exception {
+        cache = Caches.offline("namespace", namespace);
+        key = " Session:7F3A9C21-44B1-4E0B-9A6D-0D2C5E8B1F77 ";
+        jedisKey = cache.toJedisKey(key);
+    }
+
+    @Benchmark
+    public byte[] toJedisKey() {
+        return cache.toJedisKey(key);
+    }
+
+    @Benchmark
+    public String fromJedisKey() {
+        return cache.fromJedisKey(jedisKey);
+    }
+
+}
@@ -0,0 +1,72 @@
+package extension.cache.redis;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lucee.commons.io.cache.CacheKeyFilter;
+
+/**
+ * Puts and gets of a value of several megabytes, whole or in chunks. Run with <code>-prof gc</code> to see what each
+ * costs in allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LargeValueBenchmark {
+
+    @Param({ Server.EMBEDDED })
+    public String server;
+
+    @Param({ Payloads.LARGE_ARRAY })
+    public String payload;
+
+    // in KB, 0 to store values whole
+    @Param({ "0", "512" })
+    public String chunkThreshold;
+
+    private Server redis;
+    private RedisCache cache;
+    private Object value;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        redis = new Server(server);
+        cache = Caches.create(redis.host, redis.port, "namespace", "jmh-large", "chunkThreshold", chunkThreshold, "chunkSize", "256");
+        value = Payloads.create(payload);
+        cache.put("hit", value, null, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        cache.remove((CacheKeyFilter) null);
+        cache.shutdown();
+        redis.close();
+    }
+
+    @Benchmark
+    public Object get() throws Exception {
+        return cache.getValue("hit");
+    }
+
+    @Benchmark
+    public void put() {
+        cache.put("put", value, null, null);
+    }
+
+}
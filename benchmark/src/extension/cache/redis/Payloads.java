@@ -0,0 +1,101 @@
+package extension.cache.redis;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+
+import lucee.loader.engine.CFMLEngine;
+import lucee.loader.engine.CFMLEngineFactory;
+import lucee.runtime.type.Array;
+import lucee.runtime.type.Query;
+import lucee.runtime.type.Struct;
+
+/**
+ * Values the benchmarks store, shaped like what applications typically cache. Structs, arrays and queries need a
+ * running engine, which is started through the JSR-223 script engine.
+ */
+public class Payloads {
+
+    public static final String SMALL_STRING = "small-string";
+    public static final String LARGE_STRING = "large-string";
+    public static final String STRUCT = "struct";
+    public static final String ARRAY = "array";
+    public static final String QUERY = "query";
+    public static final String LARGE_ARRAY = "large-array";
+
+    private static CFMLEngine engine;
+
+    public static synchronized CFMLEngine engine() {
+        if (engine == null) {
+            ScriptEngine se = new ScriptEngineManager().getEngineByName("CFML");
+            if (se == null) throw new IllegalStateException("the CFML script engine is not on the classpath");
+            engine = CFMLEngineFactory.getInstance();
+        }
+        return engine;
+    }
+
+    public static Object create(String type) throws Exception {
+        switch (type) {
+        case SMALL_STRING:
+            return "user:12345:preferences";
+        case LARGE_STRING:
+            return text(16 * 1024);
+        case STRUCT:
+            return user(1);
+        case ARRAY: {
+            Array arr = engine().getCreationUtil().createArray();
+            for (int i = 1; i <= 100; i++) {
+                arr.appendEL(user(i));
+            }
+            return arr;
+        }
+        case LARGE_ARRAY: {
+            Array arr = engine().getCreationUtil().createArray();
+            for (int i = 1; i <= 10000; i++) {
+                arr.appendEL(user(i));
+            }
+            return arr;
+        }
+        case QUERY: {
+            Query qry = engine().getCreationUtil().createQuery(new String[] { "id", "name", "email", "created", "score" }, 500, "products");
+            for (int row = 1; row <= 500; row++) {
+                qry.setAt("id", row, Double.valueOf(row));
+                qry.setAt("name", row, "Product " + row);
+                qry.setAt("email", row, "owner" + row + "@example.com");
+                qry.setAt("created", row, engine().getCreationUtil().createDateTime(1700000000000L + row * 60000L));
+                qry.setAt("score", row, Double.valueOf(row * 1.5));
+            }
+            return qry;
+        }
+        default:
+            throw new IllegalArgumentException("unknown payload [" + type + "]");
+        }
+    }
+
+    private static Struct user(int id) throws Exception {
+        Struct user = engine().getCreationUtil().createStruct();
+        user.set("id", Double.valueOf(id));
+        user.set("name", "User " + id);
+        user.set("email", "user" + id + "@example.com");
+        user.set("active", Boolean.TRUE);
+        user.set("created", engine().getCreationUtil().createDateTime(1700000000000L + id));
+        Array roles = engine().getCreationUtil().createArray();
+        roles.appendEL("editor");
+        roles.appendEL("viewer");
+        user.set("roles", roles);
+        Struct prefs = engine().getCreationUtil().createStruct();
+        prefs.set("theme", "dark");
+        prefs.set("pageSize", Double.valueOf(25));
+        user.set("preferences", prefs);
+        return user;
+    }
+
+    private static String text(int length) {
+        String words = "lorem ipsum dolor sit amet consectetur adipiscing elit sed do eiusmod tempor incididunt ";
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            sb.append(words);
+        }
+        return sb.substring(0, length);
+    }
+
+}
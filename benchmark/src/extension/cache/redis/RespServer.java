@@ -0,0 +1,427 @@
+package extension.cache.redis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * In-process stand-in for a Redis server, for benchmarks on machines without one. It speaks just enough RESP for
+ * the commands the cache sends (strings, hashes, sets, SCAN, MGET/UNLINK, PUBLISH, INFO), keeps everything in memory and
+ * ignores expiration. It measures the client side of the extension; it says nothing about the speed of Redis itself.
+ */
+public class RespServer implements Runnable {
+
+    private static final byte[] OK = "+OK\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NIL = "$-1\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] WRONGTYPE = "-WRONGTYPE Operation against a key holding the wrong kind of value\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final String INFO = "# Server\r\nredis_version:7.2.0\r\nredis_mode:standalone\r\n\r\n# Memory\r\nused_memory:1048576\r\n";
+
+    // values are byte[] for strings, maps for hashes and sets for sets. ISO-8859-1 maps every byte to one char, so binary keys
+    // survive the round trip
+    private final ConcurrentSkipListMap<String, Object> data = new ConcurrentSkipListMap<String, Object>();
+    private final ServerSocket server;
+    private volatile boolean running = true;
+
+    public RespServer() throws IOException {
+        server = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        Thread t = new Thread(this, "resp-server");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public String getHost() {
+        return server.getInetAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public void close() throws IOException {
+        running = false;
+        server.close();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Thread t = new Thread(() -> serve(socket), "resp-connection");
+                t.setDaemon(true);
+                t.start();
+            }
+            catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream(), 65536);
+            OutputStream out = new BufferedOutputStream(s.getOutputStream(), 65536);
+            // commands queued by MULTI, which are only queued: they are not isolated from other connections
+            List<List<byte[]>> queued = null;
+            while (true) {
+                List<byte[]> command = readCommand(in);
+                String name = str(command.get(0)).toUpperCase();
+                if (name.equals("MULTI")) {
+                    queued = new ArrayList<List<byte[]>>();
+                    out.write(OK);
+                }
+                else if (name.equals("EXEC") && queued != null) {
+                    array(out, queued.size());
+                    for (List<byte[]> c: queued) {
+                        execute(c, out);
+                    }
+                    queued = null;
+                }
+                else if (queued != null) {
+                    queued.add(command);
+                    out.write("+QUEUED\r\n".getBytes(StandardCharsets.US_ASCII));
+                }
+                else execute(command, out);
+                // flush once the pipeline is drained
+                if (in.available() == 0) out.flush();
+            }
+        }
+        catch (IOException e) {
+            // client went away
+        }
+    }
+
+    private void execute(List<byte[]> args, OutputStream out) throws IOException {
+        String name = str(args.get(0)).toUpperCase();
+        // like Redis, hash commands fail on strings
+        if (name.charAt(0) == 'H' && args.size() > 1 && data.get(str(args.get(1))) instanceof byte[]) {
+            out.write(WRONGTYPE);
+            return;
+        }
+        switch (name) {
+        case "PING":
+            out.write("+PONG\r\n".getBytes(StandardCharsets.US_ASCII));
+            break;
+        case "AUTH":
+        case "SELECT":
+        case "CLIENT":
+        case "ASKING":
+            out.write(OK);
+            break;
+        case "GET": {
+            Object value = data.get(str(args.get(1)));
+            if (value != null && !(value instanceof byte[])) out.write(WRONGTYPE);
+            else bulk(out, (byte[]) value);
+            break;
+        }
+        case "SET": {
+            boolean nx = false;
+            for (int i = 3; i < args.size(); i++) {
+                if (str(args.get(i)).equalsIgnoreCase("NX")) nx = true;
+            }
+            if (nx) out.write(data.putIfAbsent(str(args.get(1)), args.get(2)) == null ? OK : NIL);
+            else {
+                data.put(str(args.get(1)), args.get(2));
+                out.write(OK);
+            }
+            break;
+        }
+        case "GETRANGE": {
+            Object value = data.get(str(args.get(1)));
+            if (value != null && !(value instanceof byte[])) out.write(WRONGTYPE);
+            else {
+                byte[] v = value == null ? new byte[0] : (byte[]) value;
+                int from = Math.min(v.length, Integer.parseInt(str(args.get(2))));
+                int to = Math.min(v.length, Integer.parseInt(str(args.get(3))) + 1);
+                bulk(out, Arrays.copyOfRange(v, from, Math.max(from, to)));
+            }
+            break;
+        }
+        case "SETEX":
+        case "PSETEX":
+            data.put(str(args.get(1)), args.get(3));
+            out.write(OK);
+            break;
+        case "INCR": {
+            String key = str(args.get(1));
+            long n = 1;
+            while (true) {
+                byte[] old = (byte[]) data.get(key);
+                if (old == null ? data.putIfAbsent(key, "1".getBytes(StandardCharsets.US_ASCII)) == null
+                    : data.replace(key, old, Long.toString(n = Long.parseLong(str(old)) + 1).getBytes(StandardCharsets.US_ASCII))) break;
+                n = 1;
+            }
+            integer(out, n);
+            break;
+        }
+        case "DEL":
+        case "UNLINK": {
+            long n = 0;
+            for (int i = 1; i < args.size(); i++) {
+                if (data.remove(str(args.get(i))) != null) n++;
+            }
+            integer(out, n);
+            break;
+        }
+        case "EXISTS": {
+            long n = 0;
+            for (int i = 1; i < args.size(); i++) {
+                if (data.containsKey(str(args.get(i)))) n++;
+            }
+            integer(out, n);
+            break;
+        }
+        case "MGET":
+            array(out, args.size() - 1);
+            for (int i = 1; i < args.size(); i++) {
+                Object value = data.get(str(args.get(i)));
+                bulk(out, value instanceof byte[] ? (byte[]) value : null);
+            }
+            break;
+        case "HSET": {
+            Map<String, byte[]> hash = hash(args.get(1), true);
+            long n = 0;
+            for (int i = 2; i + 1 < args.size(); i += 2) {
+                if (hash.put(str(args.get(i)), args.get(i + 1)) == null) n++;
+            }
+            integer(out, n);
+            break;
+        }
+        case "HGET": {
+            Map<String, byte[]> hash = hash(args.get(1), false);
+            bulk(out, hash == null ? null : hash.get(str(args.get(2))));
+            break;
+        }
+        case "HMGET": {
+            Map<String, byte[]> hash = hash(args.get(1), false);
+            array(out, args.size() - 2);
+            for (int i = 2; i < args.size(); i++) {
+                bulk(out, hash == null ? null : hash.get(str(args.get(i))));
+            }
+            break;
+        }
+        case "HGETALL": {
+            Map<String, byte[]> hash = hash(args.get(1), false);
+            if (hash == null) {
+                array(out, 0);
+                break;
+            }
+            List<Map.Entry<String, byte[]>> entries = new ArrayList<Map.Entry<String, byte[]>>(hash.entrySet());
+            array(out, entries.size() * 2);
+            for (Map.Entry<String, byte[]> e: entries) {
+                bulk(out, e.getKey().getBytes(StandardCharsets.ISO_8859_1));
+                bulk(out, e.getValue());
+            }
+            break;
+        }
+        case "HDEL": {
+            Map<String, byte[]> hash = hash(args.get(1), false);
+            long n = 0;
+            for (int i = 2; hash != null && i < args.size(); i++) {
+                if (hash.remove(str(args.get(i))) != null) n++;
+            }
+            integer(out, n);
+            break;
+        }
+        case "SADD": {
+            Set<String> set = set(args.get(1), true);
+            long n = 0;
+            for (int i = 2; i < args.size(); i++) {
+                if (set.add(str(args.get(i)))) n++;
+            }
+            integer(out, n);
+            break;
+        }
+        case "SREM": {
+            Set<String> set = set(args.get(1), false);
+            long n = 0;
+            for (int i = 2; set != null && i < args.size(); i++) {
+                if (set.remove(str(args.get(i)))) n++;
+            }
+            if (set != null && set.isEmpty()) data.remove(str(args.get(1)), set);
+            integer(out, n);
+            break;
+        }
+        case "SMEMBERS": {
+            Set<String> set = set(args.get(1), false);
+            List<String> members = set == null ? new ArrayList<String>() : new ArrayList<String>(set);
+            array(out, members.size());
+            for (String member: members) {
+                bulk(out, member.getBytes(StandardCharsets.ISO_8859_1));
+            }
+            break;
+        }
+        case "EXPIRE":
+        case "PEXPIRE":
+        case "PERSIST":
+            integer(out, data.containsKey(str(args.get(1))) ? 1 : 0);
+            break;
+        case "PTTL":
+            integer(out, data.containsKey(str(args.get(1))) ? -1 : -2);
+            break;
+        case "SCAN":
+            scan(args, out);
+            break;
+        case "PUBLISH":
+            integer(out, 0);
+            break;
+        case "INFO":
+            bulk(out, INFO.getBytes(StandardCharsets.US_ASCII));
+            break;
+        default:
+            out.write(("-ERR unknown command '" + name + "'\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * The cursor is the number of keys visited so far, which is good enough as long as the benchmark does not
+     * write while it scans.
+     */
+    private void scan(List<byte[]> args, OutputStream out) throws IOException {
+        long cursor = Long.parseLong(str(args.get(1)));
+        String match = null;
+        int count = 10;
+        for (int i = 2; i + 1 < args.size(); i += 2) {
+            String opt = str(args.get(i)).toUpperCase();
+            if (opt.equals("MATCH")) match = str(args.get(i + 1));
+            else if (opt.equals("COUNT")) count = Integer.parseInt(str(args.get(i + 1)));
+        }
+
+        List<String> keys = new ArrayList<String>(count);
+        Iterator<Map.Entry<String, Object>> it = data.entrySet().iterator();
+        long pos = 0;
+        while (pos < cursor && it.hasNext()) {
+            it.next();
+            pos++;
+        }
+        int visited = 0;
+        while (visited < count && it.hasNext()) {
+            String key = it.next().getKey();
+            visited++;
+            if (match == null || glob(match, 0, key, 0)) keys.add(key);
+        }
+        long next = it.hasNext() ? cursor + visited : 0;
+
+        array(out, 2);
+        bulk(out, Long.toString(next).getBytes(StandardCharsets.US_ASCII));
+        array(out, keys.size());
+        for (String key: keys) {
+            bulk(out, key.getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, byte[]> hash(byte[] key, boolean create) {
+        Object value = data.get(str(key));
+        if (value == null && create) {
+            Object existing = data.putIfAbsent(str(key), value = new ConcurrentHashMap<String, byte[]>());
+            if (existing != null) value = existing;
+        }
+        return value instanceof Map ? (Map<String, byte[]>) value : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<String> set(byte[] key, boolean create) {
+        Object value = data.get(str(key));
+        if (value == null && create) {
+            Object existing = data.putIfAbsent(str(key), value = ConcurrentHashMap.<String>newKeySet());
+            if (existing != null) value = existing;
+        }
+        return value instanceof Set ? (Set<String>) value : null;
+    }
+
+    private static boolean glob(String pattern, int p, String str, int s) {
+        while (p < pattern.length()) {
+            char c = pattern.charAt(p);
+            if (c == '*') {
+                for (int i = s; i <= str.length(); i++) {
+                    if (glob(pattern, p + 1, str, i)) return true;
+                }
+                return false;
+            }
+            if (s >= str.length()) return false;
+            if (c == '\\' && p + 1 < pattern.length()) c = pattern.charAt(++p);
+            else if (c == '?') c = str.charAt(s);
+            if (c != str.charAt(s)) return false;
+            p++;
+            s++;
+        }
+        return s == str.length();
+    }
+
+    private static List<byte[]> readCommand(InputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) throw new EOFException();
+        if (b != '*') throw new IOException("unexpected [" + (char) b + "]");
+        int n = (int) readNumber(in);
+        List<byte[]> args = new ArrayList<byte[]>(n);
+        for (int i = 0; i < n; i++) {
+            if (in.read() != '$') throw new IOException("expected a bulk string");
+            int len = (int) readNumber(in);
+            byte[] arg = new byte[len];
+            int off = 0;
+            while (off < len) {
+                int r = in.read(arg, off, len - off);
+                if (r == -1) throw new EOFException();
+                off += r;
+            }
+            in.read();
+            in.read();
+            args.add(arg);
+        }
+        return args;
+    }
+
+    private static long readNumber(InputStream in) throws IOException {
+        long n = 0;
+        boolean negative = false;
+        int b;
+        while ((b = in.read()) != '\r') {
+            if (b == -1) throw new EOFException();
+            if (b == '-') negative = true;
+            else n = n * 10 + (b - '0');
+        }
+        in.read();
+        return negative ? -n : n;
+    }
+
+    private static String str(byte[] bytes) {
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static void integer(OutputStream out, long n) throws IOException {
+        out.write((":" + n + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void array(OutputStream out, int size) throws IOException {
+        out.write(("*" + size + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void bulk(OutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.write(NIL);
+            return;
+        }
+        out.write(("$" + value.length + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(value);
+        out.write('\r');
+        out.write('\n');
+    }
+
+}
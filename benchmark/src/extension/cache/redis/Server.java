@@ -0,0 +1,33 @@
+package extension.cache.redis;
+
+/**
+ * The Redis server an end-to-end benchmark runs against: <code>embedded</code> for the in-process
+ * {@link RespServer}, or <code>host:port</code> of a real one. Benchmarks only touch keys in their own namespace.
+ */
+public class Server {
+
+    public static final String EMBEDDED = "embedded";
+
+    private final RespServer resp;
+    public final String host;
+    public final int port;
+
+    public Server(String address) throws Exception {
+        if (EMBEDDED.equals(address)) {
+            resp = new RespServer();
+            host = resp.getHost();
+            port = resp.getPort();
+        }
+        else {
+            resp = null;
+            int index = address.lastIndexOf(':');
+            host = index == -1 ? address : address.substring(0, index);
+            port = index == -1 ? 6379 : Integer.parseInt(address.substring(index + 1));
+        }
+    }
+
+    public void close() throws Exception {
+        if (resp != null) resp.close();
+    }
+
+}
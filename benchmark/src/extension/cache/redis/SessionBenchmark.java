@@ -0,0 +1,165 @@
+package extension.cache.redis;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.ScriptEngineManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lucee.commons.io.cache.CacheKeyFilter;
+import lucee.runtime.PageContext;
+import lucee.runtime.type.Array;
+import lucee.runtime.type.Collection;
+import lucee.runtime.type.Struct;
+
+/**
+ * A request against a session stored in the cache, the way Lucee does it: load the scope, read one key, change
+ * another, and store the scope again. The session holds a large shopping cart that the request does not touch.
+ * Before measuring, a session goes through Lucee's own cache handler once, so that the benchmark cannot pass while
+ * Lucee hands the cache something other than what the benchmark does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionBenchmark {
+
+    private static final String KEY = "LUCEE-STORAGE:SESSION:CFID-1234:MYAPP";
+
+    @Param({ Server.EMBEDDED })
+    public String server;
+
+    @Param({ "false", "true" })
+    public String sessionStorage;
+
+    @Param({ "200" })
+    public int cartSize;
+
+    private Server redis;
+    private RedisCache cache;
+
+    private Constructor<?> valueConstructor;
+    private Method valueGetValue;
+    private Constructor<?> itemConstructor;
+    private Collection.Key user;
+    private Collection.Key lastPage;
+    private int page;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        redis = new Server(server);
+        cache = Caches.create(redis.host, redis.port, "namespace", "jmh-session", "sessionStorage", sessionStorage);
+        roundTrip();
+
+        ClassLoader cl = Payloads.engine().getCreationUtil().createStruct().getClass().getClassLoader();
+        Class<?> valueClass = Class.forName("lucee.runtime.type.scope.storage.IKStorageValue", true, cl);
+        Class<?> itemClass = Class.forName("lucee.runtime.type.scope.storage.IKStorageScopeItem", true, cl);
+        valueConstructor = valueClass.getConstructor(Map.class);
+        valueGetValue = valueClass.getMethod("getValue");
+        itemConstructor = itemClass.getConstructor(Object.class);
+
+        user = key("user");
+        lastPage = key("lastPage");
+
+        Map<Collection.Key, Object> scope = new HashMap<Collection.Key, Object>();
+        scope.put(user, item(Payloads.create(Payloads.STRUCT)));
+        scope.put(lastPage, item("/index.cfm"));
+        scope.put(key("cfid"), item("CFID-1234"));
+        scope.put(key("cftoken"), item("0"));
+        scope.put(key("sessionid"), item("MYAPP_CFID-1234_0"));
+        scope.put(key("urltoken"), item("CFID=CFID-1234&CFTOKEN=0"));
+        Array cart = Payloads.engine().getCreationUtil().createArray();
+        for (int i = 1; i <= cartSize; i++) {
+            Struct line = Payloads.engine().getCreationUtil().createStruct();
+            line.set("sku", "SKU-" + i);
+            line.set("name", "Product " + i);
+            line.set("quantity", Double.valueOf(i % 5 + 1));
+            line.set("price", Double.valueOf(i * 1.99));
+            cart.appendEL(line);
+        }
+        scope.put(key("cart"), item(cart));
+        cache.put(KEY, valueConstructor.newInstance(scope), Long.valueOf(1800000), null);
+    }
+
+    private void roundTrip() throws Exception {
+        Payloads.engine();
+        new ScriptEngineManager().getEngineByName("CFML").eval("application name='jmh' sessionmanagement=true sessionstorage='jmhsessions' "
+                + "caches={jmhsessions:{class:'" + RedisCache.class.getName() + "', storage:true, custom:{host:'" + redis.host + "', port:"
+                + redis.port + ", namespace:'jmh-session-check', sessionStorage:" + sessionStorage + "}}};"
+                + "createObject('java', '" + SessionBenchmark.class.getName() + "').roundTrip(getPageContext(), " + sessionStorage + ");");
+    }
+
+    /**
+     * Called from the CFML request of {@link #roundTrip()}: stores the session scope and loads it again, both through
+     * <code>IKHandlerCache</code>.
+     */
+    public static void roundTrip(PageContext pc, boolean sessionStorage) throws Exception {
+        Struct session = (Struct) pc.sessionScope();
+        session.set("counter", Double.valueOf(42));
+        // stores the scope through the handler
+        session.getClass().getMethod("touchAfterRequest", PageContext.class).invoke(session, pc);
+
+        Class<?> handlerClass = Class.forName("lucee.runtime.type.scope.storage.IKHandlerCache", true, session.getClass().getClassLoader());
+        Method loadData = null;
+        for (Method m: handlerClass.getMethods()) {
+            if (m.getName().equals("loadData")) loadData = m;
+        }
+        Object log = pc.getConfig().getClass().getMethod("getLog", String.class).invoke(pc.getConfig(), "scope");
+        Object value = loadData.invoke(handlerClass.getConstructor().newInstance(), pc, "jmh", "jmhsessions", "session", Integer.valueOf(1), log);
+        if (value == null) throw new IllegalStateException("the session was not loaded back from the cache");
+        Map<?, ?> items = (Map<?, ?>) value.getClass().getMethod("getValue").invoke(value);
+        if (sessionStorage && !(items instanceof SessionStore.SessionMap)) throw new IllegalStateException("the session was not stored as a hash");
+        Object counter = items.get(key("counter"));
+        if (counter == null || !Double.valueOf(42).equals(counter.getClass().getMethod("getValue").invoke(counter))) {
+            throw new IllegalStateException("the session was loaded back without its values: " + items);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        cache.remove((CacheKeyFilter) null);
+        cache.shutdown();
+        redis.close();
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public Object request() throws Exception {
+        // load
+        Map<Collection.Key, Object> scope = (Map<Collection.Key, Object>) valueGetValue.invoke(cache.getValue(KEY));
+        Object result = scope.get(user);
+        scope.put(lastPage, item("/page" + (++page) + ".cfm"));
+
+        // store: Lucee reads the stored value again to detect concurrent changes before writing
+        cache.getValue(KEY, null);
+        cache.put(KEY, valueConstructor.newInstance(scope), Long.valueOf(1800000), null);
+        return result;
+    }
+
+    private Object item(Object value) throws Exception {
+        return itemConstructor.newInstance(value);
+    }
+
+    private static Collection.Key key(String name) {
+        return Payloads.engine().getCastUtil().toKey(name);
+    }
+
+}
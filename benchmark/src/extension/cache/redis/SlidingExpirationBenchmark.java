@@ -0,0 +1,76 @@
+package extension.cache.redis;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lucee.commons.io.cache.CacheKeyFilter;
+
+/**
+ * Keeping an entry with an idle time alive across a request that reads it: by putting it again, which is the only
+ * way without sliding expiration, or by just reading it and letting the touch be sent in the background.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SlidingExpirationBenchmark {
+
+    private static final Long IDLE = Long.valueOf(30 * 60 * 1000);
+
+    @Param({ Server.EMBEDDED })
+    public String server;
+
+    @Param({ Payloads.STRUCT, Payloads.LARGE_STRING })
+    public String payload;
+
+    private Server redis;
+    private RedisCache put;
+    private RedisCache sliding;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        redis = new Server(server);
+        put = Caches.create(redis.host, redis.port, "namespace", "jmh-sliding-put");
+        sliding = Caches.create(redis.host, redis.port, "namespace", "jmh-sliding", "slidingExpiration", "true");
+        Object value = Payloads.create(payload);
+        put.put("idle", value, IDLE, null);
+        sliding.put("idle", value, IDLE, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        put.remove((CacheKeyFilter) null);
+        sliding.remove((CacheKeyFilter) null);
+        put.shutdown();
+        sliding.shutdown();
+        redis.close();
+    }
+
+    @Benchmark
+    public Object readAndPut() throws Exception {
+        Object value = put.getValue("idle");
+        put.put("idle", value, IDLE, null);
+        return value;
+    }
+
+    @Benchmark
+    public Object readAndTouch() throws Exception {
+        return sliding.getValue("idle");
+    }
+
+}
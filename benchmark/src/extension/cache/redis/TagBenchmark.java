@@ -0,0 +1,85 @@
+package extension.cache.redis;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lucee.commons.io.cache.CacheKeyFilter;
+
+/**
+ * Storing the fragments of a product and evicting them again, as a tag or as the keys matching a wildcard, in a
+ * cache that holds many other keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TagBenchmark {
+
+    @Param({ Server.EMBEDDED })
+    public String server;
+
+    // keys in the cache besides the group
+    @Param({ "1000", "10000" })
+    public int size;
+
+    @Param({ "20" })
+    public int members;
+
+    private Server redis;
+    private RedisCache cache;
+    private CacheKeyFilter wildcard;
+    private Object value;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        redis = new Server(server);
+        cache = Caches.create(redis.host, redis.port, "namespace", "jmh-tag");
+        // what cacheClear("product42_*") passes
+        ClassLoader cl = Payloads.engine().getCreationUtil().createStruct().getClass().getClassLoader();
+        wildcard = (CacheKeyFilter) Class.forName("lucee.runtime.cache.util.WildCardFilter", true, cl).getConstructor(String.class, boolean.class)
+                .newInstance("product42_*", true);
+        value = Payloads.create(Payloads.SMALL_STRING);
+        for (int i = 0; i < size; i++) {
+            cache.put("other" + i, value, null, null);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        cache.remove((CacheKeyFilter) null);
+        cache.shutdown();
+        redis.close();
+    }
+
+    @Benchmark
+    public long putAndInvalidateTag() throws Exception {
+        for (int i = 0; i < members; i++) {
+            cache.putTagged("product42_" + i, value, "product42", null);
+        }
+        return cache.invalidateTag("product42");
+    }
+
+    @Benchmark
+    public int putAndRemoveMatching() throws Exception {
+        for (int i = 0; i < members; i++) {
+            cache.put("product42_" + i, value, null, null);
+        }
+        return cache.remove(wildcard);
+    }
+
+}
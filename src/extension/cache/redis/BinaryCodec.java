@@ -0,0 +1,215 @@
+package extension.cache.redis;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.Date;
+
+import lucee.loader.engine.CFMLEngineFactory;
+import lucee.runtime.type.dt.DateTime;
+
+/**
+ * Compact tagged binary format for simple values (booleans, numbers, dates and binaries), which are far cheaper
+ * to write and read this way than through Java serialization. Every value starts with a one byte type tag;
+ * integers and lengths are written as varints.
+ */
+public class BinaryCodec implements Codec {
+
+    static final int TRUE = 1;
+    static final int FALSE = 2;
+    static final int INT = 3;
+    static final int LONG = 4;
+    static final int DOUBLE = 5;
+    static final int BIG_DECIMAL = 6;
+    static final int BYTES = 7;
+    static final int DATE = 8;
+    static final int DATE_TIME = 9;
+    static final int STRING = 10;
+
+    @Override
+    public int id() {
+        return ValueCodec.BINARY;
+    }
+
+    @Override
+    public boolean supports(Object value) {
+        return value instanceof Boolean || value instanceof Double || value instanceof Integer || value instanceof Long
+            || value instanceof BigDecimal || value instanceof byte[] || value instanceof DateTime
+            || (value != null && value.getClass() == Date.class);
+    }
+
+    @Override
+    public void encode(Object value, OutputStream out) throws IOException {
+        write(value, out);
+    }
+
+    @Override
+    public Object decode(byte[] data, int offset, int length) throws IOException {
+        Input in = new Input(data, offset, length);
+        Object value = read(in);
+        if (in.pos != in.end) throw new IOException("unexpected trailing data in binary encoded value");
+        return value;
+    }
+
+    protected void write(Object value, OutputStream out) throws IOException {
+        if (value instanceof Boolean) {
+            out.write(((Boolean) value).booleanValue() ? TRUE : FALSE);
+        }
+        else if (value instanceof Double) {
+            out.write(DOUBLE);
+            writeLong(out, Double.doubleToRawLongBits(((Double) value).doubleValue()));
+        }
+        else if (value instanceof Integer) {
+            out.write(INT);
+            writeVarLong(out, zigzag(((Integer) value).intValue()));
+        }
+        else if (value instanceof Long) {
+            out.write(LONG);
+            writeVarLong(out, zigzag(((Long) value).longValue()));
+        }
+        else if (value instanceof BigDecimal) {
+            out.write(BIG_DECIMAL);
+            writeString(out, value.toString());
+        }
+        else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.write(BYTES);
+            writeVarLong(out, bytes.length);
+            out.write(bytes);
+        }
+        else if (value instanceof DateTime) {
+            out.write(DATE_TIME);
+            writeVarLong(out, zigzag(((Date) value).getTime()));
+        }
+        else if (value instanceof Date) {
+            out.write(DATE);
+            writeVarLong(out, zigzag(((Date) value).getTime()));
+        }
+        else if (value instanceof String) {
+            out.write(STRING);
+            writeString(out, (String) value);
+        }
+        else {
+            throw new IOException("type [" + (value == null ? "null" : value.getClass().getName()) + "] is not supported by the binary codec");
+        }
+    }
+
+    protected Object read(Input in) throws IOException {
+        return read(in.read(), in);
+    }
+
+    protected Object read(int tag, Input in) throws IOException {
+        switch (tag) {
+        case TRUE:
+            return Boolean.TRUE;
+        case FALSE:
+            return Boolean.FALSE;
+        case DOUBLE:
+            return Double.valueOf(Double.longBitsToDouble(in.readLong()));
+        case INT:
+            return Integer.valueOf((int) unzigzag(in.readVarLong()));
+        case LONG:
+            return Long.valueOf(unzigzag(in.readVarLong()));
+        case BIG_DECIMAL:
+            return new BigDecimal(in.readString());
+        case BYTES:
+            return in.readBytes(in.readLength());
+        case DATE_TIME:
+            return CFMLEngineFactory.getInstance().getCreationUtil().createDateTime(unzigzag(in.readVarLong()));
+        case DATE:
+            return new Date(unzigzag(in.readVarLong()));
+        case STRING:
+            return in.readString();
+        default:
+            throw new IOException("unknown type tag [" + tag + "] in binary encoded value");
+        }
+    }
+
+    static void writeString(OutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(RedisCache.UTF8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static void writeLong(OutputStream out, long v) throws IOException {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (v >>> shift));
+        }
+    }
+
+    static void writeVarLong(OutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Cursor over an encoded value.
+     */
+    static class Input {
+        final byte[] data;
+        final int end;
+        int pos;
+
+        Input(byte[] data, int offset, int length) {
+            this.data = data;
+            this.pos = offset;
+            this.end = offset + length;
+        }
+
+        int read() throws IOException {
+            if (pos >= end) throw new IOException("unexpected end of binary encoded value");
+            return data[pos++] & 0xFF;
+        }
+
+        long readLong() throws IOException {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | read();
+            }
+            return v;
+        }
+
+        long readVarLong() throws IOException {
+            long v = 0;
+            int b;
+            for (int shift = 0; shift < 64; shift += 7) {
+                b = read();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            throw new IOException("malformed varint in binary encoded value");
+        }
+
+        int readLength() throws IOException {
+            long len = readVarLong();
+            if (len < 0 || len > end - pos) throw new IOException("invalid length [" + len + "] in binary encoded value");
+            return (int) len;
+        }
+
+        String readString() throws IOException {
+            int len = readLength();
+            String str = new String(data, pos, len, RedisCache.UTF8);
+            pos += len;
+            return str;
+        }
+
+        byte[] readBytes(int len) {
+            byte[] bytes = new byte[len];
+            System.arraycopy(data, pos, bytes, 0, len);
+            pos += len;
+            return bytes;
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+package extension.cache.redis;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import lucee.loader.engine.CFMLEngineFactory;
+import lucee.runtime.type.Struct;
+
+/**
+ * Operation counters and latency histograms of a cache. Besides the total time of gets, puts and removes, the
+ * time spent borrowing a connection from the pool, waiting on Redis, serializing and deserializing is recorded
+ * separately.
+ */
+public class CacheStats implements RedisCacheStatsMXBean {
+
+    public final LongAdder hits = new LongAdder();
+    public final LongAdder misses = new LongAdder();
+    public final LongAdder puts = new LongAdder();
+    public final LongAdder removes = new LongAdder();
+
+    public final LatencyHistogram get = new LatencyHistogram();
+    public final LatencyHistogram put = new LatencyHistogram();
+    public final LatencyHistogram remove = new LatencyHistogram();
+    public final LatencyHistogram borrow = new LatencyHistogram();
+    public final LatencyHistogram network = new LatencyHistogram();
+    public final LatencyHistogram serialize = new LatencyHistogram();
+    public final LatencyHistogram deserialize = new LatencyHistogram();
+
+    private ObjectName name;
+
+    /**
+     * @param context tells apart caches of the same name in different contexts, null if there is just the one
+     */
+    public void register(String cacheName, String context) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName("extension.cache.redis:type=RedisCache,name=" + ObjectName.quote(cacheName)
+                    + (context == null ? "" : ",context=" + context));
+            // left over by the instance this one replaces
+            if (server.isRegistered(on)) server.unregisterMBean(on);
+            server.registerMBean(this, on);
+            name = on;
+        }
+        catch (Exception e) {
+            // jmx is a nice to have, the cache works without it
+        }
+    }
+
+    public void unregister() {
+        ObjectName on = name;
+        if (on == null) return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(on)) server.unregisterMBean(on);
+        }
+        catch (Exception e) {}
+        name = null;
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getPutCount() {
+        return puts.sum();
+    }
+
+    @Override
+    public long getRemoveCount() {
+        return removes.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        long h = hits.sum();
+        long m = misses.sum();
+        return h + m == 0 ? 0 : (double) h / (h + m);
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getGetLatency() {
+        return get.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getPutLatency() {
+        return put.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getRemoveLatency() {
+        return remove.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getBorrowLatency() {
+        return borrow.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getNetworkLatency() {
+        return network.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getSerializeLatency() {
+        return serialize.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getDeserializeLatency() {
+        return deserialize.snapshot();
+    }
+
+    public Struct getInfo() {
+        Struct info = CFMLEngineFactory.getInstance().getCreationUtil().createStruct();
+        info.setEL("get", get.snapshot().toStruct());
+        info.setEL("put", put.snapshot().toStruct());
+        info.setEL("remove", remove.snapshot().toStruct());
+        info.setEL("borrow", borrow.snapshot().toStruct());
+        info.setEL("network", network.snapshot().toStruct());
+        info.setEL("serialize", serialize.snapshot().toStruct());
+        info.setEL("deserialize", deserialize.snapshot().toStruct());
+        return info;
+    }
+
+}
@@ -10,8 +10,11 @@ import lucee.commons.io.cache.CacheFilter;
 import lucee.loader.engine.CFMLEngineFactory;
 import lucee.runtime.config.Config;
 import lucee.runtime.exp.PageException;
+import lucee.runtime.type.Collection;
+import lucee.runtime.type.Duplicable;
 import lucee.runtime.type.Struct;
 import lucee.runtime.type.dt.TimeSpan;
+import redis.clients.jedis.exceptions.JedisDataException;
 
 public class CacheUtil {
 
@@ -81,6 +84,32 @@ public class CacheUtil {
         return p.equals("*") || p.equals("");
     }
 
+    /**
+     * Whether <code>e</code>, the error of running a script, means that scripts cannot be run at all (not loaded,
+     * not permitted, disabled, or a command they use is unknown), rather than that this one call failed, e.g.
+     * because Redis is busy, loading, or a replica after a failover.
+     */
+    public static boolean isScriptingUnavailable(JedisDataException e) {
+        String msg = e.getMessage();
+        if (msg == null) return false;
+        if (msg.startsWith("NOSCRIPT") || msg.startsWith("NOPERM")) return true;
+        msg = msg.toLowerCase();
+        return msg.contains("unknown command") || msg.contains("unknown redis command") || (msg.contains("script") && msg.contains("disabled"));
+    }
+
+    /**
+     * A copy of <code>value</code> that a caller may change without affecting anyone else: structs, arrays, queries
+     * and the like are duplicated, byte arrays cloned. Strings and numbers are immutable, and other mutable Java
+     * objects are shared.
+     */
+    public static Object copy(Object value) {
+        // Collection has duplicate() of its own, it is not a Duplicable
+        if (value instanceof Collection) return ((Collection) value).duplicate(true);
+        if (value instanceof Duplicable) return ((Duplicable) value).duplicate(true);
+        if (value instanceof byte[]) return ((byte[]) value).clone();
+        return value;
+    }
+
     public static ClassLoader getClassLoaderEnv(Config config) throws PageException {
         try {
             Method m = config.getClass().getMethod("getClassLoaderEnv", new Class[0]);
@@ -0,0 +1,334 @@
+package extension.cache.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import lucee.loader.engine.CFMLEngineFactory;
+import lucee.runtime.exp.PageException;
+import lucee.runtime.type.Array;
+import lucee.runtime.type.Collection;
+import lucee.runtime.type.Query;
+import lucee.runtime.type.Struct;
+import lucee.runtime.util.Creation;
+
+/**
+ * Binary format for the structs, arrays and queries of CFML, on top of the simple values of {@link BinaryCodec}.
+ * Struct keys and short strings are interned: each is written once per value and referred to by its index after
+ * that, so the keys repeated in every row of an array of structs cost a byte or two. Queries are written column by
+ * column. Numbers without a fraction are written as varints.
+ * <p>
+ * Only the struct, array and query types Lucee itself creates are supported; components, case sensitive structs,
+ * multi-dimensional arrays and any other object found inside a value are embedded as Java serialized bytes. So is a
+ * struct or array that contains itself, from where it contains itself. Other values referenced more than once are
+ * written as copies, and queries lose what they knew about the SQL they came from.
+ */
+public class CfmlCodec extends BinaryCodec {
+
+    static final int NULL = 11;
+    static final int SYMBOL = 12;
+    static final int INTEGRAL = 13;
+    static final int STRUCT = 14;
+    static final int ARRAY = 15;
+    static final int QUERY = 16;
+    static final int JAVA = 17;
+
+    // longer strings are rarely repeated
+    private static final int MAX_SYMBOL_LENGTH = 64;
+
+    private static final String STRUCT_IMPL = "lucee.runtime.type.StructImpl";
+    private static final String ARRAY_IMPL = "lucee.runtime.type.ArrayImpl";
+    private static final String QUERY_IMPL = "lucee.runtime.type.QueryImpl";
+
+    private final Codec fallback;
+    private volatile Method structType;
+
+    /**
+     * @param fallback codec for the objects found inside a value this codec does not support
+     */
+    public CfmlCodec(Codec fallback) {
+        this.fallback = fallback;
+    }
+
+    @Override
+    public int id() {
+        return ValueCodec.CFML;
+    }
+
+    @Override
+    public boolean supports(Object value) {
+        if (value == null) return false;
+        String name = value.getClass().getName();
+        if (STRUCT_IMPL.equals(name) || QUERY_IMPL.equals(name)) return true;
+        return ARRAY_IMPL.equals(name) && ((Array) value).getDimension() == 1;
+    }
+
+    @Override
+    public void encode(Object value, OutputStream out) throws IOException {
+        write(value, new SymbolOutput(out));
+    }
+
+    @Override
+    public Object decode(byte[] data, int offset, int length) throws IOException {
+        SymbolInput in = new SymbolInput(data, offset, length);
+        Object value = read(in);
+        if (in.pos != in.end) throw new IOException("unexpected trailing data in CFML encoded value");
+        return value;
+    }
+
+    @Override
+    protected void write(Object value, OutputStream os) throws IOException {
+        SymbolOutput out = (SymbolOutput) os;
+        if (value == null) {
+            out.write(NULL);
+        }
+        else if (value instanceof String) {
+            String str = (String) value;
+            if (str.length() > MAX_SYMBOL_LENGTH) {
+                super.write(value, out);
+            }
+            else {
+                out.write(SYMBOL);
+                writeSymbol(out, str);
+            }
+        }
+        else if (value instanceof Double) {
+            double d = ((Double) value).doubleValue();
+            long l = (long) d;
+            // not for -0.0, which would come back as 0.0
+            if (l == d && (l != 0 || Double.doubleToRawLongBits(d) == 0)) {
+                out.write(INTEGRAL);
+                writeVarLong(out, zigzag(l));
+            }
+            else {
+                super.write(value, out);
+            }
+        }
+        else if (super.supports(value)) {
+            super.write(value, out);
+        }
+        else if (supports(value) && out.enter(value)) {
+            if (value instanceof Struct) writeStruct((Struct) value, out);
+            else if (value instanceof Array) writeArray((Array) value, out);
+            else writeQuery((Query) value, out);
+            out.leave(value);
+        }
+        else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            fallback.encode(value, bytes);
+            out.write(JAVA);
+            writeVarLong(out, bytes.size());
+            bytes.writeTo(out);
+        }
+    }
+
+    private void writeStruct(Struct struct, SymbolOutput out) throws IOException {
+        out.write(STRUCT);
+        writeVarLong(out, zigzag(structType(struct)));
+        writeVarLong(out, struct.size());
+        Iterator<Entry<Collection.Key, Object>> it = struct.entryIterator();
+        Entry<Collection.Key, Object> e;
+        while (it.hasNext()) {
+            e = it.next();
+            writeSymbol(out, e.getKey().getString());
+            write(e.getValue(), out);
+        }
+    }
+
+    private void writeArray(Array arr, SymbolOutput out) throws IOException {
+        int size = arr.size();
+        out.write(ARRAY);
+        writeVarLong(out, size);
+        for (int i = 1; i <= size; i++) {
+            write(arr.get(i, null), out);
+        }
+    }
+
+    private void writeQuery(Query qry, SymbolOutput out) throws IOException {
+        Collection.Key[] columns = qry.getColumnNames();
+        int rows = qry.getRecordcount();
+        out.write(QUERY);
+        writeString(out, qry.getName() == null ? "" : qry.getName());
+        writeVarLong(out, columns.length);
+        for (Collection.Key column: columns) {
+            writeSymbol(out, column.getString());
+            writeSymbol(out, qry.getColumn(column, null).getTypeAsString());
+        }
+        writeVarLong(out, rows);
+        for (Collection.Key column: columns) {
+            for (int row = 1; row <= rows; row++) {
+                write(qry.getAt(column, row, null), out);
+            }
+        }
+    }
+
+    @Override
+    protected Object read(int tag, Input input) throws IOException {
+        SymbolInput in = (SymbolInput) input;
+        switch (tag) {
+        case NULL:
+            return null;
+        case SYMBOL:
+            return readSymbol(in);
+        case INTEGRAL:
+            return Double.valueOf(unzigzag(in.readVarLong()));
+        case STRUCT:
+            return readStruct(in);
+        case ARRAY:
+            return readArray(in);
+        case QUERY:
+            return readQuery(in);
+        case JAVA: {
+            int len = in.readLength();
+            Object value = fallback.decode(in.data, in.pos, len);
+            in.pos += len;
+            return value;
+        }
+        default:
+            return super.read(tag, in);
+        }
+    }
+
+    private Struct readStruct(SymbolInput in) throws IOException {
+        Creation creation = CFMLEngineFactory.getInstance().getCreationUtil();
+        Struct struct = creation.createStruct((int) unzigzag(in.readVarLong()));
+        long size = in.readVarLong();
+        for (long i = 0; i < size; i++) {
+            Collection.Key key = creation.createKey(readSymbol(in));
+            struct.setEL(key, read(in));
+        }
+        return struct;
+    }
+
+    private Array readArray(SymbolInput in) throws IOException {
+        Array arr = CFMLEngineFactory.getInstance().getCreationUtil().createArray();
+        int size = in.readLength();
+        Object value;
+        for (int i = 1; i <= size; i++) {
+            value = read(in);
+            if (value != null) arr.setEL(i, value);
+        }
+        try {
+            // trailing gaps
+            if (arr.size() < size) arr.resize(size);
+        }
+        catch (PageException e) {
+            throw new IOException(e);
+        }
+        return arr;
+    }
+
+    private Query readQuery(SymbolInput in) throws IOException {
+        Creation creation = CFMLEngineFactory.getInstance().getCreationUtil();
+        String name = in.readString();
+        int count = in.readLength();
+        Collection.Key[] columns = new Collection.Key[count];
+        String[] types = new String[count];
+        for (int i = 0; i < count; i++) {
+            columns[i] = creation.createKey(readSymbol(in));
+            types[i] = readSymbol(in);
+        }
+        int rows = in.readLength();
+        try {
+            Query qry = creation.createQuery(columns, types, rows, name);
+            Object value;
+            for (Collection.Key column: columns) {
+                for (int row = 1; row <= rows; row++) {
+                    value = read(in);
+                    if (value != null) qry.setAt(column, row, value);
+                }
+            }
+            return qry;
+        }
+        catch (PageException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void writeSymbol(SymbolOutput out, String str) throws IOException {
+        Integer index = out.symbols.get(str);
+        if (index != null) {
+            writeVarLong(out, index.intValue() + 1);
+            return;
+        }
+        out.symbols.put(str, Integer.valueOf(out.symbols.size()));
+        writeVarLong(out, 0);
+        writeString(out, str);
+    }
+
+    private static String readSymbol(SymbolInput in) throws IOException {
+        long ref = in.readVarLong();
+        if (ref == 0) {
+            String str = in.readString();
+            in.symbols.add(str);
+            return str;
+        }
+        if (ref > in.symbols.size()) throw new IOException("invalid string reference [" + ref + "] in CFML encoded value");
+        return in.symbols.get((int) ref - 1);
+    }
+
+    private int structType(Struct struct) {
+        try {
+            Method m = structType;
+            if (m == null || m.getDeclaringClass() != struct.getClass()) structType = m = struct.getClass().getMethod("getType");
+            return ((Integer) m.invoke(struct)).intValue();
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            return Struct.TYPE_REGULAR;
+        }
+    }
+
+    /**
+     * The strings written so far, along with the structs and arrays being written.
+     */
+    private static class SymbolOutput extends OutputStream {
+        private final OutputStream out;
+        final Map<String, Integer> symbols = new HashMap<String, Integer>();
+        private final Map<Object, Boolean> path = new IdentityHashMap<Object, Boolean>();
+
+        SymbolOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * False if <code>value</code> is being written already, which means it contains itself.
+         */
+        boolean enter(Object value) {
+            return path.put(value, Boolean.TRUE) == null;
+        }
+
+        void leave(Object value) {
+            path.remove(value);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+    }
+
+    /**
+     * The strings read so far.
+     */
+    private static class SymbolInput extends Input {
+        final List<String> symbols = new ArrayList<String>();
+
+        SymbolInput(byte[] data, int offset, int length) {
+            super(data, offset, length);
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+package extension.cache.redis;
+
+import java.util.List;
+
+/**
+ * Sizes the MGETs of bulk reads so that the values fetched at once stay within a memory budget. How many keys fit
+ * is estimated from the average size of the values read so far; the first chunk is kept small as nothing is known
+ * yet. A single value larger than the budget is still read, on its own. Chunks may be read in parallel, each within
+ * the budget.
+ */
+public class ChunkSizer {
+
+    private static final int FIRST = 16;
+
+    private final long budget;
+    private final int max;
+    private long bytes;
+    private long values;
+
+    /**
+     * @param budget bytes of values per chunk
+     * @param max keys per chunk
+     */
+    public ChunkSizer(long budget, int max) {
+        this.budget = budget;
+        this.max = max;
+    }
+
+    /**
+     * How many keys to fetch next.
+     */
+    public synchronized int next() {
+        if (values == 0) return Math.min(FIRST, max);
+        long avg = Math.max(1, bytes / values);
+        return (int) Math.max(1, Math.min(max, budget / avg));
+    }
+
+    public synchronized boolean isKnown() {
+        return values > 0;
+    }
+
+    public synchronized void record(List<byte[]> vals) {
+        for (byte[] val: vals) {
+            if (val == null) continue;
+            bytes += val.length;
+            values++;
+        }
+    }
+
+}
@@ -0,0 +1,525 @@
+package extension.cache.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import lucee.loader.engine.CFMLEngineFactory;
+import lucee.runtime.type.Struct;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.params.SetParams;
+
+/**
+ * Stores values above a size threshold in fixed size chunks, so that no single Redis value (and no single buffer on
+ * either side) has to hold all of them. Values are encoded straight into the chunk buffers, and decoded from the
+ * chunks as they are read, a few at a time.
+ * <p>
+ * The chunks of a value are keys of their own, <code>namespace:__chunk:id:n</code>, which are hidden from key
+ * listings. In a cluster, a hash tag keeps them in the slot of the value. The value itself is just a manifest: the
+ * {@link ValueCodec#CHUNKED} header, the length of the encoded value, the number of chunks and the id of this version
+ * of the value. The chunks are written first, with a short time to live, and then the manifest is set in a
+ * transaction that also gives the chunks the time to live of the value, so readers see the old value or the new one
+ * in full, and the chunks of a write that never completes expire on their own.
+ * <p>
+ * Whenever chunking is enabled, writes and removes read the start of the value they replace in the same transaction,
+ * and if it was a manifest, its chunks are set to expire shortly: not at once, so that readers that got the old
+ * manifest can still finish. Chunked values are always read, whether or not this node writes any.
+ */
+public class ChunkedValues {
+
+    // how long the chunks of a value outlive it, and how long the chunks of an unfinished write live
+    static final long GRACE = 60000;
+    // the metadata header and the manifest fit in this many bytes
+    static final int MANIFEST_SIZE = 64;
+    // chunks read in one pipeline
+    private static final int WINDOW = 4;
+    private static final byte[] MARKER = "__chunk:".getBytes(RedisCache.UTF8);
+
+    private final RedisCache cache;
+    private final long threshold;
+    private final int chunkSize;
+    private final boolean cluster;
+
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder chunksWritten = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder missing = new LongAdder();
+    private final LongAdder released = new LongAdder();
+
+    /**
+     * @param threshold values larger than this many bytes are stored in chunks, 0 to never write chunks
+     */
+    public ChunkedValues(RedisCache cache, long threshold, int chunkSize, boolean cluster) {
+        this.cache = cache;
+        this.threshold = threshold;
+        this.chunkSize = chunkSize;
+        this.cluster = cluster;
+    }
+
+    public boolean isEnabled() {
+        return threshold > 0;
+    }
+
+    /**
+     * Encodes a cache entry like {@link ValueCodec#encodeEntry}, split into chunks if it is larger than the threshold.
+     */
+    public Encoded encode(ValueCodec codec, byte[] prefix, byte[] bkey, Object value, long computeTime, long idle) throws IOException {
+        Output out = new Output(chunkSize);
+        codec.encode(value, out);
+        byte[] header = codec.entryHeader(computeTime, idle);
+        long size = header.length + out.size;
+        byte[] id = size > threshold ? id() : null;
+        byte[] base = id == null ? null : base(prefix, bkey, id);
+        if (base == null) return new Encoded(out.toByteArray(header), null, null, size);
+
+        List<byte[]> chunks = out.chunks();
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream(MANIFEST_SIZE);
+        manifest.write(header);
+        manifest.write(ValueCodec.HEADER | ValueCodec.CHUNKED);
+        BinaryCodec.writeVarLong(manifest, out.size);
+        BinaryCodec.writeVarLong(manifest, chunks.size());
+        manifest.write(id);
+        return new Encoded(manifest.toByteArray(), base, chunks, size);
+    }
+
+    /**
+     * Writes an encoded value to <code>bkey</code> and returns the start of the value it replaced, see
+     * {@link #release}.
+     */
+    public byte[] write(Jedis conn, byte[] bkey, Encoded encoded, int ex) {
+        Pipeline p = conn.pipelined();
+        List<byte[]> chunks = encoded.chunks;
+        if (chunks != null) {
+            SetParams pending = SetParams.setParams().px(GRACE);
+            for (int i = 0; i < chunks.size(); i++) {
+                p.set(key(encoded.base, i), chunks.get(i), pending);
+            }
+        }
+        p.multi();
+        Response<byte[]> old = p.getrange(bkey, 0, MANIFEST_SIZE - 1);
+        if (ex > 0) p.setex(bkey, ex, encoded.data);
+        else p.set(bkey, encoded.data);
+        if (chunks != null) {
+            for (int i = 0; i < chunks.size(); i++) {
+                if (ex > 0) p.pexpire(key(encoded.base, i), ex * 1000L + GRACE);
+                else p.persist(key(encoded.base, i));
+            }
+        }
+        p.exec();
+        p.sync();
+
+        if (chunks != null) {
+            writes.increment();
+            chunksWritten.add(chunks.size());
+            bytesWritten.add(encoded.size);
+        }
+        return get(old);
+    }
+
+    /**
+     * Removes <code>bkey</code> and returns whether it existed. The chunks of a chunked value are released.
+     */
+    public boolean remove(Jedis conn, byte[] bkey) {
+        Pipeline p = conn.pipelined();
+        p.multi();
+        Response<byte[]> old = p.getrange(bkey, 0, MANIFEST_SIZE - 1);
+        Response<Long> del = p.del(bkey);
+        p.exec();
+        p.sync();
+        release(conn, bkey, get(old));
+        return del.get().longValue() > 0;
+    }
+
+    /**
+     * Releases the chunks of whichever of <code>keys</code> are chunked values, before they are removed.
+     */
+    public void releaseAll(Jedis conn, List<byte[]> keys) {
+        Pipeline p = conn.pipelined();
+        List<Response<byte[]>> olds = new ArrayList<Response<byte[]>>(keys.size());
+        for (byte[] key: keys) {
+            olds.add(p.getrange(key, 0, MANIFEST_SIZE - 1));
+        }
+        p.sync();
+
+        List<byte[]> old = new ArrayList<byte[]>(keys.size());
+        for (Response<byte[]> response: olds) {
+            old.add(get(response));
+        }
+        release(conn, keys, old);
+    }
+
+    /**
+     * The reply of a GETRANGE, or null if it failed, e.g. because the value is not a string.
+     */
+    static byte[] get(Response<byte[]> response) {
+        try {
+            return response.get();
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Lets the chunks of a replaced value expire shortly, if <code>old</code>, the start of that value, is a manifest.
+     */
+    public void release(Jedis conn, byte[] bkey, byte[] old) {
+        if (manifest(old) != null) release(conn, Arrays.asList(bkey), Arrays.asList(old));
+    }
+
+    public void release(Jedis conn, List<byte[]> keys, List<byte[]> olds) {
+        Pipeline p = null;
+        for (int i = 0; i < keys.size(); i++) {
+            Manifest m = manifest(olds.get(i));
+            if (m == null) continue;
+            byte[] base = base(cache.keyPrefix(), keys.get(i), m.id);
+            if (base == null) continue;
+            if (p == null) p = conn.pipelined();
+            for (int n = 0; n < m.count; n++) {
+                p.pexpire(key(base, n), GRACE);
+            }
+            released.increment();
+        }
+        if (p != null) p.sync();
+    }
+
+    /**
+     * Gives the chunks of the manifest <code>data</code> of <code>bkey</code> the time to live <code>ttl</code> (in
+     * milliseconds) of the value, plus the grace period, see {@link SlidingExpiration}.
+     */
+    public void touch(Pipeline p, byte[] bkey, byte[] data, long ttl) {
+        Manifest m = manifest(data);
+        if (m == null) return;
+        byte[] base = base(cache.keyPrefix(), bkey, m.id);
+        if (base == null) return;
+        for (int n = 0; n < m.count; n++) {
+            p.pexpire(key(base, n), ttl + GRACE);
+        }
+    }
+
+    /**
+     * Whether <code>data</code> is the manifest of a chunked value.
+     */
+    public static boolean isManifest(byte[] data) {
+        return manifest(data) != null;
+    }
+
+    /**
+     * The length of the encoded value <code>data</code> stands for.
+     */
+    public static long size(byte[] data) {
+        Manifest m = manifest(data);
+        return m == null ? data.length : m.size;
+    }
+
+    /**
+     * The encoded value of the manifest <code>data</code> of <code>bkey</code>, read from its chunks as it is
+     * consumed. Fails with a {@link MissingChunkException} if they expired or were removed meanwhile.
+     */
+    public InputStream open(byte[] bkey, byte[] data) throws IOException {
+        Manifest m = manifest(data);
+        if (m == null) throw new IOException("not the manifest of a chunked value");
+        byte[] base = base(cache.keyPrefix(), bkey, m.id);
+        if (base == null) throw new IOException("the chunks of [" + new String(bkey, RedisCache.UTF8) + "] cannot be located");
+        reads.increment();
+        return new Input(bkey, base, m);
+    }
+
+    /**
+     * Whether <code>key</code> is the chunk of a value rather than a value.
+     */
+    public static boolean isChunk(byte[] prefix, byte[] key) {
+        int off = prefix == null ? 0 : prefix.length;
+        if (key.length < off + MARKER.length) return false;
+        for (int i = 0; i < MARKER.length; i++) {
+            if (key[off + i] != MARKER[i]) return false;
+        }
+        return true;
+    }
+
+    private static byte[] id() {
+        return String.format("%016x", ThreadLocalRandom.current().nextLong()).getBytes(RedisCache.UTF8);
+    }
+
+    /**
+     * The keys of the chunks, up to their number. In a cluster, they have to be in the slot of <code>bkey</code>;
+     * returns null if no hash tag can get them there.
+     */
+    private byte[] base(byte[] prefix, byte[] bkey, byte[] id) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(64);
+        if (prefix != null) os.write(prefix, 0, prefix.length);
+        os.write(MARKER, 0, MARKER.length);
+        os.write(id, 0, id.length);
+        os.write(':');
+        byte[] base = os.toByteArray();
+        if (!cluster || ClusterRouter.slot(base) == ClusterRouter.slot(bkey)) return base;
+
+        os.reset();
+        if (prefix != null) os.write(prefix, 0, prefix.length);
+        os.write(MARKER, 0, MARKER.length);
+        os.write('{');
+        byte[] tag = hashTag(bkey);
+        os.write(tag, 0, tag.length);
+        os.write('}');
+        os.write(':');
+        os.write(id, 0, id.length);
+        os.write(':');
+        base = os.toByteArray();
+        return ClusterRouter.slot(base) == ClusterRouter.slot(bkey) ? base : null;
+    }
+
+    /**
+     * The part of <code>bkey</code> its slot is computed from.
+     */
+    private static byte[] hashTag(byte[] bkey) {
+        int open = -1;
+        for (int i = 0; i < bkey.length; i++) {
+            if (open == -1 && bkey[i] == '{') open = i;
+            else if (open != -1 && bkey[i] == '}') {
+                if (i > open + 1) return Arrays.copyOfRange(bkey, open + 1, i);
+                break;
+            }
+        }
+        return bkey;
+    }
+
+    private static byte[] key(byte[] base, int n) {
+        byte[] digits = Integer.toString(n).getBytes(RedisCache.UTF8);
+        byte[] key = Arrays.copyOf(base, base.length + digits.length);
+        System.arraycopy(digits, 0, key, base.length, digits.length);
+        return key;
+    }
+
+    private static Manifest manifest(byte[] data) {
+        if (data == null || data.length < 2) return null;
+        try {
+            int off = ValueCodec.valueOffset(data);
+            if (off >= data.length || (data[off] & 0xFF) != (ValueCodec.HEADER | ValueCodec.CHUNKED)) return null;
+            BinaryCodec.Input in = new BinaryCodec.Input(data, off + 1, data.length - off - 1);
+            long size = in.readVarLong();
+            long count = in.readVarLong();
+            if (count <= 0 || count > Integer.MAX_VALUE || in.pos >= in.end) return null;
+            return new Manifest(size, (int) count, Arrays.copyOfRange(data, in.pos, in.end));
+        }
+        catch (IOException e) {
+            // a value that merely starts like a manifest, or one cut short
+            return null;
+        }
+    }
+
+    public Struct getInfo() {
+        Struct info = CFMLEngineFactory.getInstance().getCreationUtil().createStruct();
+        info.setEL("threshold", Double.valueOf(threshold));
+        info.setEL("chunk_size", Double.valueOf(chunkSize));
+        info.setEL("chunked_writes", Double.valueOf(writes.sum()));
+        info.setEL("chunks_written", Double.valueOf(chunksWritten.sum()));
+        info.setEL("bytes_written", Double.valueOf(bytesWritten.sum()));
+        info.setEL("chunked_reads", Double.valueOf(reads.sum()));
+        info.setEL("missing_chunks", Double.valueOf(missing.sum()));
+        info.setEL("released_values", Double.valueOf(released.sum()));
+        return info;
+    }
+
+    /**
+     * A value ready to be written: the value itself or the manifest of its chunks.
+     */
+    public static class Encoded {
+        final byte[] data;
+        final byte[] base;
+        final List<byte[]> chunks;
+        final long size;
+
+        Encoded(byte[] data, byte[] base, List<byte[]> chunks, long size) {
+            this.data = data;
+            this.base = base;
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        public boolean isChunked() {
+            return chunks != null;
+        }
+    }
+
+    /**
+     * Thrown when the chunks of a value are gone, which means that the value expired or was replaced.
+     */
+    public static class MissingChunkException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        MissingChunkException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Manifest {
+        final long size;
+        final int count;
+        final byte[] id;
+
+        Manifest(long size, int count, byte[] id) {
+            this.size = size;
+            this.count = count;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Collects what is written in chunks of <code>chunkSize</code> bytes. The first chunk starts small and grows, so
+     * that values well below the chunk size do not take a whole chunk.
+     */
+    private static class Output extends OutputStream {
+        private final int chunkSize;
+        private final List<byte[]> full = new ArrayList<byte[]>();
+        private byte[] current;
+        private int pos;
+        long size;
+
+        Output(int chunkSize) {
+            this.chunkSize = chunkSize;
+            current = new byte[Math.min(256, chunkSize)];
+        }
+
+        @Override
+        public void write(int b) {
+            if (pos == current.length) next();
+            current[pos++] = (byte) b;
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            int n;
+            while (len > 0) {
+                if (pos == current.length) next();
+                n = Math.min(len, current.length - pos);
+                System.arraycopy(b, off, current, pos, n);
+                pos += n;
+                off += n;
+                len -= n;
+                size += n;
+            }
+        }
+
+        private void next() {
+            if (current.length < chunkSize) {
+                current = Arrays.copyOf(current, (int) Math.min(chunkSize, current.length * 2L));
+                return;
+            }
+            full.add(current);
+            current = new byte[chunkSize];
+            pos = 0;
+        }
+
+        List<byte[]> chunks() {
+            List<byte[]> chunks = new ArrayList<byte[]>(full);
+            if (pos > 0) chunks.add(pos == current.length ? current : Arrays.copyOf(current, pos));
+            return chunks;
+        }
+
+        byte[] toByteArray(byte[] header) {
+            byte[] data = new byte[(int) (header.length + size)];
+            System.arraycopy(header, 0, data, 0, header.length);
+            int off = header.length;
+            for (byte[] chunk: full) {
+                System.arraycopy(chunk, 0, data, off, chunk.length);
+                off += chunk.length;
+            }
+            System.arraycopy(current, 0, data, off, pos);
+            return data;
+        }
+    }
+
+    /**
+     * Reads the chunks of a value, {@link #WINDOW} at a time in one pipeline, handing each one over as soon as it was
+     * consumed.
+     */
+    private class Input extends InputStream {
+        private final byte[] bkey;
+        private final byte[] base;
+        private final Manifest manifest;
+        private final List<byte[]> window = new ArrayList<byte[]>(WINDOW);
+        private int next;
+        private byte[] current;
+        private int pos;
+        private long read;
+
+        Input(byte[] bkey, byte[] base, Manifest manifest) {
+            this.bkey = bkey;
+            this.base = base;
+            this.manifest = manifest;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!advance()) return -1;
+            read++;
+            return current[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!advance()) return -1;
+            int n = Math.min(len, current.length - pos);
+            System.arraycopy(current, pos, b, off, n);
+            pos += n;
+            read += n;
+            return n;
+        }
+
+        /**
+         * Moves on to the next chunk once the current one is consumed. Returns false at the end of the value.
+         */
+        private boolean advance() throws IOException {
+            while (current == null || pos == current.length) {
+                if (window.isEmpty()) {
+                    if (next == manifest.count) {
+                        if (read != manifest.size) throw new IOException("chunked value is [" + read + "] bytes rather than [" + manifest.size + "]");
+                        return false;
+                    }
+                    fetch();
+                }
+                current = window.remove(0);
+                pos = 0;
+            }
+            return true;
+        }
+
+        private void fetch() throws IOException {
+            int from = next;
+            int to = Math.min(manifest.count, from + WINDOW);
+            List<byte[]> chunks = cache.execute(bkey, (conn) -> {
+                Pipeline p = conn.pipelined();
+                List<Response<byte[]>> responses = new ArrayList<Response<byte[]>>(to - from);
+                for (int n = from; n < to; n++) {
+                    responses.add(p.get(key(base, n)));
+                }
+                p.sync();
+                List<byte[]> list = new ArrayList<byte[]>(responses.size());
+                for (Response<byte[]> response: responses) {
+                    list.add(response.get());
+                }
+                return list;
+            });
+            for (byte[] chunk: chunks) {
+                if (chunk == null) {
+                    missing.increment();
+                    throw new MissingChunkException("chunk of [" + new String(bkey, RedisCache.UTF8) + "] expired or was removed");
+                }
+            }
+            window.addAll(chunks);
+            next = to;
+        }
+    }
+
+}
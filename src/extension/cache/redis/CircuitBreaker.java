@@ -0,0 +1,368 @@
+package extension.cache.redis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import lucee.loader.engine.CFMLEngineFactory;
+import lucee.runtime.type.Struct;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * Keeps a stalled or unreachable Redis from holding up every request for the full connection timeout. After
+ * <code>threshold</code> failed (or slow) calls in a row the circuit opens, and calls are turned away at once with
+ * an {@link OpenException}: reads miss, or are served from a small local fallback cache, and writes are dropped or
+ * buffered, see {@link RedisCache}. Once the circuit has been open for its backoff, a single caller probes Redis
+ * (half open): if that succeeds the circuit closes and buffered writes are replayed in the background, otherwise it
+ * opens again for twice as long, up to <code>maxBackoff</code>.
+ * <p>
+ * Values served from the fallback cache may be stale, up to its time to live, since writes of other nodes are not
+ * seen while Redis is unavailable. Like those of the near cache they are copies, and buffered writes are read from
+ * the bytes they are replayed with, so no read shares an object with a writer or another read. Buffered writes are
+ * replayed in no particular order, at most one per key; a write of a key whose buffered write is being replayed
+ * waits for it, so that it is not overwritten by the older one.
+ */
+public class CircuitBreaker {
+
+    public static final String DROP = "drop";
+    public static final String BUFFER = "buffer";
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+    private static final String[] STATES = { "closed", "open", "half_open" };
+    private static final int BATCH_SIZE = 500;
+
+    private final RedisCache cache;
+    private final String cacheName;
+    private final int threshold;
+    private final long slowCall;
+    private final long minBackoff;
+    private final long maxBackoff;
+    private final int bufferSize;
+    private final NearCache fallback;
+
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+    private final AtomicInteger consecutive = new AtomicInteger();
+    private volatile long backoff;
+    private volatile long retryAt;
+    private volatile long openedAt;
+
+    // by key, like the write-behind queue
+    private final ConcurrentHashMap<String, WriteBehindQueue.PendingWrite> buffered = new ConcurrentHashMap<String, WriteBehindQueue.PendingWrite>();
+    // taken out of buffered by the replay, until Redis answered
+    private final ConcurrentHashMap<String, WriteBehindQueue.PendingWrite> replayed = new ConcurrentHashMap<String, WriteBehindQueue.PendingWrite>();
+    private final AtomicBoolean replaying = new AtomicBoolean();
+    private final Object replayLock = new Object();
+
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder slowCalls = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder probes = new LongAdder();
+    private final LongAdder fallbackHits = new LongAdder();
+    private final LongAdder bufferedWrites = new LongAdder();
+    private final LongAdder droppedWrites = new LongAdder();
+    private final LongAdder replayedWrites = new LongAdder();
+
+    /**
+     * @param slowCall in milliseconds, calls that take longer count as failures; 0 to only count errors
+     * @param minBackoff how long the circuit stays open the first time, in milliseconds
+     * @param maxBackoff how long it stays open at most, in milliseconds
+     * @param bufferSize how many writes are buffered while it is open, 0 to drop them
+     * @param fallbackSize how many values read or written while it is closed are kept to be served while it is not,
+     * 0 for none
+     */
+    public CircuitBreaker(RedisCache cache, String cacheName, int threshold, long slowCall, long minBackoff, long maxBackoff, int bufferSize, int fallbackSize,
+            long fallbackTTL) {
+        this.cache = cache;
+        this.cacheName = cacheName;
+        this.threshold = threshold;
+        this.slowCall = slowCall * 1000000;
+        this.minBackoff = minBackoff;
+        this.maxBackoff = Math.max(minBackoff, maxBackoff);
+        this.bufferSize = bufferSize;
+        this.fallback = fallbackSize > 0 ? new NearCache(fallbackSize, 0, fallbackTTL) : null;
+        this.backoff = minBackoff;
+    }
+
+    public boolean isClosed() {
+        return state.get() == CLOSED;
+    }
+
+    /**
+     * Called when the circuit is not closed: returns true for the one caller that gets to probe Redis once the
+     * backoff is over, which has to report back with {@link #success} or {@link #failure}.
+     */
+    public boolean tryProbe() {
+        if (System.currentTimeMillis() < retryAt || !state.compareAndSet(OPEN, HALF_OPEN)) return false;
+        probes.increment();
+        return true;
+    }
+
+    /**
+     * The exception to turn a call away with.
+     */
+    public OpenException reject() {
+        rejected.increment();
+        return new OpenException();
+    }
+
+    /**
+     * Records a call that got an answer from Redis after <code>nanos</code>.
+     */
+    public void success(long nanos) {
+        if (slowCall > 0 && nanos > slowCall) {
+            slowCalls.increment();
+            failed();
+            return;
+        }
+        consecutive.set(0);
+        if (state.compareAndSet(HALF_OPEN, CLOSED)) backoff = minBackoff;
+    }
+
+    /**
+     * Records a call that failed to reach Redis.
+     */
+    public void failure() {
+        failures.increment();
+        failed();
+    }
+
+    private void failed() {
+        if (state.compareAndSet(HALF_OPEN, OPEN)) {
+            // the probe failed, wait longer next time
+            backoff = Math.min(backoff * 2, maxBackoff);
+            retryAt = System.currentTimeMillis() + backoff;
+            return;
+        }
+        if (consecutive.incrementAndGet() >= threshold && state.compareAndSet(CLOSED, OPEN)) {
+            opened.increment();
+            openedAt = System.currentTimeMillis();
+            retryAt = openedAt + backoff;
+        }
+    }
+
+    /**
+     * Buffers a write (or a remove) that could not be sent, unless it is a chunked value. Returns false if it was
+     * dropped, by policy or because the buffer is full; it is still remembered for the fallback cache.
+     */
+    public boolean buffer(WriteBehindQueue.PendingWrite write, boolean chunked) {
+        remember(write.key, write.value, write.isRemove() ? 0 : ChunkedValues.size(write.data));
+        if (!chunked && bufferSize > 0 && (buffered.size() < bufferSize || buffered.containsKey(write.key))) {
+            buffered.put(write.key, write);
+            bufferedWrites.increment();
+            return true;
+        }
+        // an older write must not be replayed over this one
+        buffered.remove(write.key);
+        droppedWrites.increment();
+        return false;
+    }
+
+    /**
+     * Records a write that could not be sent and cannot be buffered either, like that of a scope.
+     */
+    public void drop(String key) {
+        // an older write must not be replayed over this one
+        buffered.remove(key);
+        droppedWrites.increment();
+    }
+
+    /**
+     * Records a write of keys that are not known here, like the invalidation of a tag: none of the values kept for
+     * the fallback cache can be trusted anymore.
+     */
+    public void dropAll() {
+        if (fallback != null) fallback.invalidateAll();
+        droppedWrites.increment();
+    }
+
+    /**
+     * The buffered write of the given (normalized) key, if any. Reads have to see these until they are replayed,
+     * decoded from <code>data</code> rather than as the object that was put, which its writer may still change.
+     */
+    public WriteBehindQueue.PendingWrite buffered(String key) {
+        WriteBehindQueue.PendingWrite write = buffered.isEmpty() ? null : buffered.get(key);
+        if (write == null && !replayed.isEmpty()) write = replayed.get(key);
+        return write;
+    }
+
+    /**
+     * Called before a write of <code>key</code> is sent: an older one that is still buffered must not be replayed
+     * over it, and one that is being replayed has to be in Redis first.
+     */
+    public void writing(String key) throws IOException {
+        if (buffered.isEmpty() && replayed.isEmpty()) return;
+        buffered.remove(key);
+        if (!replayed.containsKey(key)) return;
+        synchronized (replayLock) {
+            try {
+                while (replayed.containsKey(key)) {
+                    replayLock.wait();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+        // it failed and was buffered again
+        buffered.remove(key);
+    }
+
+    /**
+     * A write of <code>key</code> went through.
+     */
+    public void wrote(String key, Object value, long size) {
+        remember(key, value, size);
+    }
+
+    /**
+     * Keeps a value that was read or written, to be served while the circuit is open. Null forgets the key.
+     */
+    public void remember(String key, Object value, long size) {
+        if (fallback == null) return;
+        if (value == null) fallback.invalidate(key);
+        else fallback.put(key, value, size, null, fallback.generation());
+    }
+
+    public boolean hasFallback() {
+        return fallback != null;
+    }
+
+    /**
+     * The value kept for <code>key</code> while the circuit is closed, if any.
+     */
+    public NearCache.Entry fallback(String key) {
+        if (fallback == null) return null;
+        NearCache.Entry entry = fallback.get(key);
+        if (entry != null) fallbackHits.increment();
+        return entry;
+    }
+
+    /**
+     * Writes what was buffered while the circuit was open, in pipelined batches, on a thread of its own so that the
+     * caller that closed the circuit does not wait for it. Reads see buffered writes until then. Whatever fails stays
+     * buffered, for the next time the circuit closes.
+     */
+    public void replay() {
+        if (buffered.isEmpty() || !replaying.compareAndSet(false, true)) return;
+        Thread t = new Thread(() -> {
+            try {
+                _replay();
+            }
+            finally {
+                synchronized (replayLock) {
+                    replaying.set(false);
+                    replayLock.notifyAll();
+                }
+            }
+        }, "redis-circuit-breaker-replay-" + cacheName);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Waits for a replay that is under way, for callers that read from Redis what may still be buffered.
+     */
+    public void awaitReplay() throws IOException {
+        if (!replaying.get()) return;
+        synchronized (replayLock) {
+            try {
+                while (replaying.get()) {
+                    replayLock.wait();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private void _replay() {
+        List<WriteBehindQueue.PendingWrite> batch = new ArrayList<WriteBehindQueue.PendingWrite>(Math.min(BATCH_SIZE, buffered.size()));
+        while (!buffered.isEmpty() && isClosed()) {
+            batch.clear();
+            Iterator<WriteBehindQueue.PendingWrite> it = buffered.values().iterator();
+            while (it.hasNext() && batch.size() < BATCH_SIZE) {
+                WriteBehindQueue.PendingWrite write = it.next();
+                // under the lock of the key, so that a write of it either removed it first or sees it replayed
+                buffered.computeIfPresent(write.key, (k, v) -> {
+                    if (v != write) return v;
+                    replayed.put(k, v);
+                    return null;
+                });
+                if (replayed.get(write.key) == write) batch.add(write);
+            }
+            Map<WriteBehindQueue.PendingWrite, Exception> failed = null;
+            try {
+                failed = cache.write(batch);
+            }
+            catch (Exception e) {
+                if (!(e instanceof OpenException)) failure();
+            }
+            finally {
+                synchronized (replayLock) {
+                    for (WriteBehindQueue.PendingWrite write: batch) {
+                        // unless it was replaced in the meantime
+                        if (failed == null || failed.containsKey(write)) buffered.putIfAbsent(write.key, write);
+                        replayed.remove(write.key, write);
+                    }
+                    replayLock.notifyAll();
+                }
+            }
+            if (failed == null) return;
+            replayedWrites.add(batch.size() - failed.size());
+            // Redis answered, but turned some down; they are tried again the next time
+            if (!failed.isEmpty()) return;
+        }
+    }
+
+    public Struct getInfo() {
+        Struct info = CFMLEngineFactory.getInstance().getCreationUtil().createStruct();
+        int s = state.get();
+        info.setEL("state", STATES[s]);
+        info.setEL("consecutive_failures", Double.valueOf(consecutive.get()));
+        info.setEL("backoff", Double.valueOf(backoff));
+        info.setEL("retry_in", Double.valueOf(s == CLOSED ? 0 : Math.max(0, retryAt - System.currentTimeMillis())));
+        info.setEL("open_for", Double.valueOf(s == CLOSED ? 0 : System.currentTimeMillis() - openedAt));
+        info.setEL("failure_count", Double.valueOf(failures.sum()));
+        info.setEL("slow_call_count", Double.valueOf(slowCalls.sum()));
+        info.setEL("opened_count", Double.valueOf(opened.sum()));
+        info.setEL("rejected_count", Double.valueOf(rejected.sum()));
+        info.setEL("probe_count", Double.valueOf(probes.sum()));
+        info.setEL("fallback_hits", Double.valueOf(fallbackHits.sum()));
+        info.setEL("buffered", Double.valueOf(buffered.size()));
+        info.setEL("buffered_writes", Double.valueOf(bufferedWrites.sum()));
+        info.setEL("dropped_writes", Double.valueOf(droppedWrites.sum()));
+        info.setEL("replayed_writes", Double.valueOf(replayedWrites.sum()));
+        if (fallback != null) info.setEL("Fallback", fallback.getInfo());
+        return info;
+    }
+
+    /**
+     * Thrown instead of calling Redis while the circuit is open. It is thrown a lot and says nothing a stack trace
+     * would add to, so it has none.
+     */
+    public static class OpenException extends JedisConnectionException {
+        private static final long serialVersionUID = 1L;
+
+        OpenException() {
+            super("the circuit to Redis is open");
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+}
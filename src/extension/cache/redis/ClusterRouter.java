@@ -0,0 +1,156 @@
+package extension.cache.redis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.util.JedisClusterCRC16;
+
+/**
+ * Slot map of a Redis Cluster, with a connection pool per node. The map is read with CLUSTER SLOTS from any known
+ * node and refreshed when a key turns out to have moved; the pools of nodes that no longer serve any slot are closed
+ * then, unless they are seeds.
+ */
+public class ClusterRouter {
+
+    public static final int SLOTS = 16384;
+
+    private final JedisPoolConfig poolConfig;
+    private final int timeout;
+    private final String password;
+    private final Set<HostAndPort> seeds;
+
+    private final ConcurrentHashMap<HostAndPort, JedisPool> pools = new ConcurrentHashMap<HostAndPort, JedisPool>();
+    private volatile JedisPool[] slots = new JedisPool[SLOTS];
+    private volatile List<JedisPool> masters = new ArrayList<JedisPool>();
+    private final Object discoverLock = new Object();
+    private volatile long discovered;
+
+    public ClusterRouter(Collection<HostAndPort> seeds, JedisPoolConfig poolConfig, int timeout, String password) {
+        this.seeds = new LinkedHashSet<HostAndPort>(seeds);
+        this.poolConfig = poolConfig;
+        this.timeout = timeout;
+        this.password = password;
+    }
+
+    public static int slot(byte[] key) {
+        return JedisClusterCRC16.getSlot(key);
+    }
+
+    /**
+     * Pool of the node that owns the slot of <code>key</code>.
+     */
+    public JedisPool pool(byte[] key) throws IOException {
+        int slot = slot(key);
+        JedisPool pool = slots[slot];
+        if (pool == null) {
+            discover();
+            pool = slots[slot];
+            if (pool == null) throw new IOException("no cluster node serves slot [" + slot + "]");
+        }
+        return pool;
+    }
+
+    public JedisPool pool(HostAndPort node) {
+        JedisPool pool = pools.get(node);
+        if (pool == null) {
+            pool = new JedisPool(poolConfig, node.getHost(), node.getPort(), timeout, password);
+            JedisPool existing = pools.putIfAbsent(node, pool);
+            if (existing != null) {
+                pool.close();
+                pool = existing;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Pools of all primaries, for operations that have to visit the whole keyspace.
+     */
+    public List<JedisPool> masters() throws IOException {
+        if (masters.isEmpty()) discover();
+        return masters;
+    }
+
+    /**
+     * Reads the slot map again. Concurrent callers (e.g. after a failover, when every thread sees a MOVED at once)
+     * share a single refresh.
+     */
+    public void discover() throws IOException {
+        long requested = System.nanoTime();
+        synchronized (discoverLock) {
+            if (discovered > requested) return;
+
+            Set<HostAndPort> candidates = new LinkedHashSet<HostAndPort>(pools.keySet());
+            candidates.addAll(seeds);
+            Exception last = null;
+            for (HostAndPort node: candidates) {
+                Jedis conn = null;
+                try {
+                    conn = pool(node).getResource();
+                    load(node, conn.clusterSlots());
+                    discovered = System.nanoTime();
+                    return;
+                }
+                catch (Exception e) {
+                    last = e;
+                }
+                finally {
+                    if (conn != null) conn.close();
+                }
+            }
+            throw new IOException("could not read the slot map from any cluster node", last);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void load(HostAndPort from, List<Object> ranges) {
+        JedisPool[] map = new JedisPool[SLOTS];
+        Map<HostAndPort, JedisPool> primaries = new LinkedHashMap<HostAndPort, JedisPool>();
+        for (Object o: ranges) {
+            List<Object> range = (List<Object>) o;
+            int start = ((Long) range.get(0)).intValue();
+            int end = ((Long) range.get(1)).intValue();
+            HostAndPort node = toNode(from, (List<Object>) range.get(2));
+            JedisPool pool = pool(node);
+            primaries.put(node, pool);
+            for (int slot = start; slot <= end; slot++) {
+                map[slot] = pool;
+            }
+        }
+        slots = map;
+        masters = new ArrayList<JedisPool>(primaries.values());
+
+        // nodes that left the cluster, or are replicas now, hold on to idle connections otherwise
+        for (Map.Entry<HostAndPort, JedisPool> e: pools.entrySet()) {
+            if (primaries.containsKey(e.getKey()) || seeds.contains(e.getKey())) continue;
+            if (pools.remove(e.getKey(), e.getValue())) e.getValue().close();
+        }
+    }
+
+    private static HostAndPort toNode(HostAndPort from, List<Object> info) {
+        String host = new String((byte[]) info.get(0), RedisCache.UTF8);
+        int port = ((Long) info.get(1)).intValue();
+        // an empty host means the node we asked
+        if (host.isEmpty()) host = from.getHost();
+        return new HostAndPort(host, port);
+    }
+
+    public void close() {
+        for (JedisPool pool: pools.values()) {
+            pool.close();
+        }
+        pools.clear();
+    }
+
+}
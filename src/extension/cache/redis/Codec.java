@@ -0,0 +1,33 @@
+package extension.cache.redis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Turns cache values into bytes and back. Every codec has a fixed id, which {@link ValueCodec} stores in the
+ * header byte of the values the codec wrote so that they can be decoded without guessing; Java serialized values are
+ * the exception, their stream magic tells them apart.
+ */
+public interface Codec {
+
+    /**
+     * Id stored in the header byte, between 0 and {@link ValueCodec#MAX_CODEC_ID}.
+     */
+    int id();
+
+    boolean supports(Object value);
+
+    void encode(Object value, OutputStream out) throws IOException;
+
+    Object decode(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Decodes a value from a stream, which is read to the end. By default the stream is read whole first.
+     */
+    default Object decode(InputStream in) throws IOException {
+        byte[] data = in.readAllBytes();
+        return decode(data, 0, data.length);
+    }
+
+}
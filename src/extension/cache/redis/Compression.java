@@ -0,0 +1,151 @@
+package extension.cache.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import lucee.loader.engine.CFMLEngineFactory;
+import lucee.runtime.type.Struct;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+/**
+ * Compresses encoded values above a size threshold. A compressed value is the header byte of the algorithm used,
+ * the length of the uncompressed value as a varint, and the compressed bytes of the uncompressed value (which
+ * carries its own header). Compressed values are always read, whether or not this node compresses the values it
+ * writes.
+ */
+public class Compression {
+
+    public static final String NONE = "none";
+    public static final String LZ4 = "lz4";
+    public static final String DEFLATE = "deflate";
+
+    private static final LZ4Factory lz4 = LZ4Factory.fastestJavaInstance();
+
+    private final int algorithm;
+    private final int threshold;
+
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder incompressible = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder decompressed = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+
+    public Compression(String algorithm, int threshold) {
+        if (LZ4.equalsIgnoreCase(algorithm)) this.algorithm = ValueCodec.LZ4;
+        else if (DEFLATE.equalsIgnoreCase(algorithm)) this.algorithm = ValueCodec.DEFLATE;
+        else this.algorithm = -1;
+        this.threshold = threshold;
+    }
+
+    public boolean isEnabled() {
+        return algorithm != -1;
+    }
+
+    /**
+     * Returns the compressed form of <code>data</code>, or null if it is below the threshold or does not get smaller.
+     */
+    public byte[] compress(byte[] data) throws IOException {
+        if (algorithm == -1 || data.length < threshold) return null;
+
+        long start = System.nanoTime();
+        ByteArrayOutputStream os = new ByteArrayOutputStream(data.length / 2 + 16);
+        os.write(ValueCodec.HEADER | algorithm);
+        BinaryCodec.writeVarLong(os, data.length);
+
+        if (algorithm == ValueCodec.LZ4) {
+            LZ4Compressor compressor = lz4.fastCompressor();
+            byte[] buffer = new byte[compressor.maxCompressedLength(data.length)];
+            int len = compressor.compress(data, 0, data.length, buffer, 0, buffer.length);
+            os.write(buffer, 0, len);
+        }
+        else {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                byte[] buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    os.write(buffer, 0, deflater.deflate(buffer));
+                }
+            }
+            finally {
+                deflater.end();
+            }
+        }
+        compressNanos.add(System.nanoTime() - start);
+
+        if (os.size() >= data.length) {
+            incompressible.increment();
+            return null;
+        }
+        compressed.increment();
+        bytesIn.add(data.length);
+        bytesOut.add(os.size());
+        return os.toByteArray();
+    }
+
+    /**
+     * Decompresses the part of a compressed value that follows its header byte.
+     */
+    public byte[] decompress(int algorithm, byte[] data, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        BinaryCodec.Input in = new BinaryCodec.Input(data, offset, length);
+        long size = in.readVarLong();
+        if (size < 0 || size > Integer.MAX_VALUE) throw new IOException("invalid uncompressed length [" + size + "]");
+
+        byte[] result = new byte[(int) size];
+        if (algorithm == ValueCodec.LZ4) {
+            LZ4SafeDecompressor decompressor = lz4.safeDecompressor();
+            int len = decompressor.decompress(data, in.pos, in.end - in.pos, result, 0, result.length);
+            if (len != result.length) throw new IOException("corrupt lz4 compressed value");
+        }
+        else {
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(data, in.pos, in.end - in.pos);
+                int len = 0;
+                while (len < result.length) {
+                    int n = inflater.inflate(result, len, result.length - len);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+                    len += n;
+                }
+                if (len != result.length) throw new IOException("corrupt deflate compressed value");
+            }
+            catch (DataFormatException e) {
+                throw new IOException(e);
+            }
+            finally {
+                inflater.end();
+            }
+        }
+        decompressed.increment();
+        decompressNanos.add(System.nanoTime() - start);
+        return result;
+    }
+
+    public Struct getInfo() {
+        Struct info = CFMLEngineFactory.getInstance().getCreationUtil().createStruct();
+        long in = bytesIn.sum();
+        long out = bytesOut.sum();
+        info.setEL("algorithm", algorithm == ValueCodec.LZ4 ? LZ4 : algorithm == ValueCodec.DEFLATE ? DEFLATE : NONE);
+        info.setEL("threshold", Double.valueOf(threshold));
+        info.setEL("compressed_count", Double.valueOf(compressed.sum()));
+        info.setEL("incompressible_count", Double.valueOf(incompressible.sum()));
+        info.setEL("bytes_before", Double.valueOf(in));
+        info.setEL("bytes_after", Double.valueOf(out));
+        info.setEL("ratio", Double.valueOf(out == 0 ? 0 : (double) in / out));
+        info.setEL("compress_time_ms", Double.valueOf(compressNanos.sum() / 1000000d));
+        info.setEL("decompressed_count", Double.valueOf(decompressed.sum()));
+        info.setEL("decompress_time_ms", Double.valueOf(decompressNanos.sum() / 1000000d));
+        return info;
+    }
+
+}
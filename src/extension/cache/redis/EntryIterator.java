@@ -0,0 +1,144 @@
+package extension.cache.redis;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import lucee.commons.io.cache.CacheEntry;
+import lucee.commons.io.cache.CacheEntryFilter;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+/**
+ * Walks the entries of a cache without holding more than a bounded part of them in memory: one SCAN batch of keys
+ * at a time, whose values are fetched in chunks sized by a {@link ChunkSizer} and deserialized one by one as the
+ * entries are consumed. Connections are only borrowed for each SCAN and MGET, so an iterator that is dropped
+ * halfway holds on to nothing. In a cluster, the primaries are walked one after the other.
+ * <p>
+ * Like SCAN, an entry that is added or removed meanwhile may or may not be returned, and an entry may be returned
+ * twice. If the circuit to Redis opens, see {@link CircuitBreaker}, the iteration ends with what was returned so far.
+ */
+public class EntryIterator implements Iterator<CacheEntry> {
+
+    private final RedisCache cache;
+    private final RedisCache.KeyScan scan;
+    private final CacheEntryFilter entryFilter;
+    private final List<JedisPool> nodes;
+    private final ChunkSizer sizer;
+
+    private int node;
+    private byte[] cursor;
+    private final Deque<byte[]> scanned = new ArrayDeque<byte[]>();
+    private List<byte[]> keys = Collections.emptyList();
+    private List<byte[]> values = Collections.emptyList();
+    private List<RedisCacheEntry.Metadata> metadata;
+    private int index;
+    private CacheEntry next;
+
+    EntryIterator(RedisCache cache, RedisCache.KeyScan scan, CacheEntryFilter entryFilter, List<JedisPool> nodes, ChunkSizer sizer) {
+        this.cache = cache;
+        this.scan = scan;
+        this.entryFilter = CacheUtil.allowAll(entryFilter) ? null : entryFilter;
+        this.nodes = nodes;
+        this.sizer = sizer;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            if (index < values.size()) {
+                int i = index++;
+                byte[] val = values.get(i);
+                // expired or removed since it was scanned
+                if (val == null) continue;
+                byte[] key = keys.get(i);
+                // hand over what is no longer needed as soon as possible
+                values.set(i, null);
+                CacheEntry entry = cache.toEntry(key, val, metadata == null ? null : metadata.get(i));
+                if (entry != null && (entryFilter == null || entryFilter.accept(entry))) next = entry;
+            }
+            else if (!scanned.isEmpty()) fetch();
+            else if (!scan()) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public CacheEntry next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        CacheEntry entry = next;
+        next = null;
+        return entry;
+    }
+
+    private void fetch() {
+        int n = Math.min(sizer.next(), scanned.size());
+        List<byte[]> chunk = new ArrayList<byte[]>(n);
+        for (int i = 0; i < n; i++) {
+            chunk.add(scanned.poll());
+        }
+        JedisPool pool = nodes.get(node);
+        Object[] result;
+        try {
+            result = cache.onNode(pool, (conn) -> cache.fetch(conn, chunk, entryFilter != null));
+        }
+        catch (CircuitBreaker.OpenException e) {
+            stop();
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        List<RedisCacheEntry.Metadata> m = (List<RedisCacheEntry.Metadata>) result[0];
+        @SuppressWarnings("unchecked")
+        List<byte[]> v = (List<byte[]>) result[1];
+        sizer.record(v);
+        keys = chunk;
+        values = new ArrayList<byte[]>(v);
+        metadata = m;
+        index = 0;
+    }
+
+    /**
+     * Scans the next batch of keys, moving on to the next node when one is done. Returns false once all nodes are.
+     */
+    private boolean scan() {
+        while (node < nodes.size()) {
+            if (cursor != null && isStart(cursor)) {
+                node++;
+                cursor = null;
+                continue;
+            }
+            byte[] c = cursor == null ? ScanParams.SCAN_POINTER_START_BINARY : cursor;
+            ScanResult<byte[]> result;
+            try {
+                result = cache.onNode(nodes.get(node), (conn) -> conn.scan(c, scan.params));
+            }
+            catch (CircuitBreaker.OpenException e) {
+                stop();
+                return false;
+            }
+            cursor = result.getCursorAsBytes();
+            scanned.addAll(scan.filter(result.getResult()));
+            if (!scanned.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Ends the iteration early, the circuit to Redis opened halfway.
+     */
+    private void stop() {
+        scanned.clear();
+        values = Collections.emptyList();
+        node = nodes.size();
+    }
+
+    private static boolean isStart(byte[] cursor) {
+        return cursor.length == 1 && cursor[0] == '0';
+    }
+
+}
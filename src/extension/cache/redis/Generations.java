@@ -0,0 +1,238 @@
+package extension.cache.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import lucee.loader.engine.CFMLEngineFactory;
+import lucee.runtime.type.Struct;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.params.SetParams;
+
+/**
+ * Clears a cache in constant time by moving it to a new generation. Keys are stored as
+ * <code>namespace:generation:key</code>, and the current generation is a counter in Redis, so incrementing it
+ * makes every existing key unreachable at once. Each node keeps the generation in memory and reads it again at a
+ * fixed interval, so other nodes see a clear within that interval.
+ * <p>
+ * The keys of old generations are removed in the background: whenever a node sees a new generation, it scans the
+ * namespace and UNLINKs them at a limited rate. Only one node does so at a time, and nodes skip generations another
+ * node already reaped.
+ */
+public class Generations implements Runnable {
+
+    private static final long LOCK_TIMEOUT = 60000;
+
+    private final RedisCache cache;
+    private final KeyCodec namespace;
+    private final byte[] prefix;
+    private final byte[] counterKey;
+    private final byte[] reapedKey;
+    private final byte[] lockKey;
+    private final String nodeId;
+    private final long interval;
+    private final int rate;
+    private final int batchSize;
+
+    private volatile long current = -1;
+    private volatile boolean reapPending = true;
+    private volatile boolean reaping;
+    private volatile boolean running = true;
+    private Thread thread;
+    private final Object wakeup = new Object();
+
+    private final LongAdder reaped = new LongAdder();
+    private final LongAdder clears = new LongAdder();
+
+    /**
+     * @param namespace maps keys to the namespace itself, without generation
+     */
+    public Generations(RedisCache cache, KeyCodec namespace, String nodeId, long interval, int rate, int batchSize) {
+        this.cache = cache;
+        this.namespace = namespace;
+        this.prefix = namespace.prefix().getBytes(RedisCache.UTF8);
+        this.counterKey = key("__generation");
+        this.reapedKey = key("__generation_reaped");
+        this.lockKey = key("__generation_reaper");
+        this.nodeId = nodeId;
+        this.interval = interval;
+        this.rate = rate;
+        this.batchSize = batchSize;
+    }
+
+    private byte[] key(String name) {
+        byte[] bname = name.getBytes(RedisCache.UTF8);
+        byte[] key = new byte[prefix.length + bname.length];
+        System.arraycopy(prefix, 0, key, 0, prefix.length);
+        System.arraycopy(bname, 0, key, prefix.length, bname.length);
+        return key;
+    }
+
+    public void start(String cacheName) {
+        thread = new Thread(this, "redis-generations-" + cacheName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        synchronized (wakeup) {
+            wakeup.notifyAll();
+        }
+    }
+
+    /**
+     * The current generation, read from Redis the first time it is needed.
+     */
+    public long current() {
+        long g = current;
+        if (g < 0) {
+            synchronized (this) {
+                if (current < 0) refresh();
+                g = current;
+            }
+        }
+        return g;
+    }
+
+    /**
+     * Moves the cache to a new generation.
+     */
+    public long next() {
+        long g = cache.execute(counterKey, (conn) -> conn.incr(counterKey));
+        clears.increment();
+        update(g);
+        synchronized (wakeup) {
+            wakeup.notifyAll();
+        }
+        return g;
+    }
+
+    private void refresh() {
+        byte[] val = cache.execute(counterKey, (conn) -> conn.get(counterKey));
+        update(val == null ? 0 : Long.parseLong(new String(val, RedisCache.UTF8)));
+    }
+
+    private synchronized void update(long g) {
+        if (g <= current) return;
+        boolean first = current < 0;
+        current = g;
+        cache.generationChanged(g);
+        if (!first) reapPending = true;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            synchronized (wakeup) {
+                try {
+                    wakeup.wait(interval);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (!running) return;
+            try {
+                refresh();
+                if (reapPending) tryReap();
+            }
+            catch (Exception e) {
+                // Redis is unreachable, try again next time
+            }
+        }
+    }
+
+    private void tryReap() throws Exception {
+        long g = current;
+        long done = cache.execute(reapedKey, (conn) -> {
+            byte[] val = conn.get(reapedKey);
+            return val == null ? -1L : Long.parseLong(new String(val, RedisCache.UTF8));
+        });
+        if (done >= g) {
+            reapPending = false;
+            return;
+        }
+
+        byte[] token = nodeId.getBytes(RedisCache.UTF8);
+        String locked = cache.execute(lockKey, (conn) -> conn.set(lockKey, token, SetParams.setParams().nx().px(LOCK_TIMEOUT)));
+        if (!"OK".equals(locked)) return;
+        reaping = true;
+        try {
+            if (!cache.forEachNode((conn) -> reap(conn, g))) return;
+            cache.execute(reapedKey, (conn) -> conn.set(reapedKey, Long.toString(g).getBytes(RedisCache.UTF8)));
+            if (current == g) reapPending = false;
+        }
+        finally {
+            reaping = false;
+            cache.execute(lockKey, (conn) -> conn.eval(StampedeGuard.RELEASE, 1, lockKey, token));
+        }
+    }
+
+    /**
+     * UNLINKs the keys of generations before <code>g</code> on the node of <code>conn</code>, at most
+     * <code>rate</code> per second.
+     */
+    private void reap(Jedis conn, long g) {
+        ScanParams params = new ScanParams().match(namespace.scanPattern()).count(batchSize);
+        byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+        ScanResult<byte[]> result;
+        do {
+            if (!running) return;
+            result = conn.scan(cursor, params);
+            cursor = result.getCursorAsBytes();
+
+            List<byte[]> old = new ArrayList<byte[]>();
+            for (byte[] key: result.getResult()) {
+                long kg = generation(key);
+                if (kg >= 0 && kg < g) old.add(key);
+            }
+            if (old.isEmpty()) continue;
+
+            long start = System.currentTimeMillis();
+            reaped.add(cache.unlink(conn, old));
+            // the lock expired, e.g. because the node was paused, and another one may have taken over
+            if (cache.execute(lockKey, (c) -> c.pexpire(lockKey, LOCK_TIMEOUT)) == 0) return;
+
+            long pause = old.size() * 1000L / rate - (System.currentTimeMillis() - start);
+            if (pause > 0) {
+                try {
+                    Thread.sleep(pause);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        while (!result.isCompleteIteration());
+    }
+
+    /**
+     * The generation of a key, or -1 for keys that do not belong to one (like the counter itself).
+     */
+    private long generation(byte[] key) {
+        long g = 0;
+        int digits = 0;
+        for (int i = prefix.length; i < key.length; i++) {
+            byte b = key[i];
+            if (b == ':') return digits == 0 ? -1 : g;
+            if (b < '0' || b > '9' || ++digits > 18) return -1;
+            g = g * 10 + (b - '0');
+        }
+        return -1;
+    }
+
+    public Struct getInfo() {
+        Struct info = CFMLEngineFactory.getInstance().getCreationUtil().createStruct();
+        info.setEL("generation", Double.valueOf(current));
+        info.setEL("clear_count", Double.valueOf(clears.sum()));
+        info.setEL("reaped_keys", Double.valueOf(reaped.sum()));
+        info.setEL("reap_pending", Boolean.valueOf(reapPending));
+        info.setEL("reaping", Boolean.valueOf(reaping));
+        return info;
+    }
+
+}
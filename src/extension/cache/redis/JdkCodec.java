@@ -0,0 +1,60 @@
+package extension.cache.redis;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import lucee.loader.util.Util;
+
+/**
+ * Java serialization, the fallback for any value no other codec supports.
+ */
+public class JdkCodec implements Codec {
+
+    private final ClassLoader cl;
+
+    public JdkCodec(ClassLoader cl) {
+        this.cl = cl;
+    }
+
+    @Override
+    public int id() {
+        return ValueCodec.JDK;
+    }
+
+    @Override
+    public boolean supports(Object value) {
+        return true;
+    }
+
+    @Override
+    public void encode(Object value, OutputStream out) throws IOException {
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.writeObject(value);
+        oos.flush();
+    }
+
+    @Override
+    public Object decode(byte[] data, int offset, int length) throws IOException {
+        return decode(new ByteArrayInputStream(data, offset, length));
+    }
+
+    @Override
+    public Object decode(InputStream in) throws IOException {
+        ObjectInputStream ois = null;
+        try {
+            ois = new ObjectInputStreamImpl(cl, in);
+            return ois.readObject();
+        }
+        catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+        finally {
+            Util.closeEL(ois);
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+package extension.cache.redis;
+
+/**
+ * Maps cache keys to Redis keys and back. Keys are trimmed and lower cased, and the namespace prefix is added
+ * unless the key already starts with it. The prefix is encoded once; keys made of ASCII characters, which is nearly
+ * all of them, are then normalized and encoded in a single pass straight into the resulting array, without the
+ * intermediate strings. Anything else takes the plain string route, so both give the same result.
+ */
+public class KeyCodec {
+
+    // keys are lower cased in the default locale, which for ASCII letters is not plain ASCII lower casing in all
+    // locales (e.g. Turkish)
+    private final boolean asciiLowerCase = "ABCDEFGHIJKLMNOPQRSTUVWXYZ".toLowerCase().equals("abcdefghijklmnopqrstuvwxyz");
+
+    private final String prefix;
+    private final byte[] prefixBytes;
+    private final byte[] scanPattern;
+
+    /**
+     * @param prefix the namespace prefix, already lower case, or null for none
+     */
+    public KeyCodec(String prefix) {
+        this.prefix = prefix;
+        this.prefixBytes = prefix == null ? null : prefix.getBytes(RedisCache.UTF8);
+        this.scanPattern = prefix == null ? new byte[] { '*' } : (escapeGlob(prefix) + "*").getBytes(RedisCache.UTF8);
+    }
+
+    /**
+     * The namespace prefix, or null for none.
+     */
+    public String prefix() {
+        return prefix;
+    }
+
+    public static String normalize(String key) {
+        return key.trim().toLowerCase();
+    }
+
+    public String addNamespace(String nkey) {
+        if (prefix == null || nkey.startsWith(prefix)) return nkey;
+        return prefix + nkey;
+    }
+
+    public byte[] encode(String key) {
+        int start = 0;
+        int end = key.length();
+        while (start < end && key.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && key.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (!asciiLowerCase) return addNamespace(normalize(key)).getBytes(RedisCache.UTF8);
+
+        int len = end - start;
+        boolean prefixed = prefix == null || startsWithPrefix(key, start, len);
+        int off = prefixed ? 0 : prefixBytes.length;
+        byte[] bkey = new byte[off + len];
+        char c;
+        for (int i = 0; i < len; i++) {
+            c = key.charAt(start + i);
+            if (c >= 0x80) return addNamespace(normalize(key)).getBytes(RedisCache.UTF8);
+            bkey[off + i] = (byte) ((char) (c - 'A') < 26 ? c + ('a' - 'A') : c);
+        }
+        if (!prefixed) System.arraycopy(prefixBytes, 0, bkey, 0, off);
+        return bkey;
+    }
+
+    private boolean startsWithPrefix(String key, int start, int len) {
+        int n = prefix.length();
+        if (n > len) return false;
+        char c;
+        for (int i = 0; i < n; i++) {
+            c = key.charAt(start + i);
+            if ((char) (c - 'A') < 26) c += 'a' - 'A';
+            if (c != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    public String decode(byte[] bkey) {
+        return decode(bkey, 0, bkey.length);
+    }
+
+    /**
+     * The cache key of the Redis key in <code>bkey[offset .. offset + length]</code>, with the namespace prefix
+     * cut off the front.
+     */
+    public String decode(byte[] bkey, int offset, int length) {
+        if (prefixBytes != null && startsWith(bkey, offset, length, prefixBytes)) {
+            return new String(bkey, offset + prefixBytes.length, length - prefixBytes.length, RedisCache.UTF8);
+        }
+        return new String(bkey, offset, length, RedisCache.UTF8);
+    }
+
+    private static boolean startsWith(byte[] data, int offset, int length, byte[] prefix) {
+        if (prefix.length > length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * SCAN pattern matching every key of the namespace.
+     */
+    public byte[] scanPattern() {
+        return scanPattern;
+    }
+
+    /**
+     * SCAN pattern matching the keys of the namespace whose cache key matches <code>glob</code>.
+     */
+    public byte[] scanPattern(String glob) {
+        return (prefix == null ? glob : escapeGlob(prefix) + glob).getBytes(RedisCache.UTF8);
+    }
+
+    private static String escapeGlob(String str) {
+        StringBuilder sb = new StringBuilder(str.length());
+        char c;
+        for (int i = 0; i < str.length(); i++) {
+            c = str.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') sb.append('\\');
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+}
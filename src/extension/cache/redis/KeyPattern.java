@@ -0,0 +1,58 @@
+package extension.cache.redis;
+
+import lucee.commons.io.cache.CacheKeyFilter;
+
+/**
+ * A key filter translated to a Redis glob pattern, so that SCAN MATCH does the filtering on the server. Only the
+ * wildcard filters Lucee creates for functions like <code>cacheGetAllIds("user_123_*")</code> are recognized.
+ * <p>
+ * The pattern matches at least every key the filter accepts. It is <code>exact</code> when it matches nothing else,
+ * so the keys it finds need not be passed through the filter again. That is not the case for <code>?</code>, which
+ * stands for a character in the filter but matches a single byte in Redis, so it is widened to <code>*</code>. (Nor,
+ * strictly, for keys with line breaks in them, which the expression of the filter does not match across.)
+ */
+public class KeyPattern {
+
+    private static final String WILDCARD_FILTER = "lucee.runtime.cache.util.WildCardFilter";
+
+    final String glob;
+    final boolean exact;
+
+    private KeyPattern(String glob, boolean exact) {
+        this.glob = glob;
+        this.exact = exact;
+    }
+
+    /**
+     * The pattern of <code>filter</code>, or null if it cannot be translated.
+     */
+    public static KeyPattern of(CacheKeyFilter filter) {
+        if (filter == null || !WILDCARD_FILTER.equals(filter.getClass().getName())) return null;
+        String wildcard = filter.toPattern();
+        // the filter turns the wildcard into a regular expression without escaping '|'
+        if (wildcard == null || wildcard.indexOf('|') != -1) return null;
+
+        // keys are stored lower case
+        String lower = wildcard.toLowerCase();
+        StringBuilder glob = new StringBuilder(lower.length() + 8);
+        StringBuilder sample = new StringBuilder(lower.length());
+        boolean exact = true;
+        char c;
+        for (int i = 0; i < lower.length(); i++) {
+            c = lower.charAt(i);
+            if (c == '*' || c == '?') {
+                if (c == '?') exact = false;
+                // '*' is never escaped, the filter has no way to match it literally
+                if (glob.length() == 0 || glob.charAt(glob.length() - 1) != '*') glob.append('*');
+                continue;
+            }
+            if (c == '[' || c == ']' || c == '\\') glob.append('\\');
+            glob.append(c);
+            sample.append(c);
+        }
+        // a filter that does not ignore case accepts no key when the wildcard has upper case letters
+        if (exact && !filter.accept(sample.toString())) exact = false;
+        return new KeyPattern(glob.toString(), exact);
+    }
+
+}
@@ -0,0 +1,404 @@
+package extension.cache.redis;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import lucee.loader.engine.CFMLEngineFactory;
+import lucee.runtime.type.Struct;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * Sends the commands of any number of threads over a few shared connections instead of one pooled connection per
+ * thread. Commands are queued per connection and whichever thread finds the connection idle writes everything queued
+ * so far in one go, so that under load many commands share a write. Redis answers in order, so a reader thread per
+ * connection hands out the replies in the order the commands were written.
+ * <p>
+ * Replies are returned as Jedis would before converting them: <code>byte[]</code> for bulk strings,
+ * <code>Long</code> for integers, <code>String</code> for status replies and lists for arrays. Error replies are
+ * thrown as {@link JedisDataException}, failed connections as {@link JedisConnectionException}, like Jedis does.
+ */
+public class Multiplexer {
+
+    public static final String POOL = "pool";
+    public static final String MULTIPLEXED = "multiplexed";
+
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String host;
+    private final int port;
+    private final int timeout;
+    private final String password;
+    private final String name;
+    private final Connection[] connections;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean closed;
+
+    private final LongAdder commands = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+
+    public Multiplexer(String host, int port, int timeout, String password, int connections, String name) {
+        this.host = host;
+        this.port = port;
+        this.timeout = timeout;
+        this.password = password;
+        this.name = name;
+        this.connections = new Connection[Math.max(1, connections)];
+    }
+
+    /**
+     * Sends a command and waits for its reply.
+     */
+    public Object call(Protocol.Command command, byte[]... args) {
+        return await(send(command, args));
+    }
+
+    /**
+     * Sends a command without waiting for its reply, see {@link #await}.
+     */
+    public CompletableFuture<Object> send(Protocol.Command command, byte[]... args) {
+        Request request = new Request(command.getRaw(), args);
+        connection().send(request);
+        return request;
+    }
+
+    public Object await(CompletableFuture<Object> future) {
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JedisConnectionException(e);
+        }
+        catch (TimeoutException e) {
+            // like a socket timeout, the connection cannot be trusted to answer in order anymore
+            JedisConnectionException jce = new JedisConnectionException("Read timed out");
+            ((Request) future).connection.fail(jce);
+            throw jce;
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new JedisConnectionException(cause);
+        }
+    }
+
+    private Connection connection() {
+        int index = Math.floorMod(next.getAndIncrement(), connections.length);
+        Connection conn = connections[index];
+        if (conn != null && !conn.broken) return conn;
+        synchronized (connections) {
+            if (closed) throw new JedisConnectionException("the connection to Redis is closed");
+            conn = connections[index];
+            if (conn == null || conn.broken) {
+                if (conn != null) reconnects.increment();
+                conn = connect(index);
+                connections[index] = conn;
+            }
+            return conn;
+        }
+    }
+
+    private Connection connect(int index) {
+        Connection conn;
+        try {
+            SocketChannel channel = SocketChannel.open();
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(true);
+            channel.socket().connect(new InetSocketAddress(host, port), timeout);
+            conn = new Connection(channel);
+        }
+        catch (IOException e) {
+            throw new JedisConnectionException("Failed connecting to " + host + ":" + port, e);
+        }
+        Thread reader = new Thread(conn, "redis-multiplexer-" + name + "-" + index);
+        reader.setDaemon(true);
+        reader.start();
+        if (password != null) {
+            Request auth = new Request(Protocol.Command.AUTH.getRaw(), new byte[][] { password.getBytes(RedisCache.UTF8) });
+            conn.send(auth);
+            try {
+                await(auth);
+            }
+            catch (RuntimeException e) {
+                conn.fail(e);
+                throw e;
+            }
+        }
+        return conn;
+    }
+
+    public void close() {
+        synchronized (connections) {
+            closed = true;
+            for (Connection conn: connections) {
+                if (conn != null) conn.fail(new JedisConnectionException("the connection to Redis is closed"));
+            }
+        }
+    }
+
+    public Struct getInfo() {
+        Struct info = CFMLEngineFactory.getInstance().getCreationUtil().createStruct();
+        int open = 0;
+        long inFlight = 0;
+        for (Connection conn: connections) {
+            if (conn == null || conn.broken) continue;
+            open++;
+            inFlight += conn.pending.size() + conn.outbound.size();
+        }
+        long c = commands.sum();
+        long w = writes.sum();
+        info.setEL("connections", Double.valueOf(open));
+        info.setEL("in_flight", Double.valueOf(inFlight));
+        info.setEL("command_count", Double.valueOf(c));
+        info.setEL("write_count", Double.valueOf(w));
+        info.setEL("commands_per_write", Double.valueOf(w == 0 ? 0 : (double) c / w));
+        info.setEL("reconnect_count", Double.valueOf(reconnects.sum()));
+        return info;
+    }
+
+    private static class Request extends CompletableFuture<Object> {
+        final byte[] command;
+        final byte[][] args;
+        Connection connection;
+
+        Request(byte[] command, byte[][] args) {
+            this.command = command;
+            this.args = args;
+        }
+    }
+
+    private class Connection implements Runnable {
+
+        private final SocketChannel channel;
+        // queued but not written yet
+        private final Queue<Request> outbound = new ConcurrentLinkedQueue<Request>();
+        // written, waiting for their replies in order
+        private final Queue<Request> pending = new ConcurrentLinkedQueue<Request>();
+        private final AtomicBoolean writing = new AtomicBoolean();
+        private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private volatile boolean broken;
+        private volatile Throwable failure;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            in.limit(0);
+        }
+
+        void send(Request request) {
+            request.connection = this;
+            outbound.add(request);
+            while (!outbound.isEmpty() && writing.compareAndSet(false, true)) {
+                try {
+                    flush();
+                }
+                finally {
+                    writing.set(false);
+                }
+            }
+        }
+
+        /**
+         * Writes all queued commands. Only one thread at a time gets here.
+         */
+        private void flush() {
+            Request request;
+            if (broken) {
+                while ((request = outbound.poll()) != null) {
+                    request.completeExceptionally(failure);
+                }
+                return;
+            }
+            try {
+                out.clear();
+                while ((request = outbound.poll()) != null) {
+                    // before it is written, so the reply always finds it
+                    pending.add(request);
+                    encode(request);
+                    commands.increment();
+                }
+                write();
+            }
+            catch (IOException e) {
+                fail(new JedisConnectionException(e));
+            }
+        }
+
+        private void encode(Request request) throws IOException {
+            header('*', request.args.length + 1);
+            bulk(request.command);
+            for (byte[] arg: request.args) {
+                bulk(arg);
+            }
+        }
+
+        private void header(char type, long n) throws IOException {
+            if (out.remaining() < 24) write();
+            out.put((byte) type);
+            out.put(Long.toString(n).getBytes(StandardCharsets.US_ASCII));
+            out.put(CRLF);
+        }
+
+        private void bulk(byte[] data) throws IOException {
+            header('$', data.length);
+            if (data.length <= out.remaining()) {
+                out.put(data);
+            }
+            else {
+                write();
+                if (data.length <= out.remaining()) out.put(data);
+                else write(ByteBuffer.wrap(data));
+            }
+            if (out.remaining() < CRLF.length) write();
+            out.put(CRLF);
+        }
+
+        private void write() throws IOException {
+            out.flip();
+            write(out);
+            out.clear();
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            if (!buffer.hasRemaining()) return;
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            writes.increment();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!broken) {
+                    Object reply = read();
+                    Request request = pending.poll();
+                    if (request == null) throw new IOException("unexpected reply from Redis");
+                    if (reply instanceof JedisDataException) request.completeExceptionally((JedisDataException) reply);
+                    else request.complete(reply);
+                }
+            }
+            catch (Exception e) {
+                fail(e instanceof JedisConnectionException ? (JedisConnectionException) e : new JedisConnectionException(e));
+            }
+        }
+
+        void fail(RuntimeException e) {
+            synchronized (this) {
+                if (failure == null) failure = e;
+                broken = true;
+            }
+            try {
+                channel.close();
+            }
+            catch (IOException ignore) {}
+            // after closing: whatever is added from now on fails to be written and ends up here again
+            Request request;
+            while ((request = pending.poll()) != null) {
+                request.completeExceptionally(failure);
+            }
+            if (writing.compareAndSet(false, true)) {
+                try {
+                    while ((request = outbound.poll()) != null) {
+                        request.completeExceptionally(failure);
+                    }
+                }
+                finally {
+                    writing.set(false);
+                }
+            }
+        }
+
+        private Object read() throws IOException {
+            byte type = readByte();
+            switch (type) {
+            case '+':
+                return readLine();
+            case '-':
+                return new JedisDataException(readLine());
+            case ':':
+                return Long.valueOf(Long.parseLong(readLine()));
+            case '$': {
+                int len = Integer.parseInt(readLine());
+                if (len < 0) return null;
+                byte[] data = new byte[len];
+                readFully(data);
+                readByte();
+                readByte();
+                return data;
+            }
+            case '*': {
+                int len = Integer.parseInt(readLine());
+                if (len < 0) return null;
+                List<Object> list = new ArrayList<Object>(len);
+                for (int i = 0; i < len; i++) {
+                    list.add(read());
+                }
+                return list;
+            }
+            default:
+                throw new IOException("unknown reply type [" + (char) type + "]");
+            }
+        }
+
+        private void fill() throws IOException {
+            in.compact();
+            try {
+                if (channel.read(in) == -1) throw new EOFException("Unexpected end of stream.");
+            }
+            finally {
+                in.flip();
+            }
+        }
+
+        private byte readByte() throws IOException {
+            while (!in.hasRemaining()) {
+                fill();
+            }
+            return in.get();
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            byte b;
+            while ((b = readByte()) != '\r') {
+                sb.append((char) b);
+            }
+            readByte();
+            return sb.toString();
+        }
+
+        private void readFully(byte[] data) throws IOException {
+            int off = 0;
+            int n;
+            while (off < data.length) {
+                while (!in.hasRemaining()) {
+                    fill();
+                }
+                n = Math.min(in.remaining(), data.length - off);
+                in.get(data, off, n);
+                off += n;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package extension.cache.redis;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import lucee.loader.engine.CFMLEngineFactory;
+import lucee.runtime.type.Struct;
+
+/**
+ * Bounded in-process (L1) cache that sits in front of Redis. Entries are evicted least recently used first
+ * once either the entry count or the total (serialized) size is exceeded, and expire after a local ttl.
+ * <p>
+ * Like values read from Redis, the values of hits are copies that callers may change: structs, arrays, queries and
+ * the like are duplicated on the way in and out. Other mutable Java objects are shared.
+ */
+public class NearCache {
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final long ttl;
+
+    private final LinkedHashMap<String, Entry> map = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long weight;
+
+    // bumped on every invalidation so that a value loaded from Redis while an invalidation of its key was in flight
+    // is not put back into the near cache: the keys invalidated are stamped with it, up to maxEntries of them, and
+    // invalidating all keys (or more than that) stamps them all at once
+    private volatile long generation;
+    private long invalidatedAll;
+    private final HashMap<String, Long> invalidated = new HashMap<String, Long>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public NearCache(int maxEntries, long maxWeight, long ttl) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.ttl = ttl;
+    }
+
+    public Entry get(String key) {
+        Entry entry;
+        synchronized (map) {
+            entry = map.get(key);
+            if (entry != null && entry.expires < System.currentTimeMillis()) {
+                remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) misses.increment();
+        else hits.increment();
+        return entry;
+    }
+
+    public long generation() {
+        return generation;
+    }
+
+    /**
+     * Stores a value loaded from Redis, unless the key was invalidated since <code>generation</code> was read.
+     * <code>touch</code> is what a hit has to do to keep it alive in Redis, if it expires when idle.
+     */
+    public void put(String key, Object value, long size, SlidingExpiration.Touch touch, long generation) {
+        if ((maxWeight > 0 && size > maxWeight) || ttl <= 0) return;
+
+        synchronized (map) {
+            if (invalidatedAll > generation) return;
+            Long stamp = invalidated.get(key);
+            if (stamp != null && stamp.longValue() > generation) return;
+
+            Entry old = map.put(key, new Entry(CacheUtil.copy(value), size, touch, System.currentTimeMillis() + ttl));
+            if (old != null) weight -= old.size;
+            weight += size;
+
+            Iterator<Entry> it = map.values().iterator();
+            while (it.hasNext() && (map.size() > maxEntries || (maxWeight > 0 && weight > maxWeight))) {
+                weight -= it.next().size;
+                it.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    public void invalidate(String key) {
+        synchronized (map) {
+            generation++;
+            if (invalidated.size() < maxEntries) {
+                invalidated.put(key, Long.valueOf(generation));
+            }
+            else {
+                invalidated.clear();
+                invalidatedAll = generation;
+            }
+            remove(key);
+        }
+        invalidations.increment();
+    }
+
+    public void invalidateAll() {
+        synchronized (map) {
+            generation++;
+            invalidated.clear();
+            invalidatedAll = generation;
+            map.clear();
+            weight = 0;
+        }
+        invalidations.increment();
+    }
+
+    public Struct getInfo() {
+        Struct info = CFMLEngineFactory.getInstance().getCreationUtil().createStruct();
+        long h = hits.sum();
+        long m = misses.sum();
+        synchronized (map) {
+            info.setEL("entries", Double.valueOf(map.size()));
+            info.setEL("size", Double.valueOf(weight));
+        }
+        info.setEL("hit_count", Double.valueOf(h));
+        info.setEL("miss_count", Double.valueOf(m));
+        info.setEL("hit_rate", Double.valueOf(h + m == 0 ? 0 : (double) h / (h + m)));
+        info.setEL("evictions", Double.valueOf(evictions.sum()));
+        info.setEL("invalidations", Double.valueOf(invalidations.sum()));
+        return info;
+    }
+
+    private void remove(String key) {
+        Entry old = map.remove(key);
+        if (old != null) weight -= old.size;
+    }
+
+    public static class Entry {
+        private final Object value;
+        public final long size;
+        public final SlidingExpiration.Touch touch;
+        private final long expires;
+
+        private Entry(Object value, long size, SlidingExpiration.Touch touch, long expires) {
+            this.value = value;
+            this.size = size;
+            this.touch = touch;
+            this.expires = expires;
+        }
+
+        /**
+         * A copy of the value, see {@link NearCache}.
+         */
+        public Object value() {
+            return CacheUtil.copy(value);
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+package extension.cache.redis;
+
+
+import redis.clients.jedis.BinaryJedisPubSub;
+import redis.clients.jedis.Jedis;
+
+/**
+ * Keeps a {@link NearCache} coherent across nodes. In <code>pubsub</code> mode it listens on an invalidation
+ * channel that puts and removes publish to; in <code>keyspace</code> mode it listens to Redis keyspace
+ * notifications for the cache namespace (the server needs <code>notify-keyspace-events</code> to include
+ * <code>K</code> and the relevant event classes, e.g. <code>Kgx$</code>).
+ */
+public class NearCacheInvalidator extends BinaryJedisPubSub implements Runnable {
+
+    public static final String MODE_PUBSUB = "pubsub";
+    public static final String MODE_KEYSPACE = "keyspace";
+
+    private static final String KEYSPACE_PREFIX = "__keyspace@0__:";
+    private static final long MAX_BACKOFF = 30000;
+
+    private final RedisCache cache;
+    private final NearCache nearCache;
+    private final String nodeId;
+    private final boolean keyspace;
+    private final byte[] channel;
+
+    private volatile boolean running = true;
+    private volatile Jedis conn;
+
+    public NearCacheInvalidator(RedisCache cache, NearCache nearCache, String nodeId, String mode, String channel, String keyPattern) {
+        this.cache = cache;
+        this.nearCache = nearCache;
+        this.nodeId = nodeId;
+        this.keyspace = MODE_KEYSPACE.equalsIgnoreCase(mode);
+        this.channel = (keyspace ? KEYSPACE_PREFIX + keyPattern : channel).getBytes(RedisCache.UTF8);
+    }
+
+    public void start(String cacheName) {
+        Thread t = new Thread(this, "redis-near-cache-invalidator-" + cacheName);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (isSubscribed()) {
+                if (keyspace) punsubscribe();
+                else unsubscribe();
+            }
+        }
+        catch (Exception e) {}
+        Jedis c = conn;
+        if (c != null) c.close();
+    }
+
+    @Override
+    public void run() {
+        long backoff = 100;
+        while (running) {
+            try {
+                conn = cache.newConnection();
+                // anything published while we were not listening is lost
+                nearCache.invalidateAll();
+                backoff = 100;
+                if (keyspace) conn.psubscribe(this, channel);
+                else conn.subscribe(this, channel);
+            }
+            catch (Exception e) {
+                nearCache.invalidateAll();
+                if (!running) break;
+                try {
+                    Thread.sleep(backoff);
+                }
+                catch (InterruptedException ie) {
+                    break;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            }
+            finally {
+                Jedis c = conn;
+                conn = null;
+                if (c != null) c.close();
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(byte[] channel, byte[] message) {
+        String str = new String(message, RedisCache.UTF8);
+        int index = str.indexOf(':');
+        String sender = index == -1 ? str : str.substring(0, index);
+        // our own writes already invalidated the local entry
+        if (sender.equals(nodeId)) return;
+
+        if (index == -1) nearCache.invalidateAll();
+        else nearCache.invalidate(str.substring(index + 1));
+    }
+
+    @Override
+    public void onPMessage(byte[] pattern, byte[] channel, byte[] message) {
+        int offset = KEYSPACE_PREFIX.length();
+        nearCache.invalidate(cache.fromJedisKey(channel, offset, channel.length - offset));
+    }
+
+    /**
+     * Invalidation message for a single key, or for every key when <code>key</code> is null.
+     */
+    public static byte[] message(String nodeId, String key) {
+        return (key == null ? nodeId : nodeId + ':' + key).getBytes(RedisCache.UTF8);
+    }
+
+}
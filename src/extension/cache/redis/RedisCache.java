@@ -1,15 +1,31 @@
 package extension.cache.redis;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import lucee.commons.io.cache.Cache;
 import lucee.commons.io.cache.CacheEntry;
@@ -21,12 +37,24 @@ import lucee.loader.engine.CFMLEngineFactory;
 import lucee.loader.util.Util;
 import lucee.runtime.config.Config;
 import lucee.runtime.exp.PageException;
+import lucee.runtime.type.Collection;
 import lucee.runtime.type.Struct;
+import lucee.runtime.type.UDF;
 import lucee.runtime.util.Cast;
+import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisAskDataException;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
 
 
 public class RedisCache implements Cache {
@@ -41,6 +69,10 @@ public class RedisCache implements Cache {
     protected String password;
 
     private ClassLoader cl;
+    private ValueCodec codec;
+    private Compression compression;
+    private ChunkedValues chunked;
+    private TagIndex tagIndex;
 
     private JedisPool pool;
 
@@ -49,13 +81,52 @@ public class RedisCache implements Cache {
 
     private int defaultExpire;
     private String namespace;
+    private KeyCodec namespaceCodec;
+    private volatile KeyCodec keyCodec;
+    private Generations generations;
     private int maxTotal;
     private int maxIdle;
     private int minIdle;
+    private int scanBatchSize;
+    private long scanMemoryBudget;
+
+    // by config (web context) and then by name, weakly so that a discarded config does not linger
+    private static final Map<Config, Map<String, RedisCache>> instances = Collections.synchronizedMap(new WeakHashMap<Config, Map<String, RedisCache>>());
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private String cacheName;
+    private NearCache nearCache;
+    private NearCacheInvalidator invalidator;
+    private byte[] invalidationChannel;
+    private final CacheStats stats = new CacheStats();
+    private WriteBehindQueue writeBehind;
+    private SlidingExpiration sliding;
+    private CircuitBreaker breaker;
+
+    private static final int MAX_REDIRECTS = 5;
+    private ClusterRouter cluster;
+    private ExecutorService nodeExecutor;
+    private ExecutorService bulkExecutor;
+    private int bulkParallelism;
+    private Semaphore bulkPermits;
+    private ReplicaRouter replicas;
+    private SessionStore sessions;
+    private StampedeGuard stampede;
+    private Multiplexer multiplexer;
+    private volatile boolean scriptRemove = true;
+
+    // one SCAN step that UNLINKs what it finds, returns the next cursor and how many keys were removed; SCAN is not
+    // deterministic, which keeps Redis before 5 from replicating the script itself rather than its effects
+    private static final byte[] UNLINK_MATCHING = ("if redis.replicate_commands then redis.replicate_commands() end "
+            + "local r = redis.call('scan', ARGV[1], 'match', ARGV[2], 'count', ARGV[3]) "
+            + "local keys, n = r[2], 0 "
+            + "for i = 1, #keys, 1000 do n = n + redis.call('unlink', unpack(keys, i, math.min(i + 999, #keys))) end "
+            + "return {r[1], n}").getBytes(UTF8);
 
     @Override
     public void init(Config config, String cacheName, Struct arguments) throws IOException {
         this.cl = arguments.getClass().getClassLoader();
+        this.cacheName = cacheName;
 
         host = caster.toString(arguments.get("host", "localhost"), "localhost");
         port = caster.toIntValue(arguments.get("port", null), 6379);
@@ -67,10 +138,194 @@ public class RedisCache implements Cache {
         defaultExpire = caster.toIntValue(arguments.get("timeToLiveSeconds", null), 0);
         namespace = caster.toString(arguments.get("namespace", null), null);
         if (Util.isEmpty(namespace)) namespace = null;
+        String prefix = null;
+        if (namespace != null) {
+            // in a cluster, a hash tag keeps all keys of the namespace in the same slot
+            if (caster.toBooleanValue(arguments.get("namespaceHashTag", null), false)) prefix = '{' + namespace.toLowerCase() + "}:";
+            else prefix = namespace.toLowerCase() + ':';
+        }
+        keyCodec = namespaceCodec = new KeyCodec(prefix);
 
         maxTotal = caster.toIntValue(arguments.get("maxTotal", null), 0);
         maxIdle = caster.toIntValue(arguments.get("maxIdle", null), 0);
         minIdle = caster.toIntValue(arguments.get("minIdle", null), 0);
+        scanBatchSize = caster.toIntValue(arguments.get("scanBatchSize", null), 1000);
+        if (scanBatchSize <= 0) scanBatchSize = 1000;
+        scanMemoryBudget = Math.max(1, caster.toLongValue(arguments.get("scanMemoryBudget", null), 16)) * 1024 * 1024;
+        // deserializing is most of the work, so by default no more in parallel than there are processors
+        bulkParallelism = caster.toIntValue(arguments.get("bulkParallelism", null), 0);
+        if (bulkParallelism <= 0) bulkParallelism = Math.min(4, Runtime.getRuntime().availableProcessors());
+        // the calling thread fetches chunks as well, so one less
+        if (bulkParallelism > 1) bulkPermits = new Semaphore(bulkParallelism - 1);
+
+        if (caster.toBooleanValue(arguments.get("generationEnabled", null), false)) {
+            // without a namespace, keys of other applications could be taken for keys of an old generation
+            if (prefix == null) throw new IOException("clearing by generation requires a namespace");
+            generations = new Generations(
+                this,
+                namespaceCodec,
+                nodeId,
+                Math.max(1, caster.toLongValue(arguments.get("generationRefreshInterval", null), 1000)),
+                Math.max(1, caster.toIntValue(arguments.get("generationReapRate", null), 10000)),
+                scanBatchSize
+            );
+        }
+
+        compression = new Compression(
+            caster.toString(arguments.get("compression", null), Compression.NONE),
+            caster.toIntValue(arguments.get("compressionThreshold", null), 4096)
+        );
+        codec = new ValueCodec(cl, compression, caster.toBooleanValue(arguments.get("entryTimestamps", null), false),
+            !caster.toBooleanValue(arguments.get("javaSerialization", null), false));
+        if (caster.toBooleanValue(arguments.get("sessionStorage", null), false)) sessions = new SessionStore(this, codec, cl);
+        stampede = new StampedeGuard(
+            this,
+            Math.max(1, caster.toLongValue(arguments.get("stampedeLockTimeout", null), 5000)),
+            caster.toDoubleValue(arguments.get("earlyRefreshBeta", null), 1)
+        );
+
+        if (caster.toBooleanValue(arguments.get("clusterEnabled", null), false)) {
+            List<HostAndPort> seeds = new ArrayList<HostAndPort>();
+            seeds.add(new HostAndPort(host, port));
+            seeds.addAll(toNodes(arguments.get("clusterNodes", null), 6379));
+            cluster = new ClusterRouter(seeds, getJedisPoolConfig(), timeout, password);
+        }
+        else {
+            // Cast.toString() turns null into an empty string rather than the default
+            String readFrom = ReplicaRouter.toPolicy(caster.toString(arguments.get("readFrom", null), null));
+            String sentinelMaster = caster.toString(arguments.get("sentinelMaster", null), null);
+            if (Util.isEmpty(sentinelMaster)) sentinelMaster = null;
+            if (sentinelMaster != null || readFrom != ReplicaRouter.PRIMARY) {
+                replicas = new ReplicaRouter(
+                    cacheName,
+                    readFrom,
+                    new HostAndPort(host, port),
+                    toNodes(arguments.get("replicaNodes", null), 6379),
+                    sentinelMaster,
+                    toNodes(arguments.get("sentinelNodes", null), 26379),
+                    getJedisPoolConfig(),
+                    timeout,
+                    password,
+                    caster.toLongValue(arguments.get("replicaMaxLag", null), 1000),
+                    1000,
+                    (primary) -> primaryChanged(primary)
+                );
+                replicas.start(cacheName);
+            }
+        }
+
+        chunked = new ChunkedValues(
+            this,
+            Math.max(0, caster.toLongValue(arguments.get("chunkThreshold", null), 0)) * 1024,
+            Math.max(1, caster.toIntValue(arguments.get("chunkSize", null), 1024)) * 1024,
+            cluster != null
+        );
+        // with a hash tagged namespace, the keys of the cache and the sets of their tags are all in one slot
+        tagIndex = new TagIndex(cluster == null || (prefix != null && prefix.charAt(0) == '{'));
+
+        // replicas and clusters route commands by key and by node, which the pool does
+        if (Multiplexer.MULTIPLEXED.equalsIgnoreCase(caster.toString(arguments.get("connectionMode", null), Multiplexer.POOL)) && cluster == null && replicas == null) {
+            multiplexer = new Multiplexer(host, port, timeout, password, Math.max(1, caster.toIntValue(arguments.get("multiplexedConnections", null), 2)), cacheName);
+        }
+
+        if (caster.toBooleanValue(arguments.get("nearCacheEnabled", null), false)) {
+            int nearMaxEntries = caster.toIntValue(arguments.get("nearCacheMaxEntries", null), 10000);
+            long nearMaxSize = caster.toLongValue(arguments.get("nearCacheMaxSize", null), 64) * 1024 * 1024;
+            long nearTTL = caster.toLongValue(arguments.get("nearCacheTimeToLiveSeconds", null), 60) * 1000;
+            String mode = caster.toString(arguments.get("nearCacheInvalidation", null), NearCacheInvalidator.MODE_PUBSUB);
+            String channel = caster.toString(arguments.get("nearCacheChannel", null), null);
+            if (Util.isEmpty(channel)) channel = namespaceCodec.addNamespace("__near_cache");
+
+            nearCache = new NearCache(nearMaxEntries, nearMaxSize, nearTTL);
+            invalidator = new NearCacheInvalidator(this, nearCache, nodeId, mode, channel, namespaceCodec.addNamespace("*"));
+            if (!NearCacheInvalidator.MODE_KEYSPACE.equalsIgnoreCase(mode)) invalidationChannel = channel.getBytes(UTF8);
+            invalidator.start(cacheName);
+        }
+
+        if (caster.toBooleanValue(arguments.get("writeBehindEnabled", null), false)) {
+            writeBehind = new WriteBehindQueue(
+                this,
+                Math.max(1, caster.toIntValue(arguments.get("writeBehindQueueSize", null), 10000)),
+                Math.max(1, caster.toIntValue(arguments.get("writeBehindBatchSize", null), 500)),
+                Math.max(1, caster.toLongValue(arguments.get("writeBehindFlushInterval", null), 50)),
+                timeout
+            );
+            writeBehind.start(cacheName);
+        }
+
+        if (caster.toBooleanValue(arguments.get("slidingExpiration", null), false)) {
+            sliding = new SlidingExpiration(this, Math.max(1, caster.toLongValue(arguments.get("slidingExpirationInterval", null), 1000)));
+            sliding.start(cacheName);
+        }
+
+        if (caster.toBooleanValue(arguments.get("circuitBreakerEnabled", null), false)) {
+            boolean buffer = CircuitBreaker.BUFFER.equalsIgnoreCase(caster.toString(arguments.get("circuitBreakerWrites", null), CircuitBreaker.DROP));
+            breaker = new CircuitBreaker(
+                this,
+                cacheName,
+                Math.max(1, caster.toIntValue(arguments.get("circuitBreakerThreshold", null), 5)),
+                Math.max(0, caster.toLongValue(arguments.get("circuitBreakerSlowCall", null), 0)),
+                Math.max(1, caster.toLongValue(arguments.get("circuitBreakerBackoff", null), 1000)),
+                Math.max(1, caster.toLongValue(arguments.get("circuitBreakerMaxBackoff", null), 30000)),
+                buffer ? Math.max(0, caster.toIntValue(arguments.get("circuitBreakerBufferSize", null), 1000)) : 0,
+                Math.max(0, caster.toIntValue(arguments.get("circuitBreakerFallbackMaxEntries", null), 0)),
+                caster.toLongValue(arguments.get("circuitBreakerFallbackTimeToLiveSeconds", null), 300) * 1000
+            );
+        }
+
+        // Lucee creates a new instance of a cache connection whenever it is (re)configured, without telling the old one,
+        // which would keep its connections and threads forever; caches of the same name in other contexts are not it
+        RedisCache previous = instances.computeIfAbsent(config, (c) -> new ConcurrentHashMap<String, RedisCache>()).put(cacheName, this);
+        if (previous != null && previous != this) previous.shutdown();
+        stats.register(cacheName, config == null ? null : Integer.toHexString(System.identityHashCode(config)));
+        if (generations != null) generations.start(cacheName);
+    }
+
+    protected void shutdown() {
+        stats.unregister();
+        if (writeBehind != null) writeBehind.stop();
+        if (sliding != null) sliding.stop();
+        if (invalidator != null) invalidator.stop();
+        if (replicas != null) replicas.stop();
+        if (generations != null) generations.stop();
+        JedisPool p = pool;
+        if (p != null) p.close();
+        if (cluster != null) cluster.close();
+        if (multiplexer != null) multiplexer.close();
+        ExecutorService e = nodeExecutor;
+        if (e != null) e.shutdown();
+        e = bulkExecutor;
+        if (e != null) e.shutdown();
+    }
+
+    /**
+     * Parses a comma separated list of host:port pairs.
+     */
+    private List<HostAndPort> toNodes(Object value, int defaultPort) {
+        List<HostAndPort> nodes = new ArrayList<HostAndPort>();
+        String str = caster.toString(value, "");
+        if (Util.isEmpty(str)) return nodes;
+        for (String node: CacheUtil.toSet(str.split(","))) {
+            if (node.isEmpty()) continue;
+            int index = node.lastIndexOf(':');
+            if (index == -1) nodes.add(new HostAndPort(node, defaultPort));
+            else nodes.add(new HostAndPort(node.substring(0, index), caster.toIntValue(node.substring(index + 1), defaultPort)));
+        }
+        return nodes;
+    }
+
+    /**
+     * Sentinel reported a failover, new connections go to the new primary.
+     */
+    private void primaryChanged(HostAndPort primary) {
+        JedisPool old;
+        synchronized (TOKEN) {
+            host = primary.getHost();
+            port = primary.getPort();
+            old = pool;
+            pool = null;
+        }
+        if (old != null) old.close();
     }
 
     protected JedisPoolConfig getJedisPoolConfig() throws IOException {
@@ -85,19 +340,89 @@ public class RedisCache implements Cache {
 
     @Override
     public CacheEntry getCacheEntry(String skey) throws IOException {
-        Jedis conn = jedisSilent();
-        try {
-            byte[] bkey = toJedisKey(skey);
-            byte[] val = null;
-
-            val = conn.get(bkey);
-            if (val == null) throw new IOException("Cache key [" + skey + "] does not exists");
+        long start = System.nanoTime();
+        String nkey = null;
+        long generation = 0;
+        if (sessions != null && SessionStore.isStorageKey(normalizeKey(skey))) {
+            Object value;
+            try {
+                value = sessions.get(toJedisKey(skey));
+            }
+            catch (CircuitBreaker.OpenException e) {
+                value = null;
+            }
+            stats.get.record(System.nanoTime() - start);
+            if (value == null) {
+                stats.misses.increment();
+                throw new IOException("Cache key [" + skey + "] does not exists");
+            }
+            stats.hits.increment();
+            return new RedisCacheEntry(this, skey, null, value, 0, 0, null);
+        }
+        if (writeBehind != null || breaker != null) {
+            WriteBehindQueue.PendingWrite write = pending(normalizeKey(skey));
+            if (write != null) {
+                stats.get.record(System.nanoTime() - start);
+                if (write.isRemove()) {
+                    stats.misses.increment();
+                    throw new IOException("Cache key [" + skey + "] does not exists");
+                }
+                stats.hits.increment();
+                return new RedisCacheEntry(this, skey, write.bkey, valueOf(write), write.data.length, ValueCodec.modified(write.data), null);
+            }
+        }
+        if (nearCache != null) {
+            nkey = normalizeKey(skey);
+            NearCache.Entry entry = nearCache.get(nkey);
+            if (entry != null) {
+                if (entry.touch != null) sliding.touch(entry.touch);
+                stats.hits.increment();
+                stats.get.record(System.nanoTime() - start);
+                return new RedisCacheEntry(this, skey, null, entry.value(), entry.size, 0, null);
+            }
+            generation = nearCache.generation();
+        }
 
-            return new RedisCacheEntry(this, skey, evaluate(val), val.length);
+        byte[] bkey = toJedisKey(skey);
+        byte[] val;
+        try {
+            val = multiplexer != null ? (byte[]) multiplexed(Protocol.Command.GET, bkey)
+                    : read(bkey, nkey == null ? normalizeKey(skey) : nkey, (conn) -> conn.get(bkey));
         }
-        finally {
-            close(conn);
+        catch (CircuitBreaker.OpenException e) {
+            NearCache.Entry entry = breaker.fallback(nkey == null ? normalizeKey(skey) : nkey);
+            stats.get.record(System.nanoTime() - start);
+            if (entry == null) {
+                stats.misses.increment();
+                throw new IOException("Cache key [" + skey + "] does not exists");
+            }
+            stats.hits.increment();
+            return new RedisCacheEntry(this, skey, null, entry.value(), entry.size, 0, null);
+        }
+        if (val == null) {
+            stats.misses.increment();
+            stats.get.record(System.nanoTime() - start);
+            throw new IOException("Cache key [" + skey + "] does not exists");
+        }
+
+        long t = System.nanoTime();
+        Object value = evaluate(bkey, val);
+        long end = System.nanoTime();
+        stats.deserialize.record(end - t);
+        if (value == null) {
+            // the chunks of a large value expired or were replaced while it was read
+            stats.misses.increment();
+            stats.get.record(end - start);
+            throw new IOException("Cache key [" + skey + "] does not exists");
         }
+        stats.hits.increment();
+        stats.get.record(end - start);
+
+        long size = ChunkedValues.size(val);
+        SlidingExpiration.Touch touch = slide(bkey, val);
+        if (nearCache != null) nearCache.put(nkey, value, size, touch, generation);
+        if (breaker != null && breaker.hasFallback()) breaker.remember(nkey == null ? normalizeKey(skey) : nkey, value, size);
+        return new RedisCacheEntry(this, skey, bkey, value, size, ValueCodec.modified(val), null);
     }
 
     @Override
@@ -122,367 +447,2075 @@ public class RedisCache implements Cache {
         return entry.getValue();
     }
 
-    @Override
-    public void put(String key, Object val, Long idle, Long expire) {
-        Jedis conn = jedisSilent();
-        try {
-            byte[] bkey = toJedisKey(key);
+    /**
+     * Returns the value of <code>key</code>, computing and storing it with <code>loader</code> (a function that
+     * is passed the key, or a {@link java.util.concurrent.Callable}) if there is none, see {@link StampedeGuard}.
+     * <code>timeToLive</code> is a timespan, null for the default of the cache.
+     */
+    public Object getOrCompute(String key, Object loader, Object timeToLive) throws PageException {
+        Long expire = timeToLive == null ? null : Long.valueOf(caster.toTimespan(timeToLive).getMillis());
+        String nkey = normalizeKey(key);
+        return stampede.getOrCompute(key, nkey, toJedisKey(key), toLoader(key, loader), expire);
+    }
+
+    public Object getOrCompute(String key, Object loader) throws PageException {
+        return getOrCompute(key, loader, null);
+    }
+
+    private StampedeGuard.Loader toLoader(String key, Object loader) throws PageException {
+        if (loader instanceof UDF) {
+            UDF udf = (UDF) loader;
+            return () -> udf.call(engine.getThreadPageContext(), new Object[] { key }, true);
+        }
+        if (loader instanceof Callable) {
+            Callable<?> callable = (Callable<?>) loader;
+            return () -> {
+                try {
+                    return callable.call();
+                }
+                catch (Exception e) {
+                    throw caster.toPageException(e);
+                }
+            };
+        }
+        throw caster.toPageException(new IllegalArgumentException("the loader must be a function"));
+    }
+
+    /**
+     * Reads a value along with what get-or-compute needs to decide on an early refresh. Returns null if there is
+     * none.
+     */
+    StampedeGuard.Lookup lookup(String skey, String nkey, byte[] bkey, boolean record) {
+        long start = System.nanoTime();
+        WriteBehindQueue.PendingWrite write = pending(nkey);
+        if (write != null) {
+            if (record) {
+                (write.isRemove() ? stats.misses : stats.hits).increment();
+                stats.get.record(System.nanoTime() - start);
+            }
+            return write.isRemove() ? null : new StampedeGuard.Lookup(valueOf(write), 0, 0);
+        }
+        long generation = 0;
+        if (nearCache != null) {
+            NearCache.Entry entry = nearCache.get(nkey);
+            if (entry != null) {
+                if (entry.touch != null) sliding.touch(entry.touch);
+                if (record) {
+                    stats.hits.increment();
+                    stats.get.record(System.nanoTime() - start);
+                }
+                return new StampedeGuard.Lookup(entry.value(), 0, 0);
+            }
+            generation = nearCache.generation();
+        }
+
+        Object[] result;
+        try {
+            result = multiplexer != null ? multiplexed(bkey) : read(bkey, nkey, (conn) -> {
+                Pipeline p = conn.pipelined();
+                Response<byte[]> get = p.get(bkey);
+                Response<Long> pttl = p.pttl(bkey);
+                p.sync();
+                return new Object[] { get.get(), pttl.get() };
+            });
+        }
+        catch (CircuitBreaker.OpenException e) {
+            NearCache.Entry entry = breaker.fallback(nkey);
+            if (record) {
+                (entry == null ? stats.misses : stats.hits).increment();
+                stats.get.record(System.nanoTime() - start);
+            }
+            return entry == null ? null : new StampedeGuard.Lookup(entry.value(), 0, 0);
+        }
+        byte[] val = (byte[]) result[0];
+        Object value = evaluate(bkey, val);
+        if (value == null) {
+            if (record) {
+                stats.misses.increment();
+                stats.get.record(System.nanoTime() - start);
+            }
+            return null;
+        }
+
+        if (record) {
+            stats.hits.increment();
+            stats.get.record(System.nanoTime() - start);
+        }
+        SlidingExpiration.Touch touch = slide(bkey, val);
+        if (nearCache != null) nearCache.put(nkey, value, ChunkedValues.size(val), touch, generation);
+        if (breaker != null) breaker.remember(nkey, value, ChunkedValues.size(val));
+        long ttl = result[1] == null ? 0 : Math.max(0, ((Long) result[1]).longValue());
+        return new StampedeGuard.Lookup(value, ValueCodec.computeTime(val), ttl);
+    }
+
+    @Override
+    public void put(String key, Object val, Long idle, Long expire) {
+        long start = System.nanoTime();
+        if (sessions != null && sessions.isStorageValue(normalizeKey(key), val)) {
+            try {
+                sessions.put(toJedisKey(key), val, toExpire(idle, expire), toIdle(idle, expire));
+            }
+            catch (CircuitBreaker.OpenException e) {
+                // a scope is not a single value the replay could write, the fields that changed are written with the
+                // next store of it instead
+                breaker.drop(normalizeKey(key));
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            stats.puts.increment();
+            stats.put.record(System.nanoTime() - start);
+            return;
+        }
+        try {
+            store(key, val, 0, toExpire(idle, expire), toIdle(idle, expire), start);
+        }
+        catch (PageException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Stores a value computed by get-or-compute along with the time it took.
+     */
+    void putComputed(String key, Object val, Long expire, long computeTime) throws PageException {
+        store(key, val, computeTime, toExpire(null, expire), 0, System.nanoTime());
+    }
+
+    private void store(String key, Object val, long computeTime, int ex, long idle, long start) throws PageException {
+        byte[] bkey = toJedisKey(key);
+        byte[] data;
+        ChunkedValues.Encoded encoded = null;
+        try {
+            if (chunked.isEnabled()) {
+                encoded = chunked.encode(codec, keyPrefix(), bkey, val, computeTime, idle);
+                data = encoded.data;
+            }
+            else {
+                data = codec.encodeEntry(val, computeTime, idle);
+            }
+        }
+        catch (IOException e) {
+            throw caster.toPageException(e);
+        }
+        stats.serialize.record(System.nanoTime() - start);
+
+        if (writeBehind != null) {
+            try {
+                // chunks are written right away, so whatever is queued has to go first
+                if (encoded != null && encoded.isChunked()) flushWriteBehind();
+                else if (enqueue(new WriteBehindQueue.PendingWrite(normalizeKey(key), bkey, val, data, ex))) {
+                    stats.puts.increment();
+                    stats.put.record(System.nanoTime() - start);
+                    return;
+                }
+            }
+            catch (IOException e) {
+                throw caster.toPageException(e);
+            }
+        }
+
+        if (replicas != null) replicas.wrote(normalizeKey(key));
+        try {
+            if (breaker != null) breaker.writing(normalizeKey(key));
+        }
+        catch (IOException e) {
+            throw caster.toPageException(e);
+        }
+        try {
+            if (encoded != null) {
+                writeChunked(key, bkey, encoded, ex);
+            }
+            else if (multiplexer != null) {
+                if (ex > 0) multiplexed(Protocol.Command.SETEX, bkey, Protocol.toByteArray(ex), data);
+                else multiplexed(Protocol.Command.SET, bkey, data);
+                invalidate(null, key);
+            }
+            else {
+                execute(bkey, (conn) -> {
+                    if (ex > 0) {
+                        conn.setex(bkey, ex, data);
+                    } else {
+                        conn.set(bkey, data);
+                    }
+                    invalidate(conn, key);
+                    return null;
+                });
+            }
+            if (breaker != null) breaker.wrote(normalizeKey(key), val, ChunkedValues.size(data));
+        }
+        catch (CircuitBreaker.OpenException e) {
+            defer(new WriteBehindQueue.PendingWrite(normalizeKey(key), bkey, val, data, ex), encoded != null && encoded.isChunked());
+        }
+        stats.puts.increment();
+        stats.put.record(System.nanoTime() - start);
+    }
+
+    private void writeChunked(String key, byte[] bkey, ChunkedValues.Encoded encoded, int ex) {
+        execute(bkey, (conn) -> {
+            byte[] old = chunked.write(conn, bkey, encoded, ex);
+            invalidate(conn, key);
+            chunked.release(conn, bkey, old);
+            return null;
+        });
+    }
+
+    private int toExpire(Long idle, Long expire) {
+        int ex = defaultExpire;
+
+        if (expire != null) {
+            ex = (int) (expire / 1000);
+        }
+        else if (idle != null) {
+            // note: if this cache is being used as a session store
+            // then idle might be passed in as -1 when a new session
+            // is created and first stored. Avoid setting `ex` in
+            // this case so we don't get a cache item without a TTL
+            // when the cache has a default TTL
+            if (idle >= 0) {
+                ex = (int) (idle / 1000);
+            }
+        }
+        return ex;
+    }
+
+    /**
+     * The idle time to record with an entry, see {@link SlidingExpiration}: 0 unless sliding expiration is enabled
+     * and the entry has an idle time of at least a second, which is then its time to live, see {@link #toExpire}.
+     */
+    private long toIdle(Long idle, Long expire) {
+        return sliding != null && expire == null && idle != null && idle.longValue() >= 1000 ? idle.longValue() : 0;
+    }
+
+    /**
+     * Schedules a touch of <code>bkey</code> if <code>val</code>, just read from it, expires when idle. Returns the
+     * touch, for the near cache to repeat on its hits.
+     */
+    private SlidingExpiration.Touch slide(byte[] bkey, byte[] val) {
+        if (sliding == null) return null;
+        long idle = ValueCodec.idle(val);
+        if (idle <= 0) return null;
+        SlidingExpiration.Touch touch = new SlidingExpiration.Touch(bkey, idle, ChunkedValues.isManifest(val) ? val : null);
+        sliding.touch(touch);
+        return touch;
+    }
+
+    /**
+     * Like {@link #slide(byte[], byte[])}, for stored scopes, see {@link SessionStore}.
+     */
+    void slide(byte[] bkey, long idle) {
+        if (sliding != null && idle > 0) sliding.touch(new SlidingExpiration.Touch(bkey, idle, null));
+    }
+
+    /**
+     * Looked up by Lucee (6.2 and later) through reflection: when true, session and client scopes are handed over as
+     * <code>IKStorageValue</code> objects rather than as their byte representation, which the session store needs
+     * to store them field by field. Without the session store they keep being handed over, and stored, as bytes.
+     */
+    public boolean isObjectSerialisationSupported() {
+        return sessions != null;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        if (writeBehind != null || breaker != null) {
+            WriteBehindQueue.PendingWrite write = pending(normalizeKey(key));
+            if (write != null) return !write.isRemove();
+        }
+
+        byte[] bkey = toJedisKey(key);
+        try {
+            if (multiplexer != null) return ((Long) multiplexed(Protocol.Command.EXISTS, bkey)).longValue() > 0;
+            return read(bkey, normalizeKey(key), (conn) -> conn.exists(bkey));
+        }
+        catch (CircuitBreaker.OpenException e) {
+            return breaker.fallback(normalizeKey(key)) != null;
+        }
+    }
+
+    @Override
+    public boolean remove(String key) throws IOException {
+        long start = System.nanoTime();
+        // scopes are read around the queue, so they are removed around it too
+        if (writeBehind != null && !(sessions != null && SessionStore.isStorageKey(normalizeKey(key)))) {
+            String nkey = normalizeKey(key);
+            WriteBehindQueue.PendingWrite previous = writeBehind.get(nkey);
+            if (enqueue(new WriteBehindQueue.PendingWrite(nkey, toJedisKey(key), null, null, 0))) {
+                stats.removes.increment();
+                stats.remove.record(System.nanoTime() - start);
+                // whether the key exists in Redis is not known without asking it
+                return previous == null || !previous.isRemove();
+            }
+        }
+
+        byte[] bkey = toJedisKey(key);
+        if (replicas != null) replicas.wrote(normalizeKey(key));
+        if (breaker != null) breaker.writing(normalizeKey(key));
+        boolean removed;
+        try {
+            removed = multiplexer != null && !chunked.isEnabled() ? removeMultiplexed(key, bkey) : execute(bkey, (conn) -> {
+                boolean rtn = chunked.isEnabled() ? chunked.remove(conn, bkey) : conn.del(bkey) > 0;
+                invalidate(conn, key);
+                return rtn;
+            });
+            if (breaker != null) breaker.wrote(normalizeKey(key), null, 0);
+        }
+        catch (CircuitBreaker.OpenException e) {
+            defer(new WriteBehindQueue.PendingWrite(normalizeKey(key), bkey, null, null, 0), false);
+            // whether the key exists in Redis is not known without asking it
+            removed = true;
+        }
+        stats.removes.increment();
+        stats.remove.record(System.nanoTime() - start);
+        return removed;
+    }
+
+    private boolean removeMultiplexed(String key, byte[] bkey) {
+        long rtn = ((Long) multiplexed(Protocol.Command.DEL, bkey)).longValue();
+        invalidate(null, key);
+        return rtn > 0;
+    }
+
+    /**
+     * The values of <code>keys</code> (an array) that are in the cache, by key. Whatever the near cache and the
+     * write-behind queue do not hold is read with a single MGET on one connection, or one per node in a cluster,
+     * rather than with a round-trip per key.
+     */
+    public Struct getAll(Object keys) throws PageException {
+        long start = System.nanoTime();
+        List<?> list = caster.toList(keys);
+        // by index, so that the result is in the order of the keys; TOKEN for the keys that are not in the cache
+        Object[] found = new Object[list.size()];
+        List<Integer> indexes = new ArrayList<Integer>();
+        List<String> nkeys = new ArrayList<String>();
+        List<byte[]> bkeys = new ArrayList<byte[]>();
+        long generation = nearCache == null ? 0 : nearCache.generation();
+        String key;
+        String nkey;
+        for (int i = 0; i < found.length; i++) {
+            key = caster.toString(list.get(i));
+            nkey = normalizeKey(key);
+            found[i] = TOKEN;
+            if (sessions != null && SessionStore.isStorageKey(nkey)) {
+                CacheEntry entry = getCacheEntry(key, null);
+                if (entry != null) found[i] = entry.getValue();
+                continue;
+            }
+            WriteBehindQueue.PendingWrite write = pending(nkey);
+            if (write != null) {
+                (write.isRemove() ? stats.misses : stats.hits).increment();
+                if (!write.isRemove()) found[i] = valueOf(write);
+                continue;
+            }
+            if (nearCache != null) {
+                NearCache.Entry entry = nearCache.get(nkey);
+                if (entry != null) {
+                    if (entry.touch != null) sliding.touch(entry.touch);
+                    stats.hits.increment();
+                    found[i] = entry.value();
+                    continue;
+                }
+            }
+            indexes.add(Integer.valueOf(i));
+            nkeys.add(nkey);
+            bkeys.add(toJedisKey(key));
+        }
+
+        List<byte[]> vals;
+        try {
+            vals = bkeys.isEmpty() ? Collections.<byte[]>emptyList() : mget(bkeys, nkeys);
+        }
+        catch (IOException e) {
+            throw caster.toPageException(e);
+        }
+        catch (CircuitBreaker.OpenException e) {
+            for (int i = 0; i < nkeys.size(); i++) {
+                NearCache.Entry entry = breaker.fallback(nkeys.get(i));
+                (entry == null ? stats.misses : stats.hits).increment();
+                if (entry != null) found[indexes.get(i)] = entry.value();
+            }
+            vals = Collections.<byte[]>emptyList();
+        }
+        long t = System.nanoTime();
+        for (int i = 0; i < vals.size(); i++) {
+            byte[] val = vals.get(i);
+            Object value = evaluate(bkeys.get(i), val);
+            if (value == null) {
+                stats.misses.increment();
+                continue;
+            }
+            stats.hits.increment();
+            found[indexes.get(i)] = value;
+            SlidingExpiration.Touch touch = slide(bkeys.get(i), val);
+            if (nearCache != null) nearCache.put(nkeys.get(i), value, ChunkedValues.size(val), touch, generation);
+            if (breaker != null) breaker.remember(nkeys.get(i), value, ChunkedValues.size(val));
+        }
+        long end = System.nanoTime();
+        if (!vals.isEmpty()) stats.deserialize.record(end - t);
+
+        Struct result = engine.getCreationUtil().createStruct(Struct.TYPE_LINKED);
+        for (int i = 0; i < found.length; i++) {
+            if (found[i] != TOKEN) result.setEL(caster.toString(list.get(i)), found[i]);
+        }
+        stats.get.record(end - start);
+        return result;
+    }
+
+    /**
+     * MGET of any number of keys: through the multiplexer, on a replica if none of them was written recently, or in
+     * a cluster on each node that owns some of them.
+     */
+    @SuppressWarnings("unchecked")
+    private List<byte[]> mget(List<byte[]> bkeys, List<String> nkeys) throws IOException {
+        if (multiplexer != null) return (List<byte[]>) multiplexed(Protocol.Command.MGET, bkeys.toArray(new byte[bkeys.size()][]));
+        if (cluster == null) return readOn(replicas == null ? null : replicas.pickAll(nkeys), null, (conn) -> mget(conn, bkeys));
+
+        byte[][] values = new byte[bkeys.size()][];
+        for (Map.Entry<JedisPool, List<Integer>> e: groupByNode(bkeys).entrySet()) {
+            List<Integer> group = e.getValue();
+            List<byte[]> keys = Arrays.asList(select(bkeys, group));
+            List<byte[]> vals = onNode(e.getKey(), (conn) -> mget(conn, keys));
+            for (int i = 0; i < group.size(); i++) {
+                values[group.get(i)] = vals.get(i);
+            }
+        }
+        return Arrays.asList(values);
+    }
+
+    /**
+     * Stores all entries of <code>values</code> (a struct) in one pipeline, on one connection or one per node in a
+     * cluster. <code>timeToLive</code> is a timespan for all of them, a struct of timespans by key (keys it does not
+     * have get the default of the cache), or null for the default. Values large enough to be chunked are still
+     * written one by one, and with write-behind enabled all of them are queued as usual.
+     */
+    public void putAll(Struct values, Object timeToLive) throws PageException {
+        long start = System.nanoTime();
+        Struct ttls = timeToLive instanceof Struct ? (Struct) timeToLive : null;
+        Long all = timeToLive == null || ttls != null ? null : Long.valueOf(caster.toTimespan(timeToLive).getMillis());
+        List<WriteBehindQueue.PendingWrite> writes = new ArrayList<WriteBehindQueue.PendingWrite>(values.size());
+        Iterator<Map.Entry<Collection.Key, Object>> it = values.entryIterator();
+        while (it.hasNext()) {
+            Map.Entry<Collection.Key, Object> e = it.next();
+            String key = e.getKey().getString();
+            Object val = e.getValue();
+            Long expire = all;
+            if (ttls != null) {
+                Object ttl = ttls.get(e.getKey(), null);
+                if (ttl != null) expire = Long.valueOf(caster.toTimespan(ttl).getMillis());
+            }
+            if (writeBehind != null || (sessions != null && sessions.isStorageValue(normalizeKey(key), val))) {
+                put(key, val, null, expire);
+                continue;
+            }
+
+            long t = System.nanoTime();
+            int ex = toExpire(null, expire);
+            byte[] bkey = toJedisKey(key);
+            byte[] data;
+            try {
+                if (chunked.isEnabled()) {
+                    ChunkedValues.Encoded encoded = chunked.encode(codec, keyPrefix(), bkey, val, 0, 0);
+                    if (encoded.isChunked()) {
+                        stats.serialize.record(System.nanoTime() - t);
+                        if (replicas != null) replicas.wrote(normalizeKey(key));
+                        if (breaker != null) breaker.writing(normalizeKey(key));
+                        try {
+                            writeChunked(key, bkey, encoded, ex);
+                            if (breaker != null) breaker.wrote(normalizeKey(key), val, ChunkedValues.size(encoded.data));
+                        }
+                        catch (CircuitBreaker.OpenException oe) {
+                            defer(new WriteBehindQueue.PendingWrite(normalizeKey(key), bkey, val, encoded.data, ex), true);
+                        }
+                        stats.puts.increment();
+                        continue;
+                    }
+                    data = encoded.data;
+                }
+                else {
+                    data = codec.encodeEntry(val, 0);
+                }
+            }
+            catch (IOException ioe) {
+                throw caster.toPageException(ioe);
+            }
+            stats.serialize.record(System.nanoTime() - t);
+            writes.add(new WriteBehindQueue.PendingWrite(normalizeKey(key), bkey, val, data, ex));
+        }
+        if (writes.isEmpty()) return;
+
+        if (replicas != null) {
+            for (WriteBehindQueue.PendingWrite write: writes) {
+                replicas.wrote(write.key);
+            }
+        }
+        Map<WriteBehindQueue.PendingWrite, Exception> failed;
+        try {
+            if (breaker != null) {
+                for (WriteBehindQueue.PendingWrite write: writes) {
+                    breaker.writing(write.key);
+                }
+            }
+            failed = write(writes);
+            // the slot map was refreshed, and writing again does no harm
+            if (!failed.isEmpty() && cluster != null) failed = write(new ArrayList<WriteBehindQueue.PendingWrite>(failed.keySet()));
+            if (breaker != null) {
+                for (WriteBehindQueue.PendingWrite write: writes) {
+                    if (!failed.containsKey(write)) breaker.wrote(write.key, write.value, ChunkedValues.size(write.data));
+                }
+            }
+        }
+        catch (IOException e) {
+            throw caster.toPageException(e);
+        }
+        catch (CircuitBreaker.OpenException e) {
+            // in a cluster some nodes may have been written already, writing those again does no harm
+            for (WriteBehindQueue.PendingWrite write: writes) {
+                defer(write, false);
+            }
+            failed = Collections.emptyMap();
+        }
+        // the other nodes were told in the pipeline
+        if (nearCache != null) {
+            for (WriteBehindQueue.PendingWrite write: writes) {
+                nearCache.invalidate(write.key);
+            }
+        }
+        stats.puts.add(writes.size() - failed.size());
+        stats.put.record(System.nanoTime() - start);
+        if (!failed.isEmpty()) {
+            Map.Entry<WriteBehindQueue.PendingWrite, Exception> first = failed.entrySet().iterator().next();
+            throw caster.toPageException(new IOException("Redis did not write [" + first.getKey().key + "]" + (failed.size() > 1 ? " and " + (failed.size() - 1) + " other keys" : ""), first.getValue()));
+        }
+    }
+
+    /**
+     * Removes <code>keys</code> (an array) with a single UNLINK on one connection, or one per node in a cluster, and
+     * returns how many of them were in the cache. With write-behind enabled, the removes are queued as usual.
+     */
+    public long removeAll(Object keys) throws PageException {
+        long start = System.nanoTime();
+        List<?> list = caster.toList(keys);
+        if (writeBehind != null) {
+            long count = 0;
+            try {
+                for (Object key: list) {
+                    if (remove(caster.toString(key))) count++;
+                }
+            }
+            catch (IOException e) {
+                throw caster.toPageException(e);
+            }
+            return count;
+        }
+        if (list.isEmpty()) return 0;
+
+        List<String> nkeys = new ArrayList<String>(list.size());
+        List<byte[]> bkeys = new ArrayList<byte[]>(list.size());
+        String key;
+        for (Object k: list) {
+            key = caster.toString(k);
+            nkeys.add(normalizeKey(key));
+            bkeys.add(toJedisKey(key));
+            if (replicas != null) replicas.wrote(normalizeKey(key));
+        }
+
+        long removed;
+        try {
+            if (breaker != null) {
+                for (String nkey: nkeys) {
+                    breaker.writing(nkey);
+                }
+            }
+            if (multiplexer != null && !chunked.isEnabled()) {
+                removed = ((Long) multiplexed(Protocol.Command.UNLINK, bkeys.toArray(new byte[bkeys.size()][]))).longValue();
+                invalidateKeys(null, nkeys);
+            }
+            else if (cluster == null) {
+                removed = execute(null, (conn) -> {
+                    long rtn = unlinkValues(conn, bkeys);
+                    invalidateKeys(conn, nkeys);
+                    return rtn;
+                });
+            }
+            else {
+                removed = 0;
+                for (Map.Entry<JedisPool, List<Integer>> e: groupByNode(bkeys).entrySet()) {
+                    List<byte[]> group = Arrays.asList(select(bkeys, e.getValue()));
+                    removed += onNode(e.getKey(), (conn) -> unlinkValues(conn, group));
+                }
+                invalidateKeys(nkeys);
+            }
+            if (breaker != null) {
+                for (String nkey: nkeys) {
+                    breaker.wrote(nkey, null, 0);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw caster.toPageException(e);
+        }
+        catch (CircuitBreaker.OpenException e) {
+            for (int i = 0; i < nkeys.size(); i++) {
+                defer(new WriteBehindQueue.PendingWrite(nkeys.get(i), bkeys.get(i), null, null, 0), false);
+            }
+            // whether the keys exist in Redis is not known without asking it
+            removed = 0;
+        }
+        stats.removes.add(nkeys.size());
+        stats.remove.record(System.nanoTime() - start);
+        return removed;
+    }
+
+    /**
+     * Stores a value like {@link #put}, and adds its key to the groups of <code>tags</code> (an array or a comma
+     * separated list), which {@link #invalidateTag} removes at once, see {@link TagIndex}. <code>timeToLive</code>
+     * is a timespan, null for the default of the cache. Tagged values are written right away, also with
+     * write-behind enabled.
+     */
+    public void putTagged(String key, Object val, Object tags, Object timeToLive) throws PageException {
+        long start = System.nanoTime();
+        List<byte[]> tkeys = toTagKeys(tags);
+        int ex = toExpire(null, timeToLive == null ? null : Long.valueOf(caster.toTimespan(timeToLive).getMillis()));
+        if (tkeys.isEmpty()) {
+            store(key, val, 0, ex, 0, start);
+            return;
+        }
+
+        String nkey = normalizeKey(key);
+        byte[] bkey = toJedisKey(key);
+        byte[] data = null;
+        ChunkedValues.Encoded encoded = null;
+        try {
+            if (chunked.isEnabled()) encoded = chunked.encode(codec, keyPrefix(), bkey, val, 0, 0);
+            else data = codec.encodeEntry(val, 0);
+            stats.serialize.record(System.nanoTime() - start);
+            // a write of the key that is still queued would land after this one
+            if (writeBehind != null && writeBehind.get(nkey) != null) flushWriteBehind();
+        }
+        catch (IOException e) {
+            throw caster.toPageException(e);
+        }
+
+        if (replicas != null) replicas.wrote(nkey);
+        try {
+            if (breaker != null) breaker.writing(nkey);
+        }
+        catch (IOException e) {
+            throw caster.toPageException(e);
+        }
+        try {
+            // with chunking enabled, values are written along with the release of what they replace, see ChunkedValues
+            writeTagged(key, bkey, tkeys, data, ex);
+            if (encoded != null) writeChunked(key, bkey, encoded, ex);
+            if (breaker != null) breaker.wrote(nkey, val, ChunkedValues.size(encoded == null ? data : encoded.data));
+        }
+        catch (CircuitBreaker.OpenException e) {
+            // a replay would not add the key to its tags, so the write is dropped rather than buffered
+            defer(new WriteBehindQueue.PendingWrite(nkey, bkey, val, encoded == null ? data : encoded.data, ex), true);
+        }
+        stats.puts.increment();
+        stats.put.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Adds <code>bkey</code> to the sets <code>tkeys</code>, in one transaction with writing <code>data</code> unless
+     * that is null or, in a cluster, the sets are in other slots.
+     */
+    private void writeTagged(String key, byte[] bkey, List<byte[]> tkeys, byte[] data, int ex) {
+        if (cluster == null || sameSlot(bkey, tkeys)) {
+            execute(bkey, (conn) -> {
+                tagIndex.add(conn, bkey, tkeys, data, ex);
+                if (data != null) invalidate(conn, key);
+                return null;
+            });
+            return;
+        }
+
+        for (byte[] tkey: tkeys) {
+            execute(tkey, (conn) -> {
+                tagIndex.add(conn, bkey, Collections.singletonList(tkey), null, ex);
+                return null;
+            });
+        }
+        if (data == null) return;
+        execute(bkey, (conn) -> {
+            if (ex > 0) conn.setex(bkey, ex, data);
+            else conn.set(bkey, data);
+            invalidate(conn, key);
+            return null;
+        });
+    }
+
+    /**
+     * Removes all keys that were put with any of <code>tags</code> (an array or a comma separated list) and returns
+     * how many of them were still in the cache, see {@link TagIndex}.
+     */
+    public long invalidateTag(Object tags) throws PageException {
+        long start = System.nanoTime();
+        List<byte[]> tkeys = toTagKeys(tags);
+        if (replicas != null) replicas.wrote(null);
+        long removed = 0;
+        try {
+            for (byte[] tkey: tkeys) {
+                removed += invalidateTag(tkey);
+            }
+        }
+        catch (IOException e) {
+            throw caster.toPageException(e);
+        }
+        catch (CircuitBreaker.OpenException e) {
+            // which keys have the tags is not known without asking Redis, so none of the values kept locally is
+            // served anymore
+            if (nearCache != null) nearCache.invalidateAll();
+            breaker.dropAll();
+        }
+        stats.removes.add(removed);
+        stats.remove.record(System.nanoTime() - start);
+        return removed;
+    }
+
+    private long invalidateTag(byte[] tkey) throws IOException {
+        if (tagIndex.isAtomic()) {
+            TagIndex.Invalidated result = execute(tkey, (conn) -> {
+                TagIndex.Invalidated rtn = tagIndex.invalidate(conn, tkey, chunked.isEnabled());
+                if (rtn == null) return null;
+                if (rtn.heads != null) chunked.release(conn, rtn.keys, rtn.heads);
+                invalidateKeys(conn, toNormalizedKeys(rtn.keys));
+                return rtn;
+            });
+            if (result != null) return result.removed;
+        }
+
+        // from the client: the members as they are now are removed, and only they are taken out of the set, so that
+        // keys added meanwhile stay in it
+        List<byte[]> keys = new ArrayList<byte[]>(execute(tkey, (conn) -> conn.smembers(tkey)));
+        long removed = 0;
+        if (!keys.isEmpty()) {
+            if (cluster == null) {
+                removed = execute(null, (conn) -> {
+                    long n = unlinkValues(conn, keys);
+                    invalidateKeys(conn, toNormalizedKeys(keys));
+                    return n;
+                });
+            }
+            else {
+                for (Map.Entry<JedisPool, List<Integer>> e: groupByNode(keys).entrySet()) {
+                    List<byte[]> group = Arrays.asList(select(keys, e.getValue()));
+                    removed += onNode(e.getKey(), (conn) -> unlinkValues(conn, group));
+                }
+                invalidateKeys(toNormalizedKeys(keys));
+            }
+            execute(tkey, (conn) -> conn.srem(tkey, keys.toArray(new byte[keys.size()][])));
+        }
+        tagIndex.invalidated(removed);
+        return removed;
+    }
+
+    private List<byte[]> toTagKeys(Object tags) throws PageException {
+        if (tags == null) return Collections.emptyList();
+        List<?> list = tags instanceof String ? Arrays.asList(((String) tags).split(",")) : caster.toList(tags);
+        Set<String> names = new LinkedHashSet<String>();
+        for (Object tag: list) {
+            String name = normalizeKey(caster.toString(tag));
+            if (!name.isEmpty()) names.add(name);
+        }
+        byte[] prefix = keyPrefix();
+        List<byte[]> tkeys = new ArrayList<byte[]>(names.size());
+        for (String name: names) {
+            tkeys.add(TagIndex.key(prefix, name));
+        }
+        return tkeys;
+    }
+
+    private List<String> toNormalizedKeys(List<byte[]> bkeys) {
+        List<String> nkeys = new ArrayList<String>(bkeys.size());
+        for (byte[] bkey: bkeys) {
+            nkeys.add(normalizeKey(fromJedisKey(bkey)));
+        }
+        return nkeys;
+    }
+
+    private static boolean sameSlot(byte[] bkey, List<byte[]> keys) {
+        int slot = ClusterRouter.slot(bkey);
+        for (byte[] key: keys) {
+            if (ClusterRouter.slot(key) != slot) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int remove(CacheKeyFilter filter) throws IOException {
+        flushWriteBehind();
+        if (generations != null && CacheUtil.allowAll(filter)) {
+            // the old keys are reaped in the background, how many there are is not known
+            generations.next();
+            invalidateAll();
+            return 0;
+        }
+        final AtomicInteger count = new AtomicInteger();
+        if (replicas != null) replicas.wrote(null);
+        final byte[] match = serverSidePattern(filter);
+        forEachNode((conn) -> {
+            if (match != null && scriptRemove) {
+                try {
+                    count.addAndGet((int) unlinkMatching(conn, match));
+                    return;
+                }
+                catch (JedisDataException e) {
+                    // go on from the client, and from now on only if scripting is disabled or not permitted
+                    if (CacheUtil.isScriptingUnavailable(e)) scriptRemove = false;
+                }
+            }
+            _scan(conn, filter, (keys) -> count.addAndGet((int) unlinkValues(conn, keys)));
+        });
+        if (count.get() > 0) invalidateAll();
+        return count.get();
+    }
+
+    /**
+     * The SCAN pattern of the keys to remove if matching it is all there is to the filter and the keys can be
+     * removed by a script, null otherwise. In a cluster, scripts may only touch the keys of one slot.
+     */
+    private byte[] serverSidePattern(CacheKeyFilter filter) {
+        if (cluster != null || !scriptRemove) return null;
+        if (CacheUtil.allowAll(filter)) return keyCodec().scanPattern();
+        // the chunks of the values removed have to be released, and the pattern may match chunks of other values
+        if (chunked.isEnabled()) return null;
+        KeyPattern pattern = KeyPattern.of(filter);
+        return pattern != null && pattern.exact ? keyCodec().scanPattern(pattern.glob) : null;
+    }
+
+    /**
+     * Removes the keys matching <code>match</code> with a script that scans and unlinks one batch per call, so that
+     * the keys never leave Redis and no single call blocks it for long.
+     */
+    @SuppressWarnings("unchecked")
+    private long unlinkMatching(Jedis conn, byte[] match) {
+        byte[] count = Integer.toString(scanBatchSize).getBytes(UTF8);
+        byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+        long removed = 0;
+        do {
+            List<Object> rtn = (List<Object>) conn.eval(UNLINK_MATCHING, 0, cursor, match, count);
+            cursor = (byte[]) rtn.get(0);
+            removed += ((Long) rtn.get(1)).longValue();
+        }
+        while (!Arrays.equals(cursor, ScanParams.SCAN_POINTER_START_BINARY));
+        return removed;
+    }
+
+    @Override
+    public int remove(CacheEntryFilter filter) throws IOException {
+        if (CacheUtil.allowAll(filter)) return remove((CacheKeyFilter) null);
+        flushWriteBehind();
+
+        final AtomicInteger count = new AtomicInteger();
+        if (replicas != null) replicas.wrote(null);
+        forEachNode((conn) -> _scanEntries(conn, null, filter, (keys, entries) -> count.addAndGet((int) unlinkValues(conn, keys))));
+        if (count.get() > 0) invalidateAll();
+        return count.get();
+    }
+
+    @Override
+    public List<String> keys() throws IOException {
+        return keys((CacheKeyFilter) null);
+    }
+
+    @Override
+    public List<String> keys(CacheKeyFilter filter) throws IOException {
+        flushWriteBehind();
+        final List<String> list = Collections.synchronizedList(new ArrayList<String>());
+        final Set<String> seen = ConcurrentHashMap.newKeySet();
+        readEachNode((conn) -> _scan(conn, filter, (keys) -> {
+            String key;
+            for (byte[] bkey: keys) {
+                key = fromJedisKey(bkey);
+                if (seen.add(key)) list.add(key);
+            }
+        }), () -> {
+            list.clear();
+            seen.clear();
+        });
+        return list;
+    }
+
+    @Override
+    public List<String> keys(CacheEntryFilter filter) throws IOException {
+        if (CacheUtil.allowAll(filter)) return keys();
+        flushWriteBehind();
+
+        final List<String> list = Collections.synchronizedList(new ArrayList<String>());
+        readEachNode((conn) -> _scanEntries(conn, null, filter, (keys, entries) -> {
+            for (CacheEntry entry: entries) {
+                list.add(entry.getKey());
+            }
+        }), list::clear);
+        return list;
+    }
+
+    @Override
+    public List values() throws IOException {
+        return values((CacheKeyFilter) null);
+    }
+
+    @Override
+    public List values(CacheKeyFilter filter) throws IOException {
+        flushWriteBehind();
+
+        try {
+            final List<Object> list = Collections.synchronizedList(new ArrayList<Object>());
+            readEachNode((conn) -> _scanEntries(conn, filter, null, (keys, entries) -> {
+                for (CacheEntry entry: entries) {
+                    list.add(entry.getValue());
+                }
+            }), list::clear);
+            return list;
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);// not throwing IOException because Lucee 4.5
+        }
+    }
+
+    @Override
+    public List values(CacheEntryFilter filter) throws IOException {
+        if (CacheUtil.allowAll(filter)) return values();
+        flushWriteBehind();
+
+        final List<Object> list = Collections.synchronizedList(new ArrayList<Object>());
+        readEachNode((conn) -> _scanEntries(conn, null, filter, (keys, entries) -> {
+            for (CacheEntry entry: entries) {
+                list.add(entry.getValue());
+            }
+        }), list::clear);
+        return list;
+    }
+
+    @Override
+    public List<CacheEntry> entries() throws IOException {
+        return entries((CacheKeyFilter) null);
+    }
+
+    @Override
+    public List<CacheEntry> entries(CacheKeyFilter filter) throws IOException {
+        flushWriteBehind();
+
+        try {
+            final List<CacheEntry> list = Collections.synchronizedList(new ArrayList<CacheEntry>());
+            readEachNode((conn) -> _scanEntries(conn, filter, null, (keys, entries) -> list.addAll(entries)), list::clear);
+            return list;
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public List<CacheEntry> entries(CacheEntryFilter filter) throws IOException {
+        if (CacheUtil.allowAll(filter)) return entries();
+        flushWriteBehind();
+
+        final List<CacheEntry> list = Collections.synchronizedList(new ArrayList<CacheEntry>());
+        readEachNode((conn) -> _scanEntries(conn, null, filter, (keys, entries) -> list.addAll(entries)), list::clear);
+        return list;
+    }
+
+    @Override
+    public long hitCount() {
+        return stats.getHitCount();
+    }
+
+    @Override
+    public long missCount() {
+        return stats.getMissCount();
+    }
+
+    @Override
+    public Struct getCustomInfo() {
+        Jedis conn = null;
+        try {
+            Struct info;
+            try {
+                conn = jedisSilent();
+                info = InfoParser.parse(CacheUtil.getInfo(this), conn.info());// not throwing IOException because Lucee 4.5
+            }
+            catch (CircuitBreaker.OpenException e) {
+                // what is known locally, the state of the circuit first of all
+                info = CacheUtil.getInfo(this);
+            }
+            info.setEL("put_count", Double.valueOf(stats.getPutCount()));
+            info.setEL("remove_count", Double.valueOf(stats.getRemoveCount()));
+            info.setEL("hit_rate", Double.valueOf(stats.getHitRate()));
+            info.setEL("Latency", stats.getInfo());
+            if (nearCache != null) info.setEL("NearCache", nearCache.getInfo());
+            info.setEL("Compression", compression.getInfo());
+            if (chunked.isEnabled()) info.setEL("Chunks", chunked.getInfo());
+            if (writeBehind != null) info.setEL("WriteBehind", writeBehind.getInfo());
+            if (sliding != null) info.setEL("SlidingExpiration", sliding.getInfo());
+            if (breaker != null) info.setEL("CircuitBreaker", breaker.getInfo());
+            if (replicas != null) info.setEL("Replicas", replicas.getInfo());
+            if (multiplexer != null) info.setEL("Multiplexer", multiplexer.getInfo());
+            if (generations != null) info.setEL("Generations", generations.getInfo());
+            info.setEL("Stampede", stampede.getInfo());
+            info.setEL("Tags", tagIndex.getInfo());
+            return info;
+        }
+        finally {
+            close(conn);
+        }
+    }
+
+    public CacheEntry getQuiet(String key) throws IOException {
+        CacheEntry entry = getQuiet(key, null);
+        if (entry == null) throw new CacheException("there is no valid cache entry with key [" + key + "]");
+        return entry;
+    }
+
+    public CacheEntry getQuiet(String key, CacheEntry defaultValue) {
+        // TODO
+        return getCacheEntry(key, defaultValue);
+    }
+
+    /**
+     * Walks the keys of the namespace with SCAN and hands them to <code>handler</code> one batch at a time, already
+     * filtered, so that neither Redis nor the JVM has to deal with the whole keyspace at once. Like SCAN itself, a
+     * key that is added or removed while scanning may or may not be reported, and a key may be reported twice.
+     */
+    private void _scan(Jedis conn, CacheKeyFilter filter, KeyBatchHandler handler) throws IOException {
+        KeyScan scan = new KeyScan(filter);
+        byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+        ScanResult<byte[]> result;
+        List<byte[]> batch;
+        do {
+            result = conn.scan(cursor, scan.params);
+            cursor = result.getCursorAsBytes();
+            batch = scan.filter(result.getResult());
+            if (!batch.isEmpty()) handler.handle(batch);
+        }
+        while (!result.isCompleteIteration());
+    }
+
+    /**
+     * Like {@link #_scan}, but also fetches the values of each batch with MGETs and hands over the entries that pass
+     * <code>entryFilter</code>, along with their Redis keys. The values are fetched in chunks that fit the memory
+     * budget, see {@link ChunkSizer}, and each chunk is handed over on its own, in order. Keys that expired or were
+     * removed since the scan are skipped, and so are keys SCAN reports twice. As an entry filter may well look at the
+     * metadata of entries, it is then fetched in the same pipeline as the values rather than per entry.
+     * <p>
+     * Chunks are fetched and deserialized on other connections and threads in parallel as long as there are
+     * permits, see <code>bulkParallelism</code>; otherwise the calling thread does it on <code>conn</code>.
+     */
+    private void _scanEntries(Jedis conn, CacheKeyFilter keyFilter, CacheEntryFilter entryFilter, EntryBatchHandler handler) throws IOException {
+        final boolean all = CacheUtil.allowAll(entryFilter);
+        final ChunkSizer sizer = new ChunkSizer(scanMemoryBudget, scanBatchSize);
+        final Set<ByteBuffer> seen = new HashSet<ByteBuffer>();
+        _scan(conn, keyFilter, (scanned) -> {
+            List<byte[]> batch = new ArrayList<byte[]>(scanned.size());
+            for (byte[] key: scanned) {
+                if (seen.add(ByteBuffer.wrap(key))) batch.add(key);
+            }
+            if (batch.isEmpty()) return;
+            Deque<Future<Chunk>> inFlight = new ArrayDeque<Future<Chunk>>();
+            // small values fit the budget in one chunk, they are split to be read in parallel all the same
+            int max = (batch.size() + bulkParallelism - 1) / bulkParallelism;
+            int n;
+            for (int from = 0; from < batch.size(); from += n) {
+                n = Math.min(Math.min(sizer.next(), max), batch.size() - from);
+                List<byte[]> keys = batch.subList(from, from + n);
+                // the first chunk is read here, so that the size of the others is known before they are sent off
+                if (bulkPermits != null && sizer.isKnown() && bulkPermits.tryAcquire()) {
+                    inFlight.add(bulkExecutor().submit(() -> {
+                        try {
+                            Object[] raw = read(keys.get(0), null, (c) -> fetch(c, keys, !all));
+                            return toChunk(keys, raw, entryFilter, sizer);
+                        }
+                        finally {
+                            bulkPermits.release();
+                        }
+                    }));
+                }
+                else {
+                    inFlight.add(CompletableFuture.completedFuture(toChunk(keys, fetch(conn, keys, !all), entryFilter, sizer)));
+                }
+                // in order, and with no more chunks held than there are permits
+                while (!inFlight.isEmpty() && (inFlight.peek().isDone() || inFlight.size() > bulkParallelism)) {
+                    await(inFlight.poll()).handle(handler);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                await(inFlight.poll()).handle(handler);
+            }
+        });
+    }
+
+    /**
+     * The metadata, if asked for, and the values of <code>keys</code>, which all live on the node of
+     * <code>conn</code>. The metadata is read in one pipeline with the values.
+     */
+    Object[] fetch(Jedis conn, List<byte[]> keys, boolean withMetadata) {
+        if (!withMetadata) return new Object[] { null, mget(conn, keys) };
+
+        Pipeline p = conn.pipelined();
+        // the metadata has to be read before the values, see RedisCacheEntry.Metadata
+        List<RedisCacheEntry.Request> requests = requestMetadata(p, keys);
+        QueuedMget values = new QueuedMget(p, keys);
+        p.sync();
+        return new Object[] { toMetadata(requests), values.get() };
+    }
+
+    @SuppressWarnings("unchecked")
+    private Chunk toChunk(List<byte[]> lkeys, Object[] raw, CacheEntryFilter entryFilter, ChunkSizer sizer) {
+        List<RedisCacheEntry.Metadata> metadata = (List<RedisCacheEntry.Metadata>) raw[0];
+        List<byte[]> values = (List<byte[]>) raw[1];
+        sizer.record(values);
+        boolean all = CacheUtil.allowAll(entryFilter);
+        Chunk chunk = new Chunk(lkeys.size());
+        int i = 0;
+        byte[] key;
+        CacheEntry entry;
+        for (byte[] val: values) {
+            key = lkeys.get(i++);
+            if (val == null) continue;
+            entry = toEntry(key, val, metadata == null ? null : metadata.get(i - 1));
+            if (entry != null && (all || entryFilter.accept(entry))) {
+                chunk.keys.add(key);
+                chunk.entries.add(entry);
+            }
+        }
+        return chunk;
+    }
+
+    private static Chunk await(Future<Chunk> future) throws IOException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * The entries of a chunk that passed the entry filter, with their Redis keys.
+     */
+    private static class Chunk {
+        final List<byte[]> keys;
+        final List<CacheEntry> entries;
+
+        Chunk(int size) {
+            keys = new ArrayList<byte[]>(size);
+            entries = new ArrayList<CacheEntry>(size);
+        }
+
+        void handle(EntryBatchHandler handler) throws IOException {
+            if (!entries.isEmpty()) handler.handle(keys, entries);
+        }
+    }
+
+    /**
+     * The entry of a value read in bulk, or null if it is a chunked value whose chunks are gone.
+     */
+    RedisCacheEntry toEntry(byte[] key, byte[] val, RedisCacheEntry.Metadata metadata) {
+        Object value = evaluate(key, val);
+        if (value == null) return null;
+        return new RedisCacheEntry(this, fromJedisKey(key), key, value, ChunkedValues.size(val), ValueCodec.modified(val), metadata);
+    }
+
+    public Iterator<CacheEntry> entryIterator() throws IOException {
+        return entryIterator((CacheKeyFilter) null);
+    }
+
+    /**
+     * Iterates over the entries whose keys pass <code>filter</code> without loading them all at once, see
+     * {@link EntryIterator}.
+     */
+    public Iterator<CacheEntry> entryIterator(CacheKeyFilter filter) throws IOException {
+        flushWriteBehind();
+        return new EntryIterator(this, new KeyScan(filter), null, scanNodes(), new ChunkSizer(scanMemoryBudget, scanBatchSize));
+    }
+
+    /**
+     * Iterates over the entries that pass <code>filter</code> without loading them all at once.
+     */
+    public Iterator<CacheEntry> entryIterator(CacheEntryFilter filter) throws IOException {
+        flushWriteBehind();
+        return new EntryIterator(this, new KeyScan(null), filter, scanNodes(), new ChunkSizer(scanMemoryBudget, scanBatchSize));
+    }
+
+    public Iterator<Object> valueIterator() throws IOException {
+        return valueIterator(null);
+    }
+
+    /**
+     * Iterates over the values whose keys pass <code>filter</code> without loading them all at once.
+     */
+    public Iterator<Object> valueIterator(CacheKeyFilter filter) throws IOException {
+        Iterator<CacheEntry> it = entryIterator(filter);
+        return new Iterator<Object>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Object next() {
+                return it.next().getValue();
+            }
+        };
+    }
+
+    /**
+     * The SCAN of the keys that pass a key filter. Wildcard filters are passed to SCAN as a pattern, see
+     * {@link KeyPattern}; the keys of other filters are filtered here. The chunks of large values and the sets of
+     * tags are never reported, see {@link ChunkedValues} and {@link TagIndex}.
+     */
+    class KeyScan {
+        final ScanParams params;
+        private final CacheKeyFilter filter;
+        private final byte[] prefix;
+
+        KeyScan(CacheKeyFilter filter) {
+            KeyPattern pattern = CacheUtil.allowAll(filter) ? null : KeyPattern.of(filter);
+            boolean all = pattern == null ? CacheUtil.allowAll(filter) : pattern.exact;
+            this.filter = all ? null : filter;
+            this.params = new ScanParams().match(pattern == null ? keyCodec().scanPattern() : keyCodec().scanPattern(pattern.glob)).count(scanBatchSize);
+            this.prefix = keyPrefix();
+        }
+
+        List<byte[]> filter(List<byte[]> keys) {
+            Iterator<byte[]> it = keys.iterator();
+            byte[] key;
+            while (it.hasNext()) {
+                key = it.next();
+                if (ChunkedValues.isChunk(prefix, key) || TagIndex.isTag(prefix, key) || (filter != null && !filter.accept(fromJedisKey(key)))) it.remove();
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * Fetches the metadata of an entry, see {@link RedisCacheEntry}.
+     */
+    RedisCacheEntry.Metadata metadata(byte[] bkey) {
+        return execute(bkey, (conn) -> {
+            Pipeline p = conn.pipelined();
+            List<RedisCacheEntry.Request> requests = requestMetadata(p, Collections.singletonList(bkey));
+            p.sync();
+            return toMetadata(requests).get(0);
+        });
+    }
+
+    private static List<RedisCacheEntry.Request> requestMetadata(Pipeline p, List<byte[]> keys) {
+        List<RedisCacheEntry.Request> requests = new ArrayList<RedisCacheEntry.Request>(keys.size());
+        for (byte[] key: keys) {
+            requests.add(RedisCacheEntry.Metadata.request(p, key));
+        }
+        return requests;
+    }
+
+    private static List<RedisCacheEntry.Metadata> toMetadata(List<RedisCacheEntry.Request> requests) {
+        List<RedisCacheEntry.Metadata> metadata = new ArrayList<RedisCacheEntry.Metadata>(requests.size());
+        for (RedisCacheEntry.Request request: requests) {
+            metadata.add(request.get());
+        }
+        return metadata;
+    }
+
+    /**
+     * MGET for keys that all live on the node of <code>conn</code>, see {@link QueuedMget}.
+     */
+    List<byte[]> mget(Jedis conn, List<byte[]> keys) {
+        if (cluster == null) return conn.mget(keys.toArray(new byte[keys.size()][]));
+
+        Pipeline p = conn.pipelined();
+        QueuedMget values = new QueuedMget(p, keys);
+        p.sync();
+        return values.get();
+    }
+
+    /**
+     * MGET for keys that all live on the node of a pipeline, queued on it. In a cluster, MGET only works within a
+     * slot, so the keys are grouped by slot with one MGET each. Keys whose slot moved away since they were scanned
+     * are fetched one by one from their new node once the pipeline was synced.
+     */
+    private class QueuedMget {
+        private final List<byte[]> keys;
+        private final List<List<Integer>> groups;
+        private final List<Response<List<byte[]>>> responses;
+
+        QueuedMget(Pipeline p, List<byte[]> keys) {
+            this.keys = keys;
+            if (cluster == null) {
+                groups = null;
+                responses = Collections.singletonList(p.mget(keys.toArray(new byte[keys.size()][])));
+                return;
+            }
+            groups = groupBySlot(keys);
+            responses = new ArrayList<Response<List<byte[]>>>(groups.size());
+            for (List<Integer> group: groups) {
+                responses.add(p.mget(select(keys, group)));
+            }
+        }
+
+        List<byte[]> get() {
+            if (groups == null) return responses.get(0).get();
+
+            byte[][] values = new byte[keys.size()][];
+            for (int g = 0; g < groups.size(); g++) {
+                List<Integer> group = groups.get(g);
+                try {
+                    List<byte[]> vals = responses.get(g).get();
+                    for (int i = 0; i < group.size(); i++) {
+                        values[group.get(i)] = vals.get(i);
+                    }
+                }
+                catch (JedisRedirectionException e) {
+                    for (int index: group) {
+                        byte[] key = keys.get(index);
+                        values[index] = execute(key, (c) -> c.get(key));
+                    }
+                }
+            }
+            return Arrays.asList(values);
+        }
+    }
+
+    /**
+     * UNLINK for keys that all live on the node of <code>conn</code>, grouped by slot like {@link #mget}.
+     */
+    long unlink(Jedis conn, List<byte[]> keys) {
+        if (cluster == null) {
+            Long rtn = conn.unlink(keys.toArray(new byte[keys.size()][]));
+            return rtn == null ? 0 : rtn.longValue();
+        }
+
+        List<List<Integer>> groups = groupBySlot(keys);
+        Pipeline p = conn.pipelined();
+        List<Response<Long>> responses = new ArrayList<Response<Long>>(groups.size());
+        for (List<Integer> group: groups) {
+            responses.add(p.unlink(select(keys, group)));
+        }
+        p.sync();
+
+        long count = 0;
+        for (int g = 0; g < groups.size(); g++) {
+            try {
+                Long rtn = responses.get(g).get();
+                if (rtn != null) count += rtn.longValue();
+            }
+            catch (JedisRedirectionException e) {
+                for (int index: groups.get(g)) {
+                    byte[] key = keys.get(index);
+                    count += execute(key, (c) -> c.unlink(key));
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Like {@link #unlink}, for values that may be chunked: their chunks are released first.
+     */
+    private long unlinkValues(Jedis conn, List<byte[]> keys) {
+        if (chunked.isEnabled()) chunked.releaseAll(conn, keys);
+        return unlink(conn, keys);
+    }
+
+    /**
+     * The indexes of <code>keys</code> by the primary that owns them, in a cluster.
+     */
+    private Map<JedisPool, List<Integer>> groupByNode(List<byte[]> keys) throws IOException {
+        Map<JedisPool, List<Integer>> nodes = new LinkedHashMap<JedisPool, List<Integer>>();
+        for (int i = 0; i < keys.size(); i++) {
+            nodes.computeIfAbsent(cluster.pool(keys.get(i)), (pool) -> new ArrayList<Integer>()).add(i);
+        }
+        return nodes;
+    }
+
+    private static List<List<Integer>> groupBySlot(List<byte[]> keys) {
+        Map<Integer, List<Integer>> slots = new LinkedHashMap<Integer, List<Integer>>();
+        for (int i = 0; i < keys.size(); i++) {
+            slots.computeIfAbsent(ClusterRouter.slot(keys.get(i)), (slot) -> new ArrayList<Integer>()).add(i);
+        }
+        return new ArrayList<List<Integer>>(slots.values());
+    }
+
+    private static byte[][] select(List<byte[]> keys, List<Integer> indexes) {
+        byte[][] arr = new byte[indexes.size()][];
+        for (int i = 0; i < arr.length; i++) {
+            arr[i] = keys.get(indexes.get(i));
+        }
+        return arr;
+    }
+
+    byte[] toJedisKey(String key) {
+        return keyCodec().encode(key);
+    }
+
+    private static String normalizeKey(String key) {
+        return KeyCodec.normalize(key);
+    }
+
+    String fromJedisKey(byte[] jkey) {
+        return keyCodec().decode(jkey);
+    }
+
+    String fromJedisKey(byte[] jkey, int offset, int length) {
+        return keyCodec().decode(jkey, offset, length);
+    }
+
+    /**
+     * The namespace prefix of the current generation, or null for none.
+     */
+    byte[] keyPrefix() {
+        String prefix = keyCodec().prefix();
+        return prefix == null ? null : prefix.getBytes(UTF8);
+    }
+
+    private KeyCodec keyCodec() {
+        // loads the generation on first use
+        if (generations != null) generations.current();
+        return keyCodec;
+    }
+
+    /**
+     * Keys now live in generation <code>g</code>, see {@link Generations}.
+     */
+    void generationChanged(long g) {
+        keyCodec = new KeyCodec(namespaceCodec.prefix() + g + ':');
+        if (nearCache != null) nearCache.invalidateAll();
+        if (replicas != null) replicas.wrote(null);
+    }
+
+    /**
+     * The value stored at <code>bkey</code>, or null if it is a chunked value whose chunks are gone.
+     */
+    Object evaluate(byte[] bkey, byte[] data) {
+        if (data == null) return null;
+
+        try {
+            if (bkey != null && ChunkedValues.isManifest(data)) return codec.decode(chunked.open(bkey, data));
+            return codec.decode(data);
+        }
+        catch (ChunkedValues.MissingChunkException e) {
+            return null;
+        }
+        catch (JedisException e) {
+            // reading the chunks failed
+            throw e;
+        }
+        catch (Exception e) {
+            // e.g. the class of a serialized value is no longer available, read it as text like before
+            return new String(data, UTF8);
+        }
+    }
+
+    byte[] serialize(Object value) throws PageException {
+        try {
+            return codec.encodeEntry(value, 0);
+        }
+        catch (Exception e) {
+            throw CFMLEngineFactory.getInstance().getCastUtil().toPageException(e);
+        }
+    }
+
+    /**
+     * Drops <code>key</code> (or every key when null) from the near cache of this node and tells the other nodes
+     * to do the same.
+     */
+    private void invalidate(Jedis conn, String key) {
+        if (nearCache == null) return;
 
-            int ex = defaultExpire;
+        if (key == null) nearCache.invalidateAll();
+        else nearCache.invalidate(normalizeKey(key));
 
-            if (expire != null) {
-                ex = (int) (expire / 1000);
-            }
-            else if (idle != null) {
-                // note: if this cache is being used as a session store
-                // then idle might be passed in as -1 when a new session
-                // is created and first stored. Avoid setting `ex` in
-                // this case so we don't get a cache item without a TTL
-                // when the cache has a default TTL
-                if (idle >= 0) {
-                    ex = (int) (idle / 1000);
-                }
-            }
+        if (invalidationChannel != null) {
+            byte[] message = NearCacheInvalidator.message(nodeId, key == null ? null : normalizeKey(key));
+            if (conn == null) multiplexed(Protocol.Command.PUBLISH, invalidationChannel, message);
+            else conn.publish(invalidationChannel, message);
+        }
+    }
 
-            if (ex > 0) {
-                conn.setex(bkey, ex, serialize(val));
-            } else {
-                conn.set(bkey, serialize(val));
-            }
+    /**
+     * Like {@link #invalidate(Jedis, String)} for any number of keys (normalized), with the messages to the other
+     * nodes pipelined.
+     */
+    private void invalidateKeys(Jedis conn, List<String> nkeys) {
+        if (nearCache == null) return;
+
+        for (String nkey: nkeys) {
+            nearCache.invalidate(nkey);
         }
-        catch (PageException e) {
-            throw new RuntimeException(e);
+        if (invalidationChannel == null) return;
+        if (conn == null) {
+            List<CompletableFuture<Object>> published = new ArrayList<CompletableFuture<Object>>(nkeys.size());
+            for (String nkey: nkeys) {
+                published.add(multiplexer.send(Protocol.Command.PUBLISH, invalidationChannel, NearCacheInvalidator.message(nodeId, nkey)));
+            }
+            for (CompletableFuture<Object> future: published) {
+                multiplexer.await(future);
+            }
+            return;
         }
-        finally {
-            close(conn);
+        Pipeline p = conn.pipelined();
+        for (String nkey: nkeys) {
+            p.publish(invalidationChannel, NearCacheInvalidator.message(nodeId, nkey));
         }
+        p.sync();
     }
 
-    @Override
-    public boolean contains(String key) {
+    private void invalidateKeys(List<String> nkeys) {
+        if (nearCache == null) return;
+
         Jedis conn = jedisSilent();
         try {
-            return conn.exists(toJedisKey(key));
+            invalidateKeys(conn, nkeys);
         }
         finally {
             close(conn);
         }
     }
 
-    @Override
-    public boolean remove(String key) throws IOException {
-        Jedis conn = null;
+    private void invalidateAll() {
+        if (nearCache == null) return;
+
+        Jedis conn = jedisSilent();
         try {
-            conn = jedis();
-            return conn.del(toJedisKey(key)) > 0;
+            invalidate(conn, null);
         }
         finally {
             close(conn);
         }
     }
 
-    @Override
-    public int remove(CacheKeyFilter filter) throws IOException {
-        Jedis conn = jedisSilent();
+    /**
+     * The write of <code>nkey</code> that is not in Redis yet, if any: queued by write-behind, or buffered while the
+     * circuit was open, see {@link CircuitBreaker}. Its value is read with {@link #valueOf}.
+     */
+    private WriteBehindQueue.PendingWrite pending(String nkey) {
+        WriteBehindQueue.PendingWrite write = writeBehind == null ? null : writeBehind.get(nkey);
+        if (write == null && breaker != null) write = breaker.buffered(nkey);
+        return write;
+    }
+
+    /**
+     * The value of a pending put, decoded from the bytes it is written with rather than the object that was put:
+     * like a read from Redis, every read gets a value of its own, and one the writer may still change is not shared.
+     * Pending writes are never chunked.
+     */
+    private Object valueOf(WriteBehindQueue.PendingWrite write) {
+        return evaluate(null, write.data);
+    }
+
+    /**
+     * A write that was turned away because the circuit is open: it is buffered, or dropped by policy, and either way
+     * seen by the reads of this node meanwhile. The chunks of a large value are not buffered, so it is dropped.
+     */
+    private void defer(WriteBehindQueue.PendingWrite write, boolean chunked) {
+        if (nearCache != null) nearCache.invalidate(write.key);
+        breaker.buffer(write, chunked);
+    }
+
+    private boolean enqueue(WriteBehindQueue.PendingWrite write) {
+        if (nearCache != null) nearCache.invalidate(write.key);
+        if (replicas != null) replicas.wrote(write.key);
         try {
-            List<byte[]> lkeys = _bkeys(conn, filter);
-            if (lkeys == null || lkeys.size() == 0) return 0;
-            Long rtn = conn.del(lkeys.toArray(new byte[lkeys.size()][]));
-            if (rtn == null) return 0;
-            return rtn.intValue();
+            return writeBehind.offer(write);
         }
-        finally {
-            close(conn);
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 
-    @Override
-    public int remove(CacheEntryFilter filter) throws IOException {
-        boolean all = CacheUtil.allowAll(filter);
-        List<String> keys = keys();
-        int count = 0;
-        Iterator<String> it = keys.iterator();
-        String key;
-        CacheEntry entry;
-        while (it.hasNext()) {
-            key = it.next();
-            entry = getQuiet(key, null);
-            if (all || filter.accept(entry)) {
-                remove(key);
-                count++;
-            }
+    /**
+     * Writes a batch of queued writes in a single pipeline, see {@link WriteBehindQueue}. Returns the writes Redis
+     * turned down, with its error, e.g. because it is out of memory or, in a cluster, because the slot moved, in which
+     * case the slot map is refreshed; the others went through.
+     */
+    Map<WriteBehindQueue.PendingWrite, Exception> write(List<WriteBehindQueue.PendingWrite> writes) throws IOException {
+        Map<WriteBehindQueue.PendingWrite, Exception> failed = new LinkedHashMap<WriteBehindQueue.PendingWrite, Exception>();
+        if (cluster == null) {
+            _write(jedis(), writes, failed);
+            return failed;
         }
-        return count;
-    }
 
-    @Override
-    public List<String> keys() throws IOException {
-        return keys((CacheKeyFilter) null);
+        Map<JedisPool, List<WriteBehindQueue.PendingWrite>> byNode = new LinkedHashMap<JedisPool, List<WriteBehindQueue.PendingWrite>>();
+        for (WriteBehindQueue.PendingWrite write: writes) {
+            byNode.computeIfAbsent(cluster.pool(write.bkey), (pool) -> new ArrayList<WriteBehindQueue.PendingWrite>()).add(write);
+        }
+        for (Map.Entry<JedisPool, List<WriteBehindQueue.PendingWrite>> e: byNode.entrySet()) {
+            _write(jedis(e.getKey()), e.getValue(), failed);
+        }
+        return failed;
     }
 
-    @Override
-    public List<String> keys(CacheKeyFilter filter) throws IOException {
-        Jedis conn = null;
+    /**
+     * Writes a batch on <code>conn</code>, which it closes, and tells the circuit breaker how that went.
+     */
+    private void _write(Jedis conn, List<WriteBehindQueue.PendingWrite> writes, Map<WriteBehindQueue.PendingWrite, Exception> failed) throws IOException {
+        long t = System.nanoTime();
         try {
-            conn = jedis();
-            return _skeys(conn, filter);
+            _pipeline(conn, writes, failed);
+            long end = System.nanoTime();
+            stats.network.record(end - t);
+            if (breaker != null) breaker.success(end - t);
+        }
+        catch (JedisConnectionException e) {
+            failed(e);
+            throw e;
         }
         finally {
             close(conn);
         }
     }
 
-    @Override
-    public List<String> keys(CacheEntryFilter filter) throws IOException {
-        boolean all = CacheUtil.allowAll(filter);
+    private void _pipeline(Jedis conn, List<WriteBehindQueue.PendingWrite> writes, Map<WriteBehindQueue.PendingWrite, Exception> failed) throws IOException {
+        Pipeline p = conn.pipelined();
+        List<Response<?>> responses = new ArrayList<Response<?>>(writes.size());
+        // queued values are never chunked, but they may replace chunked ones, see ChunkedValues
+        boolean release = chunked.isEnabled();
+        List<Response<byte[]>> olds = release ? new ArrayList<Response<byte[]>>(writes.size()) : null;
+        for (WriteBehindQueue.PendingWrite write: writes) {
+            if (release) {
+                p.multi();
+                olds.add(p.getrange(write.bkey, 0, ChunkedValues.MANIFEST_SIZE - 1));
+            }
+            if (write.isRemove()) responses.add(p.del(write.bkey));
+            else if (write.expire > 0) responses.add(p.setex(write.bkey, write.expire, write.data));
+            else responses.add(p.set(write.bkey, write.data));
+            if (release) p.exec();
 
-        List<String> keys = keys();
-        List<String> list = new ArrayList<String>();
-        Iterator<String> it = keys.iterator();
-        String key;
-        CacheEntry entry;
-        while (it.hasNext()) {
-            key = it.next();
-            entry = getQuiet(key, null);
-            if (all || filter.accept(entry)) list.add(key);
+            if (invalidationChannel != null) p.publish(invalidationChannel, NearCacheInvalidator.message(nodeId, write.key));
         }
-        return list;
-    }
+        p.sync();
 
-    @Override
-    public List values() throws IOException {
-        return values((CacheKeyFilter) null);
+        boolean moved = false;
+        for (int i = 0; i < writes.size(); i++) {
+            try {
+                responses.get(i).get();
+            }
+            catch (JedisDataException e) {
+                failed.put(writes.get(i), e);
+                if (e instanceof JedisRedirectionException) moved = true;
+            }
+        }
+        // the slot map changed, the writes that went to the wrong node are retried against the new one
+        if (moved && cluster != null) cluster.discover();
+
+        if (release) {
+            List<byte[]> keys = new ArrayList<byte[]>(writes.size());
+            List<byte[]> old = new ArrayList<byte[]>(writes.size());
+            for (int i = 0; i < writes.size(); i++) {
+                // the chunks of a value that was not replaced are still in use
+                if (failed.containsKey(writes.get(i))) continue;
+                keys.add(writes.get(i).bkey);
+                old.add(ChunkedValues.get(olds.get(i)));
+            }
+            chunked.release(conn, keys, old);
+        }
     }
 
-    @Override
-    public List values(CacheKeyFilter filter) throws IOException {
-        Jedis conn = jedisSilent();
-
-        try {
-            List<byte[]> lkeys = _bkeys(conn, filter);
-            List<Object> list = new ArrayList<Object>();
-
-            if (lkeys == null || lkeys.size() == 0) return list;
-
-            List<byte[]> values = conn.mget(lkeys.toArray(new byte[lkeys.size()][]));
-            for (byte[] val: values) {
-                list.add(evaluate(val));
+    /**
+     * Sends a batch of touches in a single pipeline, on one connection or one per node in a cluster, see
+     * {@link SlidingExpiration}.
+     */
+    void touch(List<SlidingExpiration.Touch> touches) throws IOException {
+        if (cluster == null) {
+            Jedis conn = jedis();
+            try {
+                _touch(conn, touches);
             }
-            return list;
+            finally {
+                close(conn);
+            }
+            return;
         }
-        catch (Exception e) {
-            throw new RuntimeException(e);// not throwing IOException because Lucee 4.5
+
+        Map<JedisPool, List<SlidingExpiration.Touch>> byNode = new LinkedHashMap<JedisPool, List<SlidingExpiration.Touch>>();
+        for (SlidingExpiration.Touch touch: touches) {
+            byNode.computeIfAbsent(cluster.pool(touch.bkey), (pool) -> new ArrayList<SlidingExpiration.Touch>()).add(touch);
         }
-        finally {
-            close(conn);
+        for (Map.Entry<JedisPool, List<SlidingExpiration.Touch>> e: byNode.entrySet()) {
+            Jedis conn = jedis(e.getKey());
+            try {
+                _touch(conn, e.getValue());
+            }
+            finally {
+                close(conn);
+            }
         }
     }
 
-    @Override
-    public List values(CacheEntryFilter filter) throws IOException {
-        if (CacheUtil.allowAll(filter)) return values();
+    private void _touch(Jedis conn, List<SlidingExpiration.Touch> touches) throws IOException {
+        Pipeline p = conn.pipelined();
+        List<Response<Long>> responses = new ArrayList<Response<Long>>(touches.size());
+        for (SlidingExpiration.Touch touch: touches) {
+            responses.add(p.pexpire(touch.bkey, touch.idle));
+            if (touch.manifest != null) chunked.touch(p, touch.bkey, touch.manifest, touch.idle);
+        }
+        p.sync();
 
-        List<String> keys = keys();
-        List<Object> list = new ArrayList<Object>();
-        Iterator<String> it = keys.iterator();
-        String key;
-        CacheEntry entry;
-        while (it.hasNext()) {
-            key = it.next();
-            entry = getQuiet(key, null);
-            if (filter.accept(entry)) list.add(entry.getValue());
+        if (cluster == null) return;
+        for (Response<Long> response: responses) {
+            try {
+                response.get();
+            }
+            catch (JedisRedirectionException e) {
+                // the slot map changed; the touches are lost, but the next ones go to the right node
+                cluster.discover();
+                return;
+            }
+            catch (Exception e) {}
         }
-        return list;
     }
 
-    @Override
-    public List<CacheEntry> entries() throws IOException {
-        return entries((CacheKeyFilter) null);
+    /**
+     * Bulk operations work on what is in Redis, so anything still queued is written first, and a replay of the
+     * writes buffered by the circuit breaker is waited for. While the circuit is open the queue stays as it is, and
+     * the operation finds Redis unavailable too.
+     */
+    private void flushWriteBehind() throws IOException {
+        if (breaker != null) breaker.awaitReplay();
+        if (writeBehind == null) return;
+        try {
+            writeBehind.flush();
+        }
+        catch (CircuitBreaker.OpenException e) {
+            // what was queued is written once the circuit closes
+        }
     }
 
-    @Override
-    public List<CacheEntry> entries(CacheKeyFilter filter) throws IOException {
-        Jedis conn = jedisSilent();
+    /**
+     * Opens a dedicated, non pooled connection, e.g. for subscriptions that hold on to it.
+     */
+    Jedis newConnection() {
+        Jedis conn = new Jedis(host, port, timeout);
+        if (password != null) conn.auth(password);
+        return conn;
+    }
 
+    /**
+     * Runs a single key command on a connection to the node that owns <code>key</code>, following cluster
+     * redirects, and records the time spent borrowing the connection and waiting on Redis.
+     */
+    <T> T execute(byte[] key, Command<T> command) {
+        long start = System.nanoTime();
+        Jedis conn = jedisSilent(key);
         try {
-            List<byte[]> lkeys = _bkeys(conn, filter);
-            List<CacheEntry> list = new ArrayList<CacheEntry>();
-
-            if (lkeys == null || lkeys.size() == 0) return list;
-
-            byte[][] keys = lkeys.toArray(new byte[lkeys.size()][]);
-
-            List<byte[]> values = conn.mget(keys);
-
-            // because this is not atomic, it is possible that a key expired since _bkeys()
-            if (keys.length == values.size()) {
-                int i = 0;
-                for (byte[] val: values) {
-                    list.add(new RedisCacheEntry(this, fromJedisKey(keys[i++]), val == null ? null : evaluate(val), val == null ? 0 : val.length));
+            long t = System.nanoTime();
+            stats.borrow.record(t - start);
+            for (int redirects = 0;; redirects++) {
+                try {
+                    T result = command.execute(conn);
+                    long end = System.nanoTime();
+                    stats.network.record(end - t);
+                    if (breaker != null) breaker.success(end - t);
+                    return result;
                 }
-            }
-            else {
-                byte[] val;
-                for (byte[] key: keys) {
-                    val = null;
-                    try {
-                        val = conn.get(key);
+                catch (JedisRedirectionException e) {
+                    if (cluster == null || redirects >= MAX_REDIRECTS) throw e;
+
+                    close(conn);
+                    conn = null;
+                    if (e instanceof JedisAskDataException) {
+                        // the slot is being migrated, only this one command goes to the target node
+                        conn = cluster.pool(e.getTargetNode()).getResource();
+                        conn.asking();
+                    }
+                    else {
+                        cluster.discover();
+                        conn = jedis(key);
                     }
-                    catch (JedisDataException jde) {}
-                    if (val != null) list.add(new RedisCacheEntry(this, fromJedisKey(key), evaluate(val), val.length));
                 }
             }
-            return list;
         }
-        catch (Exception e) {
+        catch (IOException e) {
             throw new RuntimeException(e);
         }
+        catch (JedisConnectionException e) {
+            failed(e);
+            throw e;
+        }
         finally {
             close(conn);
         }
     }
 
-    @Override
-    public List<CacheEntry> entries(CacheEntryFilter filter) throws IOException {
-        List<CacheEntry> entries = entries();
-        List<CacheEntry> list = new ArrayList<CacheEntry>();
-        Iterator<CacheEntry> it = entries.iterator();
-        CacheEntry entry;
-        while (it.hasNext()) {
-            entry = it.next();
-            if (entry != null && filter.accept(entry)) {
-                list.add(entry);
-            }
+    /**
+     * Sends a single key command through the multiplexer rather than a pooled connection.
+     */
+    private Object multiplexed(Protocol.Command command, byte[]... args) {
+        guard();
+        long t = System.nanoTime();
+        Object rtn;
+        try {
+            rtn = multiplexer.call(command, args);
         }
-        return list;
+        catch (JedisConnectionException e) {
+            failed(e);
+            throw e;
+        }
+        long end = System.nanoTime();
+        stats.network.record(end - t);
+        if (breaker != null) breaker.success(end - t);
+        return rtn;
     }
 
-    @Override
-    public long hitCount() {
-        return 0;
+    /**
+     * GET and PTTL of <code>bkey</code> through the multiplexer, sent together.
+     */
+    private Object[] multiplexed(byte[] bkey) {
+        guard();
+        long t = System.nanoTime();
+        Object[] rtn;
+        try {
+            CompletableFuture<Object> get = multiplexer.send(Protocol.Command.GET, bkey);
+            CompletableFuture<Object> pttl = multiplexer.send(Protocol.Command.PTTL, bkey);
+            rtn = new Object[] { multiplexer.await(get), multiplexer.await(pttl) };
+        }
+        catch (JedisConnectionException e) {
+            failed(e);
+            throw e;
+        }
+        long end = System.nanoTime();
+        stats.network.record(end - t);
+        if (breaker != null) breaker.success(end - t);
+        return rtn;
     }
 
-    @Override
-    public long missCount() {
-        return 0;
-    }
+    /**
+     * Turns calls away while the circuit is open, see {@link CircuitBreaker}. The one caller that gets to probe
+     * Redis does so with a PING, and replays the writes buffered meanwhile if it answers.
+     */
+    private void guard() {
+        if (breaker == null || breaker.isClosed()) return;
+        if (!breaker.tryProbe()) throw breaker.reject();
 
-    @Override
-    public Struct getCustomInfo() {
-        Jedis conn = jedisSilent();
+        long t = System.nanoTime();
+        Jedis conn = null;
         try {
-            return InfoParser.parse(CacheUtil.getInfo(this), conn.info());// not throwing IOException because Lucee 4.5
+            if (multiplexer != null) {
+                multiplexer.call(Protocol.Command.PING);
+            }
+            else {
+                conn = _jedis();
+                if (!conn.isConnected()) conn.connect();
+                conn.ping();
+            }
+        }
+        catch (Exception e) {
+            breaker.failure();
+            throw breaker.reject();
         }
         finally {
             close(conn);
         }
+        breaker.success(System.nanoTime() - t);
+        breaker.replay();
     }
 
-    public CacheEntry getQuiet(String key) throws IOException {
-        CacheEntry entry = getQuiet(key, null);
-        if (entry == null) throw new CacheException("there is no valid cache entry with key [" + key + "]");
-        return entry;
+    /**
+     * Records a call that did not reach Redis, unless it was turned away by the circuit breaker in the first place.
+     */
+    private void failed(JedisConnectionException e) {
+        if (breaker != null && !(e instanceof CircuitBreaker.OpenException)) breaker.failure();
     }
 
-    public CacheEntry getQuiet(String key, CacheEntry defaultValue) {
-        // TODO
-        return getCacheEntry(key, defaultValue);
+    /**
+     * Like {@link #execute}, for commands that only read: they go to a replica if the read policy allows it and
+     * the key was not written recently, and fall back to the primary if the replica cannot be reached.
+     */
+    private <T> T read(byte[] key, String nkey, Command<T> command) {
+        return readOn(replicas == null ? null : replicas.pick(nkey), key, command);
     }
 
-    private List<byte[]> _bkeys(Jedis conn, CacheKeyFilter filter) throws IOException {
-        boolean all = CacheUtil.allowAll(filter);
-        Set<byte[]> skeys = conn.keys(toJedisKey("*"));
-        List<byte[]> list = new ArrayList<byte[]>();
-        Iterator<byte[]> it = skeys.iterator();
-        byte[] key;
-        while (it.hasNext()) {
-            key = it.next();
-            if (all || filter.accept(fromJedisKey(key))) list.add(key);
-        }
-        return list;
-    }
+    private <T> T readOn(JedisPool replica, byte[] key, Command<T> command) {
+        if (replica == null) return execute(key, command);
 
-    private List<String> _skeys(Jedis conn, CacheKeyFilter filter) throws IOException {
-        boolean all = CacheUtil.allowAll(filter);
-        Set<byte[]> skeys = conn.keys(toJedisKey("*"));
-        List<String> list = new ArrayList<String>();
-        Iterator<byte[]> it = skeys.iterator();
-        byte[] key;
-        while (it.hasNext()) {
-            key = it.next();
-            if (all || filter.accept(fromJedisKey(key))) list.add(fromJedisKey(key));
+        long start = System.nanoTime();
+        Jedis conn = null;
+        try {
+            conn = replica.getResource();
+            long t = System.nanoTime();
+            stats.borrow.record(t - start);
+            T result = command.execute(conn);
+            stats.network.record(System.nanoTime() - t);
+            return result;
+        }
+        catch (JedisConnectionException e) {
+            replicas.failed(replica);
+            close(conn);
+            conn = null;
+            return execute(key, command);
+        }
+        finally {
+            close(conn);
         }
-        return list;
-    }
-
-    private byte[] toJedisKey(String key) {
-        return addNamespace(key.trim().toLowerCase()).getBytes(UTF8);
-    }
-
-    private String fromJedisKey(byte[] jkey) {
-        return removeNamespace(new String(jkey, UTF8));
     }
 
-    private String addNamespace(String key) {
-        if (namespace == null) return key;
-
-        if (key.startsWith(namespace.toLowerCase() + ":")) {
-            return key;
+    /**
+     * Runs <code>task</code> once per primary: with a single Redis server on one connection, in a cluster once per
+     * node, on all nodes in parallel. Returns false if it did not run because the circuit is open, which callers
+     * take for there being nothing to find.
+     */
+    boolean forEachNode(NodeTask task) throws IOException {
+        try {
+            guard();
+        }
+        catch (CircuitBreaker.OpenException e) {
+            return false;
+        }
+        // when this closed the circuit, the writes it replays have to be in Redis before the task looks
+        if (breaker != null) breaker.awaitReplay();
+        if (cluster == null) {
+            Jedis conn = jedisSilent();
+            try {
+                task.run(conn);
+            }
+            finally {
+                close(conn);
+            }
+            return true;
         }
 
-        return namespace.toLowerCase() + ':' + key;
-    }
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (JedisPool pool: cluster.masters()) {
+            futures.add(nodeExecutor().submit(() -> {
+                Jedis conn = pool.getResource();
+                try {
+                    task.run(conn);
+                }
+                finally {
+                    close(conn);
+                }
+                return null;
+            }));
+        }
 
-    private String removeNamespace(String key) {
-        if (namespace != null && key.startsWith(namespace.toLowerCase())) {
-            return key.replace(namespace.toLowerCase() + ":", "");
+        Exception failure = null;
+        for (Future<?> future: futures) {
+            try {
+                future.get();
+            }
+            catch (Exception e) {
+                if (failure == null) failure = e;
+            }
         }
-        return key;
+        if (failure instanceof IOException) throw (IOException) failure;
+        if (failure != null) {
+            Throwable cause = failure.getCause() == null ? failure : failure.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+        return true;
     }
 
-    private Object evaluate(byte[] data) {
-        if (data == null) return null;
+    /**
+     * The nodes to walk one by one: the primaries of a cluster, or just null for the one server.
+     */
+    List<JedisPool> scanNodes() throws IOException {
+        return cluster == null ? Collections.singletonList(null) : cluster.masters();
+    }
 
-        ByteArrayInputStream bais = new ByteArrayInputStream(data);
-        ObjectInputStream ois = null;
+    /**
+     * Runs <code>command</code> on a connection of <code>pool</code>, or of the server if it is null.
+     */
+    <T> T onNode(JedisPool pool, Command<T> command) {
+        if (pool == null) return execute(null, command);
+        Jedis conn = jedis(pool);
         try {
-            ois = new ObjectInputStreamImpl(cl, bais);
-            return ois.readObject();
+            long t = System.nanoTime();
+            T result = command.execute(conn);
+            if (breaker != null) breaker.success(System.nanoTime() - t);
+            return result;
         }
-        catch (Exception e) {
+        catch (JedisConnectionException e) {
+            failed(e);
+            throw e;
         }
         finally {
-            Util.closeEL(ois);
+            close(conn);
+        }
+    }
+
+    /**
+     * Like {@link #forEachNode}, for tasks that only read: without a cluster they may run on a replica. If the
+     * replica fails the task starts over on the primary, after <code>reset</code> has dropped what it collected.
+     */
+    private void readEachNode(NodeTask task, Runnable reset) throws IOException {
+        JedisPool replica = replicas == null ? null : replicas.pick(null);
+        if (replica == null) {
+            forEachNode(task);
+            return;
         }
 
+        Jedis conn = null;
         try {
-            return new String(data, UTF8);
+            conn = replica.getResource();
+            task.run(conn);
         }
-        catch( Exception e ) {
+        catch (JedisConnectionException e) {
+            replicas.failed(replica);
+            // start over on the primary
+            close(conn);
+            conn = null;
+            reset.run();
+            forEachNode(task);
+        }
+        finally {
+            close(conn);
         }
-
-        return data;
     }
 
-    private byte[] serialize(Object value) throws PageException {
-        // for interop, just write strings directly
-        if (value instanceof String) {
-            return ((String) value).getBytes(UTF8);
+    private ExecutorService nodeExecutor() {
+        if (nodeExecutor == null) {
+            synchronized (TOKEN) {
+                if (nodeExecutor == null) {
+                    nodeExecutor = Executors.newCachedThreadPool((r) -> {
+                        Thread t = new Thread(r, "redis-cluster-" + cacheName);
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+            }
         }
+        return nodeExecutor;
+    }
 
-        try {
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(os);
-            oos.writeObject(value);
-            oos.flush();
-            return os.toByteArray();
-        }
-        catch (Exception e) {
-            throw CFMLEngineFactory.getInstance().getCastUtil().toPageException(e);
+    /**
+     * Runs the chunks of bulk reads, on virtual threads where the JVM has them.
+     */
+    private ExecutorService bulkExecutor() {
+        if (bulkExecutor == null) {
+            synchronized (TOKEN) {
+                if (bulkExecutor == null) {
+                    try {
+                        bulkExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                    }
+                    catch (Exception e) {
+                        bulkExecutor = Executors.newCachedThreadPool((r) -> {
+                            Thread t = new Thread(r, "redis-bulk-" + cacheName);
+                            t.setDaemon(true);
+                            return t;
+                        });
+                    }
+                }
+            }
         }
+        return bulkExecutor;
     }
 
     protected Jedis _jedis() throws IOException {
+        // any node will do
+        if (cluster != null) return cluster.masters().get(0).getResource();
+
         if (pool == null) {
             synchronized (TOKEN) {
                 if (pool == null) {
@@ -494,9 +2527,16 @@ public class RedisCache implements Cache {
     }
 
     protected Jedis jedis() throws IOException {
-        Jedis conn = _jedis();
-        if (!conn.isConnected()) conn.connect();
-        return conn;
+        guard();
+        try {
+            Jedis conn = _jedis();
+            if (!conn.isConnected()) conn.connect();
+            return conn;
+        }
+        catch (JedisConnectionException e) {
+            failed(e);
+            throw e;
+        }
     }
 
     protected Jedis jedisSilent() {
@@ -505,6 +2545,58 @@ public class RedisCache implements Cache {
             conn = jedis();
             return conn;
         }
+        catch (CircuitBreaker.OpenException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            close(conn);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Connection to the node that owns <code>key</code>. Without a cluster that is the one and only server.
+     */
+    protected Jedis jedis(byte[] key) throws IOException {
+        if (cluster == null) return jedis();
+
+        guard();
+        try {
+            Jedis conn = cluster.pool(key).getResource();
+            if (!conn.isConnected()) conn.connect();
+            return conn;
+        }
+        catch (JedisConnectionException e) {
+            failed(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Connection to the cluster node of <code>pool</code>.
+     */
+    protected Jedis jedis(JedisPool pool) {
+        guard();
+        try {
+            Jedis conn = pool.getResource();
+            if (!conn.isConnected()) conn.connect();
+            return conn;
+        }
+        catch (JedisConnectionException e) {
+            failed(e);
+            throw e;
+        }
+    }
+
+    protected Jedis jedisSilent(byte[] key) {
+        Jedis conn = null;
+        try {
+            conn = jedis(key);
+            return conn;
+        }
+        catch (CircuitBreaker.OpenException e) {
+            throw e;
+        }
         catch (Exception e) {
             close(conn);
             throw new RuntimeException(e);
@@ -515,4 +2607,20 @@ public class RedisCache implements Cache {
         if (conn != null) conn.close();
     }
 
+    interface Command<T> {
+        T execute(Jedis conn);
+    }
+
+    interface NodeTask {
+        void run(Jedis conn) throws IOException;
+    }
+
+    private interface KeyBatchHandler {
+        void handle(List<byte[]> keys) throws IOException;
+    }
+
+    private interface EntryBatchHandler {
+        void handle(List<byte[]> keys, List<CacheEntry> entries) throws IOException;
+    }
+
 }
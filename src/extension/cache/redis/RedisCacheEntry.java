@@ -5,39 +5,75 @@ import java.util.Date;
 import lucee.commons.io.cache.CacheEntry;
 import lucee.loader.engine.CFMLEngineFactory;
 import lucee.runtime.type.Struct;
-
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+
+/**
+ * An entry as read from Redis. Its metadata (time to live, idle time, access frequency and memory usage) is fetched
+ * in one pipeline when it is first asked for, unless it was fetched along with the value. Creation and
+ * modification dates are only known for entries written while timestamps were enabled; as a put replaces the entry,
+ * both are the time of the last put.
+ */
 public class RedisCacheEntry implements CacheEntry {
 
     private final RedisCache cache;
     private final String key;
+    private final byte[] bkey;
     private final Object value;
     private final long size;
+    private final long modified;
+    private Metadata metadata;
 
-    public RedisCacheEntry(RedisCache cache, String key, Object value, long size) {
+    public RedisCacheEntry(RedisCache cache, String key, byte[] bkey, Object value, long size, long modified, Metadata metadata) {
         this.cache = cache;
         this.key = key;
+        this.bkey = bkey;
         this.value = value;
         this.size = size;
+        this.modified = modified;
+        this.metadata = metadata;
     }
 
+    private synchronized Metadata metadata() {
+        if (metadata == null) {
+            try {
+                metadata = cache.metadata(bkey == null ? cache.toJedisKey(key) : bkey);
+            }
+            catch (RuntimeException e) {
+                metadata = Metadata.UNKNOWN;
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * The last access before this entry was read, from the idle time Redis tracks unless it runs an LFU eviction
+     * policy.
+     */
     @Override
     public Date lastHit() {
-        return null;
+        Metadata m = metadata();
+        return m.idle < 0 ? null : new Date(m.fetched - m.idle * 1000);
     }
 
     @Override
     public Date lastModified() {
-        return null;
+        return modified == 0 ? null : new Date(modified);
     }
 
     @Override
     public Date created() {
-        return null;
+        return lastModified();
     }
 
+    /**
+     * The logarithmic access frequency counter of Redis, only available when it runs an LFU eviction policy.
+     */
     @Override
     public int hitCount() {
-        return 0;
+        Metadata m = metadata();
+        return m.frequency < 0 ? 0 : (int) m.frequency;
     }
 
     @Override
@@ -55,23 +91,105 @@ public class RedisCacheEntry implements CacheEntry {
         return size;
     }
 
+    /**
+     * Milliseconds left until the entry expires, 0 if it does not.
+     */
     @Override
     public long liveTimeSpan() {
-        return 0;
+        Metadata m = metadata();
+        return m.ttl < 0 ? 0 : m.ttl;
     }
 
+    /**
+     * Milliseconds since the entry was last accessed, before this read.
+     */
     @Override
     public long idleTimeSpan() {
-        return 0;
+        Metadata m = metadata();
+        return m.idle < 0 ? 0 : m.idle * 1000;
     }
 
     @Override
     public Struct getCustomInfo() {
+        Metadata m = metadata();
         Struct metadata = CFMLEngineFactory.getInstance().getCreationUtil().createStruct();
-        /*
-         * try { metadata.set("hits", hitCount()); } catch (PageException e) { e.printStackTrace(); }
-         */
+        if (m.ttl >= 0) {
+            metadata.setEL("ttl", Double.valueOf(m.ttl));
+            metadata.setEL("expires", new Date(m.fetched + m.ttl));
+        }
+        if (m.idle >= 0) metadata.setEL("idle_time", Double.valueOf(m.idle * 1000));
+        if (m.frequency >= 0) metadata.setEL("frequency", Double.valueOf(m.frequency));
+        if (m.memory >= 0) metadata.setEL("memory_usage", Double.valueOf(m.memory));
+        if (modified != 0) metadata.setEL("last_modified", new Date(modified));
         return metadata;
     }
 
+    /**
+     * What Redis knows about a key, with -1 for what it does not report. The time to live and the idle time are
+     * relative to <code>fetched</code>.
+     */
+    static class Metadata {
+
+        static final Metadata UNKNOWN = new Metadata(0, -1, -1, -1, -1);
+
+        private static final byte[] USAGE = "USAGE".getBytes(RedisCache.UTF8);
+
+        final long fetched;
+        final long ttl;
+        final long idle;
+        final long frequency;
+        final long memory;
+
+        Metadata(long fetched, long ttl, long idle, long frequency, long memory) {
+            this.fetched = fetched;
+            this.ttl = ttl;
+            this.idle = idle;
+            this.frequency = frequency;
+            this.memory = memory;
+        }
+
+        /**
+         * Queues the commands for the metadata of <code>bkey</code>. They have to be sent before the value is read,
+         * reading it resets the idle time.
+         */
+        static Request request(Pipeline p, byte[] bkey) {
+            return new Request(
+                p.pttl(bkey),
+                p.objectIdletime(bkey),
+                p.objectFreq(bkey),
+                p.sendCommand(Protocol.Command.MEMORY, USAGE, bkey)
+            );
+        }
+    }
+
+    static class Request {
+        private final long fetched = System.currentTimeMillis();
+        private final Response<Long> ttl;
+        private final Response<Long> idle;
+        private final Response<Long> frequency;
+        private final Response<Object> memory;
+
+        private Request(Response<Long> ttl, Response<Long> idle, Response<Long> frequency, Response<Object> memory) {
+            this.ttl = ttl;
+            this.idle = idle;
+            this.frequency = frequency;
+            this.memory = memory;
+        }
+
+        Metadata get() {
+            return new Metadata(fetched, value(ttl), value(idle), value(frequency), value(memory));
+        }
+
+        // OBJECT IDLETIME and FREQ each fail under one kind of eviction policy, MEMORY USAGE on old servers
+        private static long value(Response<?> response) {
+            try {
+                Object v = response.get();
+                return v instanceof Long ? ((Long) v).longValue() : -1;
+            }
+            catch (RuntimeException e) {
+                return -1;
+            }
+        }
+    }
+
 }
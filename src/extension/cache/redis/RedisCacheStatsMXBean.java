@@ -0,0 +1,33 @@
+package extension.cache.redis;
+
+/**
+ * JMX view of {@link CacheStats}, registered as
+ * <code>extension.cache.redis:type=RedisCache,name=&lt;cache name&gt;,context=&lt;config&gt;</code>.
+ */
+public interface RedisCacheStatsMXBean {
+
+    long getHitCount();
+
+    long getMissCount();
+
+    long getPutCount();
+
+    long getRemoveCount();
+
+    double getHitRate();
+
+    LatencyHistogram.Snapshot getGetLatency();
+
+    LatencyHistogram.Snapshot getPutLatency();
+
+    LatencyHistogram.Snapshot getRemoveLatency();
+
+    LatencyHistogram.Snapshot getBorrowLatency();
+
+    LatencyHistogram.Snapshot getNetworkLatency();
+
+    LatencyHistogram.Snapshot getSerializeLatency();
+
+    LatencyHistogram.Snapshot getDeserializeLatency();
+
+}
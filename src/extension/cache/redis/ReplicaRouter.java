@@ -0,0 +1,380 @@
+package extension.cache.redis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import lucee.loader.engine.CFMLEngineFactory;
+import lucee.runtime.PageContext;
+import lucee.runtime.type.Struct;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+/**
+ * Picks the server reads go to, out of the primary and its replicas. Replicas are either configured or discovered
+ * through Sentinel, which also reports the current primary after a failover. A background thread pings every
+ * server to measure its latency and checks that replicas are still connected to the primary; replicas that fail
+ * the check are skipped until they pass it again.
+ * <p>
+ * Replicas lag behind the primary, so keys that were written by the current request, or by this node within the
+ * configured lag, are read from the primary.
+ */
+public class ReplicaRouter implements Runnable {
+
+    public static final String PRIMARY = "primary";
+    public static final String PREFER_REPLICA = "preferReplica";
+    public static final String NEAREST = "nearest";
+
+    private static final String WRITTEN = "extension.cache.redis.written.";
+    private static final String ALL = "";
+    // weight of the latest ping in the moving average
+    private static final double ALPHA = 0.2;
+
+    private final String policy;
+    private final JedisPoolConfig poolConfig;
+    private final int timeout;
+    private final String password;
+    private final long maxLag;
+    private final long interval;
+    private final String sentinelMaster;
+    private final List<HostAndPort> sentinels;
+    private final String attribute;
+    private final Listener listener;
+
+    private final ConcurrentHashMap<HostAndPort, Node> nodes = new ConcurrentHashMap<HostAndPort, Node>();
+    private volatile List<Node> replicas = new ArrayList<Node>();
+    private volatile Node primary;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final ConcurrentHashMap<String, Long> written = new ConcurrentHashMap<String, Long>();
+    private volatile long lastWrite;
+
+    private final LongAdder replicaReads = new LongAdder();
+    private final LongAdder primaryReads = new LongAdder();
+    private final LongAdder guardedReads = new LongAdder();
+    private final LongAdder failovers = new LongAdder();
+
+    private volatile boolean running = true;
+    private final Object wakeup = new Object();
+
+    public ReplicaRouter(String cacheName, String policy, HostAndPort primary, Collection<HostAndPort> replicas, String sentinelMaster,
+            Collection<HostAndPort> sentinels, JedisPoolConfig poolConfig, int timeout, String password, long maxLag, long interval, Listener listener) {
+        this.policy = toPolicy(policy);
+        this.poolConfig = poolConfig;
+        this.timeout = timeout;
+        this.password = password;
+        this.maxLag = maxLag;
+        this.interval = interval;
+        this.sentinelMaster = sentinelMaster;
+        this.sentinels = new ArrayList<HostAndPort>(sentinels);
+        this.attribute = WRITTEN + cacheName;
+        this.listener = listener;
+
+        this.primary = node(primary);
+        List<Node> list = new ArrayList<Node>();
+        for (HostAndPort address: replicas) {
+            list.add(node(address));
+        }
+        this.replicas = list;
+    }
+
+    public void start(String cacheName) {
+        if (sentinelMaster != null) discover();
+        Thread t = new Thread(this, "redis-replica-router-" + cacheName);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void stop() {
+        running = false;
+        synchronized (wakeup) {
+            wakeup.notifyAll();
+        }
+        for (Node node: nodes.values()) {
+            node.pool.close();
+        }
+        nodes.clear();
+    }
+
+    /**
+     * The policy for a <code>readFrom</code> setting; anything that is not one of the others, empty included, reads
+     * from the primary.
+     */
+    public static String toPolicy(String readFrom) {
+        if (readFrom != null) readFrom = readFrom.trim();
+        return PREFER_REPLICA.equalsIgnoreCase(readFrom) ? PREFER_REPLICA : NEAREST.equalsIgnoreCase(readFrom) ? NEAREST : PRIMARY;
+    }
+
+    /**
+     * The current primary. Only differs from the configured one when it is discovered through Sentinel.
+     */
+    public HostAndPort primary() {
+        return primary.address;
+    }
+
+    /**
+     * Pool to read <code>key</code> (normalized) from, or null to read it from the primary. A null key stands for
+     * a read over all keys.
+     */
+    public JedisPool pick(String key) {
+        if (policy == PRIMARY) return null;
+        return pick(isDirty(key));
+    }
+
+    /**
+     * Like {@link #pick(String)}, for a read of several keys at once, which goes to the primary if any of them was
+     * written recently.
+     */
+    public JedisPool pickAll(Collection<String> keys) {
+        if (policy == PRIMARY) return null;
+        for (String key: keys) {
+            if (isDirty(key)) return pick(true);
+        }
+        return pick(false);
+    }
+
+    private JedisPool pick(boolean dirty) {
+        if (dirty) {
+            guardedReads.increment();
+            primaryReads.increment();
+            return null;
+        }
+
+        List<Node> list = replicas;
+        Node pick = null;
+        if (policy == NEAREST) {
+            double best = primary.latency;
+            for (Node node: list) {
+                if (node.healthy && node.latency < best) {
+                    best = node.latency;
+                    pick = node;
+                }
+            }
+        }
+        else {
+            int size = list.size();
+            int start = next.getAndIncrement() & Integer.MAX_VALUE;
+            for (int i = 0; i < size && pick == null; i++) {
+                Node node = list.get((start + i) % size);
+                if (node.healthy) pick = node;
+            }
+        }
+
+        if (pick == null) {
+            primaryReads.increment();
+            return null;
+        }
+        replicaReads.increment();
+        return pick.pool;
+    }
+
+    /**
+     * A replica failed to answer a read, skip it until the next check passes.
+     */
+    public void failed(JedisPool pool) {
+        for (Node node: replicas) {
+            if (node.pool == pool) node.healthy = false;
+        }
+    }
+
+    /**
+     * Records a write of <code>key</code> (normalized), or of any number of keys when it is null.
+     */
+    public void wrote(String key) {
+        if (policy == PRIMARY) return;
+
+        long now = System.currentTimeMillis();
+        lastWrite = now;
+        if (maxLag > 0 && key != null) {
+            written.put(key, Long.valueOf(now));
+            if (written.size() > 10000) purge(now);
+        }
+
+        PageContext pc = CFMLEngineFactory.getInstance().getThreadPageContext();
+        if (pc == null) return;
+        @SuppressWarnings("unchecked")
+        Map<String, Boolean> keys = (Map<String, Boolean>) pc.getAttribute(attribute);
+        if (keys == null) {
+            keys = new ConcurrentHashMap<String, Boolean>();
+            pc.setAttribute(attribute, keys);
+        }
+        keys.put(key == null ? ALL : key, Boolean.TRUE);
+    }
+
+    private boolean isDirty(String key) {
+        long now = System.currentTimeMillis();
+        if (key == null) {
+            if (now - lastWrite < maxLag) return true;
+        }
+        else if (maxLag > 0) {
+            Long time = written.get(key);
+            if (time != null) {
+                if (now - time.longValue() < maxLag) return true;
+                written.remove(key, time);
+            }
+        }
+
+        PageContext pc = CFMLEngineFactory.getInstance().getThreadPageContext();
+        if (pc == null) return false;
+        @SuppressWarnings("unchecked")
+        Map<String, Boolean> keys = (Map<String, Boolean>) pc.getAttribute(attribute);
+        if (keys == null || keys.isEmpty()) return false;
+        return key == null || keys.containsKey(key) || keys.containsKey(ALL);
+    }
+
+    private void purge(long now) {
+        written.entrySet().removeIf((e) -> now - e.getValue().longValue() >= maxLag);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            if (sentinelMaster != null) discover();
+
+            ping(primary);
+            for (Node node: replicas) {
+                ping(node);
+            }
+            if (maxLag > 0) purge(System.currentTimeMillis());
+
+            synchronized (wakeup) {
+                if (!running) break;
+                try {
+                    wakeup.wait(interval);
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private void ping(Node node) {
+        Jedis conn = null;
+        try {
+            conn = node.pool.getResource();
+            long start = System.nanoTime();
+            conn.ping();
+            double micros = (System.nanoTime() - start) / 1000d;
+            node.latency = node.latency == Double.MAX_VALUE ? micros : node.latency + ALPHA * (micros - node.latency);
+            // a replica that lost its primary serves data of unknown age
+            node.healthy = node == primary || conn.info("replication").contains("master_link_status:up");
+        }
+        catch (Exception e) {
+            node.healthy = false;
+            node.latency = Double.MAX_VALUE;
+        }
+        finally {
+            if (conn != null) conn.close();
+        }
+    }
+
+    /**
+     * Asks the sentinels for the current primary and its replicas.
+     */
+    private void discover() {
+        for (HostAndPort sentinel: sentinels) {
+            Jedis conn = null;
+            try {
+                conn = new Jedis(sentinel.getHost(), sentinel.getPort(), timeout);
+                List<String> addr = conn.sentinelGetMasterAddrByName(sentinelMaster);
+                if (addr == null || addr.size() < 2) continue;
+
+                HostAndPort address = new HostAndPort(addr.get(0), Integer.parseInt(addr.get(1)));
+                Map<HostAndPort, Node> list = new LinkedHashMap<HostAndPort, Node>();
+                for (Map<String, String> replica: conn.sentinelSlaves(sentinelMaster)) {
+                    String flags = replica.get("flags");
+                    if (flags == null || flags.contains("s_down") || flags.contains("o_down") || flags.contains("disconnected")) continue;
+                    HostAndPort ra = new HostAndPort(replica.get("ip"), Integer.parseInt(replica.get("port")));
+                    list.put(ra, node(ra));
+                }
+                replicas = new ArrayList<Node>(list.values());
+
+                if (!address.equals(primary.address)) {
+                    primary = node(address);
+                    failovers.increment();
+                    listener.primaryChanged(address);
+                }
+                retain(list.keySet(), address);
+                return;
+            }
+            catch (Exception e) {
+                // try the next sentinel
+            }
+            finally {
+                if (conn != null) conn.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the pools of the servers that are neither the primary nor one of <code>replicas</code> anymore. A read
+     * that picked one of them just before finds it closed and goes to the primary, like with any failed replica.
+     */
+    private void retain(Collection<HostAndPort> replicas, HostAndPort primary) {
+        for (Map.Entry<HostAndPort, Node> e: nodes.entrySet()) {
+            if (e.getKey().equals(primary) || replicas.contains(e.getKey())) continue;
+            if (nodes.remove(e.getKey(), e.getValue())) e.getValue().pool.close();
+        }
+    }
+
+    private Node node(HostAndPort address) {
+        Node node = nodes.get(address);
+        if (node == null) {
+            node = new Node(address, new JedisPool(poolConfig, address.getHost(), address.getPort(), timeout, password));
+            Node existing = nodes.putIfAbsent(address, node);
+            if (existing != null) {
+                node.pool.close();
+                node = existing;
+            }
+        }
+        return node;
+    }
+
+    public Struct getInfo() {
+        Struct info = CFMLEngineFactory.getInstance().getCreationUtil().createStruct();
+        info.setEL("policy", policy);
+        info.setEL("primary", primary.address.toString());
+        info.setEL("primary_latency_us", Double.valueOf(primary.latency == Double.MAX_VALUE ? -1 : primary.latency));
+        Struct list = CFMLEngineFactory.getInstance().getCreationUtil().createStruct();
+        for (Node node: replicas) {
+            Struct r = CFMLEngineFactory.getInstance().getCreationUtil().createStruct();
+            r.setEL("healthy", Boolean.valueOf(node.healthy));
+            r.setEL("latency_us", Double.valueOf(node.latency == Double.MAX_VALUE ? -1 : node.latency));
+            list.setEL(node.address.toString(), r);
+        }
+        info.setEL("replicas", list);
+        info.setEL("replica_reads", Double.valueOf(replicaReads.sum()));
+        info.setEL("primary_reads", Double.valueOf(primaryReads.sum()));
+        info.setEL("read_your_writes", Double.valueOf(guardedReads.sum()));
+        info.setEL("failovers", Double.valueOf(failovers.sum()));
+        return info;
+    }
+
+    /**
+     * Notified when Sentinel reports a new primary.
+     */
+    public interface Listener {
+        void primaryChanged(HostAndPort primary);
+    }
+
+    private static class Node {
+        private final HostAndPort address;
+        private final JedisPool pool;
+        private volatile boolean healthy;
+        private volatile double latency = Double.MAX_VALUE;
+
+        private Node(HostAndPort address, JedisPool pool) {
+            this.address = address;
+            this.pool = pool;
+        }
+    }
+
+}
@@ -0,0 +1,430 @@
+package extension.cache.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lucee.loader.engine.CFMLEngineFactory;
+import lucee.runtime.type.Collection;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+
+/**
+ * Stores session and client scopes as Redis hashes with one field per top level key, instead of as one serialized
+ * blob. Lucee hands the cache its scopes as <code>IKStorageValue</code> objects wrapping a map of
+ * <code>IKStorageScopeItem</code>s; both are core classes, so they are used through reflection.
+ * <p>
+ * A scope read from Redis is backed by a {@link SessionMap} that fetches the hash on first access and decodes each
+ * field only when it is read. When the scope is written back, fields that were never read cannot have changed and
+ * are skipped; the others are encoded again and only written if their bytes differ. Removed keys are deleted with
+ * HDEL, and everything goes out in one pipeline together with the new expiration.
+ */
+public class SessionStore {
+
+    private static final String STORAGE_VALUE = "lucee.runtime.type.scope.storage.IKStorageValue";
+    private static final String STORAGE_ITEM = "lucee.runtime.type.scope.storage.IKStorageScopeItem";
+    private static final String KEY_PREFIX = "lucee-storage:";
+    // cannot clash with a scope key, those are valid variable names
+    private static final byte[] META = "#lastModified".getBytes(RedisCache.UTF8);
+    private static final byte[] IDLE = "#idle".getBytes(RedisCache.UTF8);
+    private static final byte[] EMPTY = new byte[0];
+
+    private final RedisCache cache;
+    private final ValueCodec codec;
+
+    private final Constructor<?> valueConstructor;
+    private final Constructor<?> bytesConstructor;
+    private final Method valueGetValue;
+    private final Method valueLastModified;
+    private final Constructor<?> itemConstructor;
+    private final Method itemGetValue;
+    private final Method itemLastModified;
+    private final Method itemRemoved;
+
+    public SessionStore(RedisCache cache, ValueCodec codec, ClassLoader cl) throws IOException {
+        this.cache = cache;
+        this.codec = codec;
+        try {
+            Class<?> value = Class.forName(STORAGE_VALUE, true, cl);
+            Class<?> item = Class.forName(STORAGE_ITEM, true, cl);
+            valueConstructor = value.getConstructor(Map.class, byte[].class, long.class);
+            bytesConstructor = value.getConstructor(byte[][].class);
+            valueGetValue = value.getMethod("getValue");
+            valueLastModified = value.getMethod("lastModified");
+            itemConstructor = item.getConstructor(Object.class, long.class);
+            itemGetValue = item.getMethod("getValue");
+            itemLastModified = item.getMethod("lastModified");
+            itemRemoved = item.getMethod("removed");
+        }
+        catch (Exception e) {
+            throw new IOException("this version of Lucee does not store scopes in a way the session store supports", e);
+        }
+    }
+
+    /**
+     * Whether <code>key</code> (normalized) is one Lucee stores session or client scopes under.
+     */
+    public static boolean isStorageKey(String key) {
+        return key.startsWith(KEY_PREFIX);
+    }
+
+    /**
+     * Whether <code>value</code> is a scope to store under <code>key</code> (normalized): an
+     * <code>IKStorageValue</code>, or the byte representation of one that Lucee hands over to caches that do not
+     * declare <code>isObjectSerialisationSupported()</code>.
+     */
+    public boolean isStorageValue(String key, Object value) {
+        if (value instanceof byte[][]) return isStorageKey(key);
+        return value != null && value.getClass() == valueConstructor.getDeclaringClass();
+    }
+
+    /**
+     * Reads only the modification time and the idle time of the scope; its content is fetched when it is first
+     * accessed. Returns null if there is no such scope. A scope stored as a single value, as it is without the
+     * session store, is deleted and taken for none, so that the session starts over rather than fail on every read.
+     */
+    public Object get(byte[] bkey) throws IOException {
+        List<byte[]> meta;
+        try {
+            meta = cache.execute(bkey, (conn) -> conn.hmget(bkey, META, IDLE));
+        }
+        catch (JedisDataException e) {
+            if (e instanceof JedisRedirectionException || e.getMessage() == null || !e.getMessage().startsWith("WRONGTYPE")) throw e;
+            cache.execute(bkey, (conn) -> conn.del(bkey));
+            return null;
+        }
+        if (meta.get(0) == null) return null;
+        if (meta.get(1) != null) cache.slide(bkey, Long.parseLong(new String(meta.get(1), RedisCache.UTF8)));
+
+        long lastModified = Long.parseLong(new String(meta.get(0), RedisCache.UTF8));
+        try {
+            return valueConstructor.newInstance(new SessionMap(this, bkey), EMPTY, lastModified);
+        }
+        catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Writes the fields of the scope that changed since it was read or last written. <code>idle</code> is recorded
+     * for {@link SlidingExpiration}, 0 if the scope does not expire when idle.
+     */
+    public void put(byte[] bkey, Object value, int expire, long idle) throws IOException {
+        Map<?, ?> items;
+        long lastModified;
+        // a scope in its byte representation is a copy, whatever it tracked about changes is not to be trusted
+        boolean copy = value instanceof byte[][];
+        try {
+            if (copy) value = bytesConstructor.newInstance(value);
+            items = (Map<?, ?>) valueGetValue.invoke(value);
+            lastModified = ((Long) valueLastModified.invoke(value)).longValue();
+        }
+        catch (Exception e) {
+            throw new IOException(e);
+        }
+
+        Map<byte[], byte[]> set = new LinkedHashMap<byte[], byte[]>();
+        List<byte[]> del = new ArrayList<byte[]>();
+        boolean replace;
+        if (items instanceof SessionMap) ((SessionMap) items).attach(this);
+        SessionMap map = !copy && items instanceof SessionMap && Arrays.equals(((SessionMap) items).bkey, bkey) ? (SessionMap) items : null;
+        if (map != null) {
+            replace = false;
+            map.diff(set, del);
+        }
+        else {
+            // a new scope, one Lucee merged into a map of its own, or a copy
+            replace = true;
+            for (Map.Entry<?, ?> e: items.entrySet()) {
+                if (isRemoved(e.getValue())) continue;
+                set.put(toField(e.getKey()), encodeItem(e.getValue()));
+            }
+        }
+        set.put(META, Long.toString(lastModified).getBytes(RedisCache.UTF8));
+        set.put(IDLE, Long.toString(idle).getBytes(RedisCache.UTF8));
+
+        cache.execute(bkey, (conn) -> {
+            // in a transaction, so that no one reads the scope in between the DEL of a replace and the HSET
+            Pipeline p = conn.pipelined();
+            p.multi();
+            List<Response<?>> responses = new ArrayList<Response<?>>(4);
+            if (replace) responses.add(p.del(bkey));
+            if (!del.isEmpty()) responses.add(p.hdel(bkey, del.toArray(new byte[del.size()][])));
+            responses.add(p.hset(bkey, set));
+            responses.add(expire > 0 ? p.expire(bkey, expire) : p.persist(bkey));
+            Response<List<Object>> exec = p.exec();
+            p.sync();
+            exec.get();
+            for (Response<?> response: responses) {
+                response.get();
+            }
+            return null;
+        });
+        if (map != null) map.written(set, del);
+    }
+
+    Map<byte[], byte[]> load(byte[] bkey) {
+        return cache.execute(bkey, (Jedis conn) -> conn.hgetAll(bkey));
+    }
+
+    byte[] encodeItem(Object item) throws IOException {
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            BinaryCodec.writeVarLong(os, ((Long) itemLastModified.invoke(item)).longValue());
+            os.write(codec.encode(itemGetValue.invoke(item)));
+            return os.toByteArray();
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    Object decodeItem(byte[] data) throws IOException {
+        BinaryCodec.Input in = new BinaryCodec.Input(data, 0, data.length);
+        long lastModified = in.readVarLong();
+        Object value = codec.decode(Arrays.copyOfRange(data, in.pos, data.length));
+        try {
+            return itemConstructor.newInstance(value, lastModified);
+        }
+        catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    boolean isRemoved(Object item) {
+        try {
+            return item != null && item.getClass() == itemConstructor.getDeclaringClass() && ((Boolean) itemRemoved.invoke(item)).booleanValue();
+        }
+        catch (Exception e) {
+            return false;
+        }
+    }
+
+    static byte[] toField(Object key) {
+        String name = key instanceof Collection.Key ? ((Collection.Key) key).getString() : key.toString();
+        return name.getBytes(RedisCache.UTF8);
+    }
+
+    static Collection.Key toKey(byte[] field) {
+        return CFMLEngineFactory.getInstance().getCastUtil().toKey(new String(field, RedisCache.UTF8));
+    }
+
+    /**
+     * The items of a stored scope. The hash is fetched on first access, and each field is decoded when it is first
+     * read. Reading a field marks it, as whatever it holds may have been changed in place.
+     */
+    static class SessionMap extends AbstractMap<Object, Object> implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient SessionStore store;
+        private final byte[] bkey;
+        private boolean loaded;
+        // raw field values until they are decoded
+        private final HashMap<Object, Object> items = new HashMap<Object, Object>();
+        // field values as they are in Redis
+        private final HashMap<Object, byte[]> stored = new HashMap<Object, byte[]>();
+        private final HashSet<Object> touched = new HashSet<Object>();
+
+        SessionMap(SessionStore store, byte[] bkey) {
+            this.store = store;
+            this.bkey = bkey;
+        }
+
+        /**
+         * Lets a deserialized map read the fields it has not read yet.
+         */
+        synchronized void attach(SessionStore store) {
+            if (this.store == null) this.store = store;
+        }
+
+        private void load() {
+            if (loaded) return;
+            if (store == null) throw new IllegalStateException("scope was deserialized outside of the cache it was read from");
+            loaded = true;
+            Map<byte[], byte[]> fields;
+            try {
+                fields = store.load(bkey);
+            }
+            catch (CircuitBreaker.OpenException e) {
+                // as if the scope had expired in between
+                return;
+            }
+            for (Map.Entry<byte[], byte[]> e: fields.entrySet()) {
+                if (Arrays.equals(e.getKey(), META) || Arrays.equals(e.getKey(), IDLE)) continue;
+                Collection.Key key = toKey(e.getKey());
+                items.put(key, new Raw(e.getValue()));
+                stored.put(key, e.getValue());
+            }
+        }
+
+        private Object decode(Object key, Object value) {
+            if (!(value instanceof Raw)) return value;
+            try {
+                Object item = store.decodeItem(((Raw) value).data);
+                items.put(key, item);
+                return item;
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public synchronized Object get(Object key) {
+            load();
+            Object value = items.get(key);
+            if (value == null) return null;
+            touched.add(key);
+            return decode(key, value);
+        }
+
+        @Override
+        public synchronized Object put(Object key, Object value) {
+            load();
+            touched.add(key);
+            return decode(key, items.put(key, value));
+        }
+
+        @Override
+        public synchronized Object remove(Object key) {
+            load();
+            touched.add(key);
+            return decode(key, items.remove(key));
+        }
+
+        @Override
+        public synchronized boolean containsKey(Object key) {
+            load();
+            return items.containsKey(key);
+        }
+
+        @Override
+        public synchronized int size() {
+            load();
+            return items.size();
+        }
+
+        @Override
+        public synchronized void clear() {
+            load();
+            touched.addAll(items.keySet());
+            items.clear();
+        }
+
+        @Override
+        public Set<Map.Entry<Object, Object>> entrySet() {
+            return new AbstractSet<Map.Entry<Object, Object>>() {
+
+                @Override
+                public Iterator<Map.Entry<Object, Object>> iterator() {
+                    List<Object> keys;
+                    synchronized (SessionMap.this) {
+                        load();
+                        keys = new ArrayList<Object>(items.keySet());
+                    }
+                    Iterator<Object> it = keys.iterator();
+                    return new Iterator<Map.Entry<Object, Object>>() {
+                        private Object current;
+
+                        @Override
+                        public boolean hasNext() {
+                            return it.hasNext();
+                        }
+
+                        @Override
+                        public Map.Entry<Object, Object> next() {
+                            current = it.next();
+                            return new SimpleEntry<Object, Object>(current, get(current)) {
+                                private static final long serialVersionUID = 1L;
+
+                                @Override
+                                public Object setValue(Object value) {
+                                    super.setValue(value);
+                                    return put(getKey(), value);
+                                }
+                            };
+                        }
+
+                        @Override
+                        public void remove() {
+                            SessionMap.this.remove(current);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return SessionMap.this.size();
+                }
+            };
+        }
+
+        /**
+         * Collects the fields to write and to delete.
+         */
+        synchronized void diff(Map<byte[], byte[]> set, List<byte[]> del) throws IOException {
+            if (!loaded) return;
+            for (Object key: touched) {
+                Object item = items.get(key);
+                if (item instanceof Raw) continue;
+                if (item == null || store.isRemoved(item)) {
+                    if (stored.containsKey(key)) del.add(toField(key));
+                    continue;
+                }
+                byte[] data = store.encodeItem(item);
+                if (!Arrays.equals(data, stored.get(key))) set.put(toField(key), data);
+            }
+        }
+
+        /**
+         * What was just written is now what is stored.
+         */
+        synchronized void written(Map<byte[], byte[]> set, List<byte[]> del) {
+            for (Map.Entry<byte[], byte[]> e: set.entrySet()) {
+                if (e.getKey() != META && e.getKey() != IDLE) stored.put(toKey(e.getKey()), e.getValue());
+            }
+            for (byte[] field: del) {
+                stored.remove(toKey(field));
+            }
+            touched.clear();
+        }
+
+        // Lucee serializes the map it stores (and then throws the bytes away), so fields that were never read are
+        // written as they came in rather than decoded for that
+        private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+            load();
+            out.defaultWriteObject();
+        }
+    }
+
+    private static class Raw implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final byte[] data;
+
+        private Raw(byte[] data) {
+            this.data = data;
+        }
+    }
+
+}
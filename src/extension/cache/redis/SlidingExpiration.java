@@ -0,0 +1,166 @@
+package extension.cache.redis;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import lucee.loader.engine.CFMLEngineFactory;
+import lucee.runtime.type.Struct;
+
+/**
+ * Idle time semantics for entries put with an idle time and no time to live: the idle time is recorded in the
+ * metadata header of the entry (or in the hash of a stored scope), it is the time to live the entry is written with,
+ * and every read of the entry schedules a touch that sets it again. A background thread sends the touches in
+ * pipelined batches of PEXPIRE, and any number of reads of a key before that costs a single one, so keeping an entry
+ * alive costs a few bytes rather than writing it again.
+ * <p>
+ * Touches are a best effort: they are dropped when too many are pending or Redis cannot be reached, and an entry
+ * written again by another node in between is touched with the idle time it was read with.
+ */
+public class SlidingExpiration implements Runnable {
+
+    private static final int BATCH_SIZE = 1000;
+    private static final int CAPACITY = 100000;
+
+    private final RedisCache cache;
+    private final long interval;
+
+    // by key, there is no point in touching a key twice in a row
+    private final ConcurrentHashMap<ByteBuffer, Touch> pending = new ConcurrentHashMap<ByteBuffer, Touch>();
+    private final Object flushLock = new Object();
+    private final Object wakeup = new Object();
+
+    private volatile boolean running = true;
+    private Thread thread;
+
+    private final LongAdder requested = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder touched = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * @param interval how long touches are collected before they are sent, in milliseconds
+     */
+    public SlidingExpiration(RedisCache cache, long interval) {
+        this.cache = cache;
+        this.interval = interval;
+    }
+
+    public void start(String cacheName) {
+        thread = new Thread(this, "redis-sliding-expiration-" + cacheName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the background thread after a last attempt to send what is still pending.
+     */
+    public void stop() {
+        running = false;
+        synchronized (wakeup) {
+            wakeup.notifyAll();
+        }
+        try {
+            flush();
+        }
+        catch (Exception e) {}
+    }
+
+    /**
+     * Schedules a touch, unless one of the same key is pending already.
+     */
+    public void touch(Touch touch) {
+        requested.increment();
+        if (pending.size() >= CAPACITY) {
+            dropped.increment();
+            return;
+        }
+        if (pending.put(touch.id, touch) != null) coalesced.increment();
+    }
+
+    /**
+     * Sends everything that is pending at the time of the call, on the calling thread.
+     */
+    public void flush() throws Exception {
+        synchronized (flushLock) {
+            int remaining = pending.size();
+            List<Touch> batch = new ArrayList<Touch>(Math.min(BATCH_SIZE, Math.max(remaining, 1)));
+            while (remaining > 0 && !pending.isEmpty()) {
+                batch.clear();
+                Iterator<Touch> it = pending.values().iterator();
+                while (it.hasNext() && batch.size() < BATCH_SIZE) {
+                    Touch touch = it.next();
+                    it.remove();
+                    batch.add(touch);
+                }
+
+                try {
+                    cache.touch(batch);
+                }
+                catch (Exception e) {
+                    // a touch is not worth holding on to, the key is read again soon enough if it is still in use
+                    dropped.add(batch.size());
+                    throw e;
+                }
+                touched.add(batch.size());
+                batches.increment();
+                remaining -= batch.size();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                synchronized (wakeup) {
+                    if (running) wakeup.wait(interval);
+                }
+                flush();
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+            catch (Exception e) {
+                failures.increment();
+            }
+        }
+    }
+
+    public Struct getInfo() {
+        Struct info = CFMLEngineFactory.getInstance().getCreationUtil().createStruct();
+        info.setEL("pending", Double.valueOf(pending.size()));
+        info.setEL("interval", Double.valueOf(interval));
+        info.setEL("requested_count", Double.valueOf(requested.sum()));
+        info.setEL("coalesced_count", Double.valueOf(coalesced.sum()));
+        info.setEL("dropped_count", Double.valueOf(dropped.sum()));
+        info.setEL("touched_count", Double.valueOf(touched.sum()));
+        info.setEL("batch_count", Double.valueOf(batches.sum()));
+        info.setEL("failed_flushes", Double.valueOf(failures.sum()));
+        return info;
+    }
+
+    /**
+     * The time to live to set on a key when it is read, along with the manifest of its chunks if it is a chunked
+     * value. Entries in the near cache hold on to theirs, so that their hits are touches too.
+     */
+    public static class Touch {
+        final ByteBuffer id;
+        public final byte[] bkey;
+        public final long idle;
+        public final byte[] manifest;
+
+        public Touch(byte[] bkey, long idle, byte[] manifest) {
+            this.id = ByteBuffer.wrap(bkey);
+            this.bkey = bkey;
+            this.idle = idle;
+            this.manifest = manifest;
+        }
+    }
+
+}
@@ -0,0 +1,262 @@
+package extension.cache.redis;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import lucee.loader.engine.CFMLEngineFactory;
+import lucee.runtime.exp.PageException;
+import lucee.runtime.type.Struct;
+import redis.clients.jedis.params.SetParams;
+
+/**
+ * Get-or-compute with protection against cache stampedes. When a key is missing, concurrent callers on this node
+ * wait for the one that loads it, and that one first takes a short lived lock in Redis so that callers on other
+ * nodes wait as well, polling for the value until it appears or the lock is gone. Either way, callers wait for
+ * at most <code>lockTimeout</code> and then compute the value themselves.
+ * <p>
+ * Loaded values are stored along with the time it took to compute them, which allows refreshing them shortly
+ * before they expire (the XFetch algorithm): a read recomputes the value early with a probability that grows as
+ * the expiration gets closer and with how long computing takes, scaled by <code>beta</code>. Only one caller per
+ * key refreshes, everyone else is served the current value meanwhile.
+ */
+public class StampedeGuard {
+
+    private static final byte[] LOCK_PREFIX = "__lock:".getBytes(RedisCache.UTF8);
+    // deletes a lock only if it is still held with the given token
+    static final byte[] RELEASE = "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end"
+            .getBytes(RedisCache.UTF8);
+    private static final long MIN_POLL = 10;
+    private static final long MAX_POLL = 200;
+
+    private final RedisCache cache;
+    private final long lockTimeout;
+    private final double beta;
+
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> loading = new ConcurrentHashMap<String, CompletableFuture<Object>>();
+
+    private final LongAdder computed = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder lockWaits = new LongAdder();
+    private final LongAdder lockTimeouts = new LongAdder();
+    private final LongAdder earlyRefreshes = new LongAdder();
+
+    public StampedeGuard(RedisCache cache, long lockTimeout, double beta) {
+        this.cache = cache;
+        this.lockTimeout = lockTimeout;
+        this.beta = beta;
+    }
+
+    /**
+     * Returns the value of <code>key</code>, loading and storing it if there is none. <code>expire</code> is in
+     * milliseconds, null for the default of the cache.
+     */
+    public Object getOrCompute(String key, String nkey, byte[] bkey, Loader loader, Long expire) throws PageException {
+        Lookup hit = cache.lookup(key, nkey, bkey, true);
+        if (hit != null) {
+            if (!refreshEarly(hit)) return hit.value;
+            return refresh(key, nkey, bkey, loader, expire, hit.value);
+        }
+
+        CompletableFuture<Object> future = new CompletableFuture<Object>();
+        CompletableFuture<Object> existing = loading.putIfAbsent(nkey, future);
+        if (existing != null) {
+            coalesced.increment();
+            return await(existing, key, loader, expire);
+        }
+        try {
+            Object value = load(key, nkey, bkey, loader, expire);
+            // taken before the value is handed back, which its caller may change right away
+            future.complete(CacheUtil.copy(value));
+            return value;
+        }
+        catch (PageException | RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            loading.remove(nkey, future);
+        }
+    }
+
+    /**
+     * XFetch: recompute when <code>now - delta * beta * ln(random)</code> passes the expiration.
+     */
+    private boolean refreshEarly(Lookup hit) {
+        if (beta <= 0 || hit.computeTime <= 0 || hit.ttl <= 0) return false;
+        double random = 1d - ThreadLocalRandom.current().nextDouble();
+        return -hit.computeTime * beta * Math.log(random) >= hit.ttl;
+    }
+
+    private Object refresh(String key, String nkey, byte[] bkey, Loader loader, Long expire, Object current) throws PageException {
+        CompletableFuture<Object> future = new CompletableFuture<Object>();
+        if (loading.putIfAbsent(nkey, future) != null) return current;
+        try {
+            byte[] lkey = lockKey(bkey);
+            byte[] token = tryLock(lkey);
+            // being refreshed on another node
+            if (token == null) return current;
+            try {
+                earlyRefreshes.increment();
+                return compute(key, loader, expire);
+            }
+            finally {
+                unlock(lkey, token);
+            }
+        }
+        finally {
+            // callers that missed meanwhile get the current value rather than wait
+            future.complete(CacheUtil.copy(current));
+            loading.remove(nkey, future);
+        }
+    }
+
+    private Object load(String key, String nkey, byte[] bkey, Loader loader, Long expire) throws PageException {
+        byte[] lkey = lockKey(bkey);
+        long deadline = System.currentTimeMillis() + lockTimeout;
+        long poll = MIN_POLL;
+        boolean waited = false;
+        while (true) {
+            byte[] token = tryLock(lkey);
+            if (token != null) {
+                try {
+                    // another node may have stored it between the miss and the lock
+                    Lookup hit = cache.lookup(key, nkey, bkey, false);
+                    if (hit != null) return hit.value;
+                    return compute(key, loader, expire);
+                }
+                finally {
+                    unlock(lkey, token);
+                }
+            }
+
+            if (!waited) {
+                lockWaits.increment();
+                waited = true;
+            }
+            try {
+                Thread.sleep(poll);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw CFMLEngineFactory.getInstance().getCastUtil().toPageException(e);
+            }
+            poll = Math.min(poll * 2, MAX_POLL);
+
+            Lookup hit = cache.lookup(key, nkey, bkey, false);
+            if (hit != null) return hit.value;
+            if (System.currentTimeMillis() >= deadline) {
+                // the lock expires on its own, so this only happens when it keeps being taken by others
+                lockTimeouts.increment();
+                return compute(key, loader, expire);
+            }
+        }
+    }
+
+    private Object compute(String key, Loader loader, Long expire) throws PageException {
+        long start = System.nanoTime();
+        Object value = loader.load();
+        long computeTime = Math.max(1, (System.nanoTime() - start) / 1000000);
+        computed.increment();
+        if (value != null) cache.putComputed(key, value, expire, computeTime);
+        return value;
+    }
+
+    /**
+     * Waits for a load of this node, for no longer than another node's load is waited for, see {@link #load}. Every
+     * caller that waited gets a copy of its own, like a read from Redis, see {@link CacheUtil#copy}.
+     */
+    private Object await(CompletableFuture<Object> future, String key, Loader loader, Long expire) throws PageException {
+        try {
+            return CacheUtil.copy(future.get(lockTimeout, TimeUnit.MILLISECONDS));
+        }
+        catch (TimeoutException e) {
+            // the loader hangs, rather than wait on it with no end this caller computes the value itself
+            lockTimeouts.increment();
+            return compute(key, loader, expire);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw CFMLEngineFactory.getInstance().getCastUtil().toPageException(e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof PageException) throw (PageException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw CFMLEngineFactory.getInstance().getCastUtil().toPageException(cause);
+        }
+    }
+
+    /**
+     * Lock keys are outside of the namespace, so they do not show up among the keys of the cache.
+     */
+    private static byte[] lockKey(byte[] bkey) {
+        byte[] lkey = new byte[LOCK_PREFIX.length + bkey.length];
+        System.arraycopy(LOCK_PREFIX, 0, lkey, 0, LOCK_PREFIX.length);
+        System.arraycopy(bkey, 0, lkey, LOCK_PREFIX.length, bkey.length);
+        return lkey;
+    }
+
+    private byte[] tryLock(byte[] lkey) {
+        byte[] token = UUID.randomUUID().toString().getBytes(RedisCache.UTF8);
+        String rtn;
+        try {
+            rtn = cache.execute(lkey, (conn) -> conn.set(lkey, token, SetParams.setParams().nx().px(lockTimeout)));
+        }
+        catch (CircuitBreaker.OpenException e) {
+            // there is no one to coordinate with, callers on this node still wait for each other
+            return token;
+        }
+        return "OK".equals(rtn) ? token : null;
+    }
+
+    private void unlock(byte[] lkey, byte[] token) {
+        try {
+            cache.execute(lkey, (conn) -> conn.eval(RELEASE, 1, lkey, token));
+        }
+        catch (RuntimeException e) {
+            // it expires anyway
+        }
+    }
+
+    public Struct getInfo() {
+        Struct info = CFMLEngineFactory.getInstance().getCreationUtil().createStruct();
+        info.setEL("computed_count", Double.valueOf(computed.sum()));
+        info.setEL("coalesced_count", Double.valueOf(coalesced.sum()));
+        info.setEL("lock_waits", Double.valueOf(lockWaits.sum()));
+        info.setEL("lock_timeouts", Double.valueOf(lockTimeouts.sum()));
+        info.setEL("early_refresh_count", Double.valueOf(earlyRefreshes.sum()));
+        info.setEL("loading", Double.valueOf(loading.size()));
+        return info;
+    }
+
+    /**
+     * Computes a missing value.
+     */
+    public interface Loader {
+        Object load() throws PageException;
+    }
+
+    /**
+     * A value read from Redis along with its recorded compute time and its remaining time to live in
+     * milliseconds, either of which is 0 when unknown.
+     */
+    static class Lookup {
+        final Object value;
+        final long computeTime;
+        final long ttl;
+
+        Lookup(Object value, long computeTime, long ttl) {
+            this.value = value;
+            this.computeTime = computeTime;
+            this.ttl = ttl;
+        }
+    }
+
+}
@@ -0,0 +1,223 @@
+package extension.cache.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import lucee.loader.engine.CFMLEngineFactory;
+import lucee.runtime.type.Struct;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+
+/**
+ * Groups of keys that are invalidated together. Each tag is a Redis set of the keys that were put with it,
+ * <code>namespace:__tag:name</code>, which is hidden from key listings like the chunks of values. Keys are added to
+ * their tags in the transaction that writes them, by a script that keeps the set alive for at least as long as its
+ * longest lived member (twice as long as a member that would outlive it, so that this is not done on every put) and
+ * drops a couple of random members that are gone, so that the set of a long lived tag does not keep every key that
+ * ever had it.
+ * <p>
+ * Invalidating a tag UNLINKs its members and the set in one script: it costs as much as the tag has members, however
+ * large the cache is, and no reader ever sees part of the group gone. Without scripting, and in a cluster unless
+ * the namespace is hash tagged (the members of a tag may then live on any node), the same is done from the client,
+ * which is not atomic; sets are then not pruned, and concurrent puts may leave one with too short a time to live.
+ */
+public class TagIndex {
+
+    private static final byte[] MARKER = "__tag:".getBytes(RedisCache.UTF8);
+    private static final byte[] ONE = { '1' };
+    private static final byte[] ZERO = { '0' };
+    private static final byte[] MANIFEST_END = Integer.toString(ChunkedValues.MANIFEST_SIZE - 1).getBytes(RedisCache.UTF8);
+
+    // KEYS[1] the tag, ARGV[1] the key, ARGV[2] its time to live in milliseconds (0 for none), ARGV[3] whether the
+    // members are in the slot of the tag, so that they may be looked at; SRANDMEMBER is not deterministic, which
+    // keeps Redis before 5 from replicating the script rather than its effects
+    private static final byte[] ADD = ("if redis.replicate_commands then redis.replicate_commands() end "
+            + "local t = redis.call('pttl', KEYS[1]) "
+            + "redis.call('sadd', KEYS[1], ARGV[1]) "
+            + "local ttl = tonumber(ARGV[2]) "
+            + "if ttl <= 0 then if t >= 0 then redis.call('persist', KEYS[1]) end "
+            + "elseif t == -2 or (t >= 0 and t < ttl) then redis.call('pexpire', KEYS[1], 2 * ttl) end "
+            + "if ARGV[3] == '1' then for _, m in ipairs(redis.call('srandmember', KEYS[1], 2)) do "
+            + "if m ~= ARGV[1] and redis.call('exists', m) == 0 then redis.call('srem', KEYS[1], m) end end end "
+            + "return 1").getBytes(RedisCache.UTF8);
+
+    // KEYS[1] the tag, ARGV[1] whether to return the start of each value, for their chunks to be released, ARGV[2]
+    // the end of that start; returns the number of keys removed, the keys and the starts
+    private static final byte[] INVALIDATE = ("local keys = redis.call('smembers', KEYS[1]) "
+            + "local heads = {} "
+            + "if ARGV[1] == '1' then for i, k in ipairs(keys) do "
+            + "heads[i] = redis.call('type', k)['ok'] == 'string' and redis.call('getrange', k, 0, ARGV[2]) or '' end end "
+            + "local n = 0 "
+            + "for i = 1, #keys, 1000 do n = n + redis.call('unlink', unpack(keys, i, math.min(i + 999, #keys))) end "
+            + "redis.call('unlink', KEYS[1]) "
+            + "return {n, keys, heads}").getBytes(RedisCache.UTF8);
+
+    private final boolean singleSlot;
+    private volatile boolean scripting = true;
+
+    private final LongAdder tagged = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder invalidated = new LongAdder();
+
+    /**
+     * @param singleSlot whether all keys of the cache are in one slot: a single server, or a hash tagged namespace
+     */
+    public TagIndex(boolean singleSlot) {
+        this.singleSlot = singleSlot;
+    }
+
+    /**
+     * Whether a tag is invalidated by a script, see {@link #invalidate}.
+     */
+    public boolean isAtomic() {
+        return scripting && singleSlot;
+    }
+
+    /**
+     * The key of the set of <code>tag</code> (normalized).
+     */
+    public static byte[] key(byte[] prefix, String tag) {
+        byte[] name = tag.getBytes(RedisCache.UTF8);
+        int off = prefix == null ? 0 : prefix.length;
+        byte[] key = new byte[off + MARKER.length + name.length];
+        if (prefix != null) System.arraycopy(prefix, 0, key, 0, off);
+        System.arraycopy(MARKER, 0, key, off, MARKER.length);
+        System.arraycopy(name, 0, key, off + MARKER.length, name.length);
+        return key;
+    }
+
+    /**
+     * Whether <code>key</code> is the set of a tag rather than a value.
+     */
+    public static boolean isTag(byte[] prefix, byte[] key) {
+        int off = prefix == null ? 0 : prefix.length;
+        if (key.length < off + MARKER.length) return false;
+        for (int i = 0; i < MARKER.length; i++) {
+            if (key[off + i] != MARKER[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds <code>bkey</code> to the sets <code>tkeys</code>, in one transaction with writing <code>data</code> to it
+     * (with a time to live of <code>ex</code> seconds, 0 for none) unless that is null.
+     */
+    public void add(Jedis conn, byte[] bkey, List<byte[]> tkeys, byte[] data, int ex) {
+        long ttl = ex > 0 ? ex * 1000L : 0;
+        tagged.increment();
+        if (scripting) {
+            Pipeline p = conn.pipelined();
+            p.multi();
+            write(p, bkey, data, ex);
+            byte[] bttl = Long.toString(ttl).getBytes(RedisCache.UTF8);
+            List<Response<Object>> added = new ArrayList<Response<Object>>(tkeys.size());
+            for (byte[] tkey: tkeys) {
+                added.add(p.eval(ADD, 1, tkey, bkey, bttl, singleSlot ? ONE : ZERO));
+            }
+            Response<List<Object>> exec = p.exec();
+            p.sync();
+            try {
+                exec.get();
+                for (Response<Object> response: added) {
+                    response.get();
+                }
+                return;
+            }
+            catch (JedisRedirectionException e) {
+                throw e;
+            }
+            catch (JedisDataException e) {
+                // go on from the client, and from now on only if scripting is disabled or not permitted; writing
+                // again does no harm
+                if (CacheUtil.isScriptingUnavailable(e)) scripting = false;
+            }
+        }
+
+        Pipeline p = conn.pipelined();
+        p.multi();
+        write(p, bkey, data, ex);
+        List<Response<Long>> ttls = new ArrayList<Response<Long>>(tkeys.size());
+        for (byte[] tkey: tkeys) {
+            ttls.add(p.pttl(tkey));
+            p.sadd(tkey, bkey);
+        }
+        p.exec();
+        p.sync();
+
+        Pipeline extend = null;
+        for (int i = 0; i < tkeys.size(); i++) {
+            long t = ttls.get(i).get().longValue();
+            if (ttl <= 0 ? t < 0 : t != -2 && (t < 0 || t >= ttl)) continue;
+            if (extend == null) extend = conn.pipelined();
+            if (ttl <= 0) extend.persist(tkeys.get(i));
+            else extend.pexpire(tkeys.get(i), 2 * ttl);
+        }
+        if (extend != null) extend.sync();
+    }
+
+    private static void write(Pipeline p, byte[] bkey, byte[] data, int ex) {
+        if (data == null) return;
+        if (ex > 0) p.setex(bkey, ex, data);
+        else p.set(bkey, data);
+    }
+
+    /**
+     * Removes the members of the tag <code>tkey</code> and its set in one script. Returns null if the script could
+     * not be run, in which case the caller has to do it.
+     */
+    @SuppressWarnings("unchecked")
+    public Invalidated invalidate(Jedis conn, byte[] tkey, boolean heads) {
+        List<Object> rtn;
+        try {
+            rtn = (List<Object>) conn.eval(INVALIDATE, 1, tkey, heads ? ONE : ZERO, MANIFEST_END);
+        }
+        catch (JedisRedirectionException e) {
+            throw e;
+        }
+        catch (JedisDataException e) {
+            if (CacheUtil.isScriptingUnavailable(e)) scripting = false;
+            return null;
+        }
+        Invalidated result = new Invalidated(((Long) rtn.get(0)).longValue(), (List<byte[]>) rtn.get(1), heads ? (List<byte[]>) rtn.get(2) : null);
+        invalidated(result.removed);
+        return result;
+    }
+
+    /**
+     * Records the invalidation of a tag that removed <code>removed</code> keys.
+     */
+    public void invalidated(long removed) {
+        invalidations.increment();
+        invalidated.add(removed);
+    }
+
+    public Struct getInfo() {
+        Struct info = CFMLEngineFactory.getInstance().getCreationUtil().createStruct();
+        info.setEL("atomic", Boolean.valueOf(isAtomic()));
+        info.setEL("tagged_puts", Double.valueOf(tagged.sum()));
+        info.setEL("invalidated_tags", Double.valueOf(invalidations.sum()));
+        info.setEL("invalidated_keys", Double.valueOf(invalidated.sum()));
+        return info;
+    }
+
+    /**
+     * What the invalidation of a tag removed: how many keys, which ones, and if asked for, the start of each value.
+     */
+    public static class Invalidated {
+        public final long removed;
+        public final List<byte[]> keys;
+        public final List<byte[]> heads;
+
+        Invalidated(long removed, List<byte[]> keys, List<byte[]> heads) {
+            this.removed = removed;
+            this.keys = keys == null ? Collections.<byte[]>emptyList() : keys;
+            this.heads = heads;
+        }
+    }
+
+}
@@ -0,0 +1,279 @@
+package extension.cache.redis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The format values are stored in. Values written by a {@link Codec} start with a header byte of the form
+ * <code>11111ccc</code>: the five high bits mark version 1 of the format and the low three bits are the codec id.
+ * <p>
+ * Strings are still written as plain UTF-8 so that other Redis clients can read them, and Java serialized values
+ * as they are, so that earlier versions of this extension sharing the cache during an upgrade can still read them.
+ * Neither needs a header: a valid UTF-8 string never starts with a header byte, nor with the stream magic
+ * (<code>0xACED</code>) that starts Java serialized values. So decoding never has to guess. Values tagged as Java
+ * serialized are read as well.
+ * <p>
+ * Encoded values above a threshold may in turn be wrapped by {@link Compression}, in which case the header carries
+ * the id of the compression algorithm instead. Cache entries may be wrapped once more in a metadata header, which
+ * records when they were written, for values loaded through {@link StampedeGuard} how long they took to compute,
+ * and for values with sliding expiration their idle time, see {@link SlidingExpiration}. Very large values may be
+ * stored in chunks instead, in which case the value itself is only the manifest of the chunks, see
+ * {@link ChunkedValues}.
+ */
+public class ValueCodec {
+
+    public static final int HEADER = 0xF8;
+    public static final int MAX_CODEC_ID = 0x07;
+
+    public static final int UTF8 = 0;
+    public static final int JDK = 1;
+    public static final int BINARY = 2;
+    public static final int LZ4 = 3;
+    public static final int DEFLATE = 4;
+    public static final int CHUNKED = 5;
+    public static final int META = 6;
+    public static final int CFML = 7;
+
+    // flags of the metadata header, each one followed by a varint
+    private static final int META_COMPUTE_TIME = 0x01;
+    private static final int META_MODIFIED = 0x02;
+    private static final int META_IDLE = 0x04;
+
+    private static final int STREAM_MAGIC_0 = 0xAC;
+    private static final int STREAM_MAGIC_1 = 0xED;
+
+    private final Codec[] codecs = new Codec[MAX_CODEC_ID + 1];
+    private final List<Codec> encoders = new CopyOnWriteArrayList<Codec>();
+    private final Codec jdk;
+    private final Compression compression;
+    private final boolean timestamps;
+
+    /**
+     * @param tagged whether values other than strings are written by the {@link BinaryCodec} and the
+     *            {@link CfmlCodec} where they can, which can be turned off for as long as older versions of this
+     *            extension, that cannot read them, share the cache: everything is then Java serialized. They are
+     *            read either way.
+     */
+    public ValueCodec(ClassLoader cl, Compression compression, boolean timestamps, boolean tagged) {
+        this.compression = compression;
+        this.timestamps = timestamps;
+        jdk = new JdkCodec(cl);
+        if (tagged) {
+            register(new BinaryCodec());
+            register(new CfmlCodec(jdk));
+        }
+        else {
+            codecs[BINARY] = new BinaryCodec();
+            codecs[CFML] = new CfmlCodec(jdk);
+        }
+        register(jdk);
+    }
+
+    /**
+     * Adds a codec. When encoding, codecs are asked in the order they were registered whether they support a value,
+     * so more specific codecs have to be registered before more general ones.
+     */
+    public synchronized void register(Codec codec) {
+        int id = codec.id();
+        if (id < 0 || id > MAX_CODEC_ID || id == UTF8 || id == LZ4 || id == DEFLATE || id == CHUNKED || id == META) throw new IllegalArgumentException("invalid codec id [" + id + "]");
+
+        Codec old = codecs[id];
+        if (old != null) encoders.remove(old);
+        codecs[id] = codec;
+
+        // the jdk codec accepts anything, so it always goes last
+        encoders.remove(jdk);
+        if (codec != jdk) encoders.add(codec);
+        if (codecs[JDK] == jdk) encoders.add(jdk);
+    }
+
+    public byte[] encode(Object value) throws IOException {
+        byte[] data = _encode(value);
+        byte[] compressed = compression.compress(data);
+        return compressed == null ? data : compressed;
+    }
+
+    /**
+     * Like {@link #encode(Object)}, but writes straight to <code>out</code>, unless values are compressed: that takes
+     * the whole value.
+     */
+    public void encode(Object value, OutputStream out) throws IOException {
+        if (compression.isEnabled()) out.write(encode(value));
+        else _encode(value, out);
+    }
+
+    public byte[] encodeEntry(Object value, long computeTime) throws IOException {
+        return encodeEntry(value, computeTime, 0);
+    }
+
+    /**
+     * Encodes a cache entry, along with the time it was written if timestamps are enabled, the number of
+     * milliseconds it took to compute and its idle time in milliseconds, unless those are 0.
+     */
+    public byte[] encodeEntry(Object value, long computeTime, long idle) throws IOException {
+        byte[] data = encode(value);
+        byte[] header = entryHeader(computeTime, idle);
+        if (header.length == 0) return data;
+
+        byte[] entry = new byte[header.length + data.length];
+        System.arraycopy(header, 0, entry, 0, header.length);
+        System.arraycopy(data, 0, entry, header.length, data.length);
+        return entry;
+    }
+
+    /**
+     * The metadata header {@link #encodeEntry} puts in front of the encoded value, empty if there is nothing to record.
+     */
+    public byte[] entryHeader(long computeTime, long idle) throws IOException {
+        int flags = (computeTime > 0 ? META_COMPUTE_TIME : 0) | (timestamps ? META_MODIFIED : 0) | (idle > 0 ? META_IDLE : 0);
+        if (flags == 0) return new byte[0];
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream(32);
+        os.write(HEADER | META);
+        os.write(flags);
+        if (computeTime > 0) BinaryCodec.writeVarLong(os, computeTime);
+        if (timestamps) BinaryCodec.writeVarLong(os, System.currentTimeMillis());
+        if (idle > 0) BinaryCodec.writeVarLong(os, idle);
+        return os.toByteArray();
+    }
+
+    /**
+     * The compute time recorded by {@link #encodeEntry}, or 0.
+     */
+    public static long computeTime(byte[] data) {
+        return meta(data, META_COMPUTE_TIME);
+    }
+
+    /**
+     * The time the entry was written as recorded by {@link #encodeEntry}, or 0.
+     */
+    public static long modified(byte[] data) {
+        return meta(data, META_MODIFIED);
+    }
+
+    /**
+     * The idle time in milliseconds recorded by {@link #encodeEntry}, or 0 if the entry does not expire when idle.
+     */
+    public static long idle(byte[] data) {
+        return meta(data, META_IDLE);
+    }
+
+    /**
+     * Where the value itself starts, after the metadata header if there is one.
+     */
+    public static int valueOffset(byte[] data) throws IOException {
+        if (data.length < 2 || (data[0] & 0xFF) != (HEADER | META)) return 0;
+        BinaryCodec.Input in = new BinaryCodec.Input(data, 1, data.length - 1);
+        int flags = in.read();
+        for (int f = flags; f != 0; f &= f - 1) {
+            in.readVarLong();
+        }
+        return in.pos;
+    }
+
+    private static long meta(byte[] data, int flag) {
+        if (data == null || data.length < 2 || (data[0] & 0xFF) != (HEADER | META)) return 0;
+        try {
+            BinaryCodec.Input in = new BinaryCodec.Input(data, 1, data.length - 1);
+            int flags = in.read();
+            for (int f = 1; f <= flag; f <<= 1) {
+                if ((flags & f) == 0) continue;
+                long v = in.readVarLong();
+                if (f == flag) return v;
+            }
+            return 0;
+        }
+        catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private byte[] _encode(Object value) throws IOException {
+        // for interop, just write strings directly
+        if (value instanceof String) {
+            return ((String) value).getBytes(RedisCache.UTF8);
+        }
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        _encode(value, os);
+        return os.toByteArray();
+    }
+
+    private void _encode(Object value, OutputStream out) throws IOException {
+        if (value instanceof String) {
+            out.write(((String) value).getBytes(RedisCache.UTF8));
+            return;
+        }
+
+        for (Codec codec: encoders) {
+            if (codec.supports(value)) {
+                // Java serialized values are known by their stream magic
+                if (codec != jdk) out.write(HEADER | codec.id());
+                codec.encode(value, out);
+                return;
+            }
+        }
+        throw new IOException("no codec supports values of type [" + value.getClass().getName() + "]");
+    }
+
+    public Object decode(byte[] data) throws IOException {
+        if (data.length == 0) return "";
+
+        int first = data[0] & 0xFF;
+        if ((first & HEADER) == HEADER) {
+            int id = first & MAX_CODEC_ID;
+            if (id == UTF8) return new String(data, 1, data.length - 1, RedisCache.UTF8);
+            if (id == LZ4 || id == DEFLATE) return decode(compression.decompress(id, data, 1, data.length - 1));
+            if (id == META) return decode(Arrays.copyOfRange(data, valueOffset(data), data.length));
+            if (id == CHUNKED) throw new IOException("value is stored in chunks, which have to be read first");
+
+            Codec codec = codecs[id];
+            if (codec == null) throw new IOException("value was written with unknown codec [" + id + "]");
+            return codec.decode(data, 1, data.length - 1);
+        }
+
+        // Java serialized, by this or an earlier version of this extension
+        if (first == STREAM_MAGIC_0 && data.length > 1 && (data[1] & 0xFF) == STREAM_MAGIC_1) {
+            return jdk.decode(data, 0, data.length);
+        }
+
+        return new String(data, RedisCache.UTF8);
+    }
+
+    /**
+     * Decodes a value that is read as a stream, such as the chunks of a value. Codecs that can read from a stream do
+     * so, for anything else the value is read whole first.
+     */
+    public Object decode(InputStream in) throws IOException {
+        int first = in.read();
+        if (first == -1) return "";
+
+        if ((first & HEADER) == HEADER) {
+            int id = first & MAX_CODEC_ID;
+            Codec codec = id == UTF8 || id == LZ4 || id == DEFLATE || id == CHUNKED || id == META ? null : codecs[id];
+            if (codec != null) return codec.decode(in);
+        }
+        else if (first == STREAM_MAGIC_0) {
+            PushbackInputStream pin = new PushbackInputStream(in, 1);
+            int second = pin.read();
+            if (second != -1) pin.unread(second);
+            if (second == STREAM_MAGIC_1) return jdk.decode(new SequenceInputStream(new ByteArrayInputStream(new byte[] { (byte) first }), pin));
+            in = pin;
+        }
+
+        byte[] rest = in.readAllBytes();
+        byte[] data = new byte[rest.length + 1];
+        data[0] = (byte) first;
+        System.arraycopy(rest, 0, data, 1, rest.length);
+        return decode(data);
+    }
+
+}
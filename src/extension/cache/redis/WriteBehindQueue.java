@@ -0,0 +1,230 @@
+package extension.cache.redis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import lucee.loader.engine.CFMLEngineFactory;
+import lucee.runtime.type.Struct;
+
+/**
+ * Bounded queue of pending puts and removes that a background thread writes to Redis in pipelined batches. There
+ * is at most one pending write per key: a newer write to the same key replaces the older one before it is sent.
+ * Pending writes stay visible to reads until they have been written, and they stay queued (and are retried) when
+ * writing them fails, unless Redis turned them down a few times already. When the queue is full, writers wait for
+ * room.
+ */
+public class WriteBehindQueue implements Runnable {
+
+    private static final long MAX_BACKOFF = 5000;
+    // how many flushes a write that Redis keeps turning down (e.g. NOPERM, or OOM with noeviction) is part of
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final RedisCache cache;
+    private final int capacity;
+    private final int batchSize;
+    private final long interval;
+    private final long maxWait;
+
+    private final ConcurrentHashMap<String, PendingWrite> pending = new ConcurrentHashMap<String, PendingWrite>();
+    private final Object room = new Object();
+    private final Object flushLock = new Object();
+    private final Object wakeup = new Object();
+
+    private volatile boolean running = true;
+    private Thread thread;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder failedWrites = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+
+    public WriteBehindQueue(RedisCache cache, int capacity, int batchSize, long interval, long maxWait) {
+        this.cache = cache;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.interval = interval;
+        this.maxWait = maxWait;
+    }
+
+    public void start(String cacheName) {
+        thread = new Thread(this, "redis-write-behind-" + cacheName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the background thread after a last attempt to write what is still pending.
+     */
+    public void stop() {
+        running = false;
+        synchronized (wakeup) {
+            wakeup.notifyAll();
+        }
+        try {
+            flush();
+        }
+        catch (Exception e) {}
+    }
+
+    /**
+     * Queues a write. Returns false if the queue stayed full for longer than the configured wait, in which case
+     * the caller is expected to write synchronously.
+     */
+    public boolean offer(PendingWrite write) throws InterruptedException {
+        if (pending.replace(write.key, write) != null) {
+            coalesced.increment();
+            return true;
+        }
+
+        long deadline = System.currentTimeMillis() + maxWait;
+        synchronized (room) {
+            while (pending.size() >= capacity) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) return false;
+                waits.increment();
+                synchronized (wakeup) {
+                    wakeup.notifyAll();
+                }
+                room.wait(wait);
+            }
+            if (pending.put(write.key, write) != null) coalesced.increment();
+        }
+
+        if (pending.size() >= batchSize) {
+            synchronized (wakeup) {
+                wakeup.notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The write still pending for the given (normalized) key, if any.
+     */
+    public PendingWrite get(String key) {
+        return pending.get(key);
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * Writes everything that is pending at the time of the call, on the calling thread. Writes that Redis turns down
+     * stay queued for the next flush, up to <code>MAX_ATTEMPTS</code> times, after which they are given up on. All
+     * batches are written either way, and the flush then fails with the first error.
+     */
+    public void flush() throws IOException {
+        synchronized (flushLock) {
+            int remaining = pending.size();
+            List<PendingWrite> batch = new ArrayList<PendingWrite>(Math.min(batchSize, Math.max(remaining, 1)));
+            // turned down in this flush, so that they are not picked again ahead of the writes that were not tried yet
+            Set<PendingWrite> turnedDown = Collections.newSetFromMap(new IdentityHashMap<PendingWrite, Boolean>());
+            Map.Entry<PendingWrite, Exception> first = null;
+            int rejected = 0;
+            while (remaining > 0 && !pending.isEmpty()) {
+                batch.clear();
+                Iterator<PendingWrite> it = pending.values().iterator();
+                while (it.hasNext() && batch.size() < batchSize) {
+                    PendingWrite write = it.next();
+                    if (!turnedDown.contains(write)) batch.add(write);
+                }
+                if (batch.isEmpty()) break;
+
+                Map<PendingWrite, Exception> failed = cache.write(batch);
+                for (PendingWrite write: batch) {
+                    if (!failed.containsKey(write)) {
+                        // unless it was replaced in the meantime
+                        pending.remove(write.key, write);
+                        continue;
+                    }
+                    turnedDown.add(write);
+                    if (++write.attempts >= MAX_ATTEMPTS && pending.remove(write.key, write)) failedWrites.increment();
+                }
+                written.add(batch.size() - failed.size());
+                remaining -= batch.size();
+
+                synchronized (room) {
+                    room.notifyAll();
+                }
+                if (!failed.isEmpty()) {
+                    if (first == null) first = failed.entrySet().iterator().next();
+                    rejected += failed.size();
+                }
+            }
+            if (first != null) {
+                throw new IOException("Redis did not write [" + first.getKey().key + "]" + (rejected > 1 ? " and " + (rejected - 1) + " other keys" : ""), first.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        long backoff = interval;
+        while (running) {
+            try {
+                synchronized (wakeup) {
+                    if (running && pending.size() < batchSize) wakeup.wait(backoff);
+                }
+                flush();
+                backoff = interval;
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+            catch (Exception e) {
+                // Redis is unavailable, keep what is pending and try again later
+                failures.increment();
+                backoff = Math.min(Math.max(backoff, 1) * 2, MAX_BACKOFF);
+            }
+        }
+    }
+
+    public Struct getInfo() {
+        Struct info = CFMLEngineFactory.getInstance().getCreationUtil().createStruct();
+        info.setEL("pending", Double.valueOf(pending.size()));
+        info.setEL("capacity", Double.valueOf(capacity));
+        info.setEL("written_count", Double.valueOf(written.sum()));
+        info.setEL("coalesced_count", Double.valueOf(coalesced.sum()));
+        info.setEL("failed_flushes", Double.valueOf(failures.sum()));
+        info.setEL("failed_writes", Double.valueOf(failedWrites.sum()));
+        info.setEL("full_waits", Double.valueOf(waits.sum()));
+        return info;
+    }
+
+    /**
+     * A put (or a remove, when <code>data</code> is null) waiting to be written. <code>value</code> is the object
+     * that was put, which its writer may still change; reads decode <code>data</code> instead.
+     */
+    public static class PendingWrite {
+        public final String key;
+        public final byte[] bkey;
+        public final Object value;
+        public final byte[] data;
+        public final int expire;
+        // how often Redis turned it down, only touched by flushes
+        int attempts;
+
+        public PendingWrite(String key, byte[] bkey, Object value, byte[] data, int expire) {
+            this.key = key;
+            this.bkey = bkey;
+            this.value = value;
+            this.data = data;
+            this.expire = expire;
+        }
+
+        public boolean isRemove() {
+            return data == null;
+        }
+    }
+
+}